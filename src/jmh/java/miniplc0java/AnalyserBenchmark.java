@@ -0,0 +1,94 @@
+package miniplc0java;
+
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.FunctionCache;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 编译一个很大的合成程序：大量全局变量，每个函数读写几个全局变量、声明几层局部变量并调用前一个函数
+ * 主要测符号表的插入、查找和退出代码块
+ * incremental 在两个只差一个函数的版本之间来回增量编译，其余函数复用上一次的指令
+ * parallel 用两遍模式，函数体在所有 CPU 上并行分析
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalyserBenchmark {
+
+    @Param({"50000"})
+    public int globals;
+
+    @Param({"10000"})
+    public int functions;
+
+    private String source;
+    private String edited;
+    private FunctionCache functionCache;
+    private boolean flip;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < globals; i++) {
+            sb.append("let g").append(i).append(": int = ").append(i).append(";\n");
+        }
+        for (int i = 0; i < functions; i++) {
+            int a = (int) ((i * 7919L) % globals);
+            int b = (int) ((i * 104729L) % globals);
+            sb.append("fn f").append(i).append("(p: int, q: int) -> int {\n");
+            sb.append("    let x: int = p + g").append(a).append(";\n");
+            sb.append("    {\n");
+            sb.append("        let x: int = x * q;\n");
+            sb.append("        g").append(b).append(" = x;\n");
+            sb.append("    }\n");
+            if (i > 0)
+                sb.append("    x = x + f").append(i - 1).append("(x, q);\n");
+            sb.append("    return x;\n");
+            sb.append("}\n");
+        }
+        sb.append("fn main() -> void {\n");
+        sb.append("    putint(f").append(functions - 1).append("(1, 2));\n");
+        sb.append("}\n");
+        source = sb.toString();
+        // 改中间一个函数的函数体
+        String target = "fn f" + functions / 2 + "(";
+        int at = source.indexOf("return x;", source.indexOf(target));
+        edited = source.substring(0, at) + "return x + 1;" + source.substring(at + "return x;".length());
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        functionCache = new FunctionCache();
+        new Analyser(new Tokenizer(new StringIter(new Scanner(source))), functionCache).analyse();
+    }
+
+    @Benchmark
+    public Object analyse() throws Exception {
+        return new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyse();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Object parallel() throws Exception {
+        return new Analyser(new Tokenizer(new StringIter(new Scanner(source))), pool).analyse();
+    }
+
+    @Benchmark
+    public Object incremental() throws Exception {
+        flip = !flip;
+        String next = flip ? edited : source;
+        return new Analyser(new Tokenizer(new StringIter(new Scanner(next))), functionCache).analyse();
+    }
+}
@@ -0,0 +1,114 @@
+package miniplc0java;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 编译一个普通大小的文件的延迟，p50/p99 见结果里的 p0.50、p0.99：
+ * daemon 是已经预热的 --server 在同一个连接上编译，client 是启动一个 JVM 跑 --connect，
+ * freshJvm 是启动一个 JVM 跑 -l
+ * 后两种都是新进程，和命令行里用的时候一样
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompileServerBenchmark {
+
+    private static final String SOURCE = "let total: int = 0;\n"
+            + "const SCALE: double = 2.5;\n"
+            + "fn fib(n: int) -> int {\n"
+            + "    if n < 2 {\n"
+            + "        return n;\n"
+            + "    }\n"
+            + "    return fib(n - 1) + fib(n - 2);\n"
+            + "}\n"
+            + "fn avg(a: int, b: int) -> double {\n"
+            + "    return (a + b) as double / 2.0 * SCALE;\n"
+            + "}\n"
+            + "fn main() -> void {\n"
+            + "    let i: int = 0;\n"
+            + "    while i < 10 {\n"
+            + "        total = total + fib(i);\n"
+            + "        if total > 20 {\n"
+            + "            putstr(\"big \");\n"
+            + "        } else {\n"
+            + "            putstr(\"small \");\n"
+            + "        }\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putint(total);\n"
+            + "    putln();\n"
+            + "    putdouble(avg(total, getint()));\n"
+            + "    putln();\n"
+            + "}\n";
+
+    private Path dir;
+    private Path input;
+    private String socket;
+    private CompileServer server;
+    private CompileClient client;
+    private byte[] source;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("c0d");
+        input = dir.resolve("a.c0");
+        Files.writeString(input, SOURCE);
+        source = SOURCE.getBytes();
+        socket = dir.resolve("c0d.sock").toString();
+        server = new CompileServer(socket);
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        client = new CompileClient(socket);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        for (File f : dir.toFile().listFiles()) {
+            f.delete();
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public byte[] daemon() throws Exception {
+        return client.compile(source, false).data;
+    }
+
+    @Benchmark
+    public int client() throws Exception {
+        return run("--connect", socket, input.toString(), "-o", dir.resolve("b.o0").toString());
+    }
+
+    @Benchmark
+    public int freshJvm() throws Exception {
+        return run("-l", input.toString(), "-o", dir.resolve("c.o0").toString());
+    }
+
+    private static int run(String... args) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String[] cmd = new String[args.length + 4];
+        cmd[0] = java;
+        cmd[1] = "-cp";
+        cmd[2] = System.getProperty("java.class.path");
+        cmd[3] = App.class.getName();
+        System.arraycopy(args, 0, cmd, 4, args.length);
+        return new ProcessBuilder(cmd).inheritIO().start().waitFor();
+    }
+}
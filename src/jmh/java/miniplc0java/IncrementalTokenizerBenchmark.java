@@ -0,0 +1,64 @@
+package miniplc0java;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import miniplc0java.tokenizer.IncrementalTokenizer;
+
+/**
+ * 模拟编辑器里敲一个字符再删掉：full 每次整个重新切分，incremental 用 IncrementalTokenizer
+ * 每次操作是两次编辑
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IncrementalTokenizerBenchmark {
+
+    private static final String CHUNK = "fn f(n: int, x: double) -> double {\n"
+            + "    // 一行注释\n"
+            + "    let i: int = 0;\n"
+            + "    let s: double = 0.0;\n"
+            + "    while i < n {\n"
+            + "        s = s + x * 1.5e2 - 'a' as double;\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putstr(\"sum: \\n\");\n"
+            + "    return s;\n"
+            + "}\n";
+
+    @Param({"1024"})
+    public int kilobytes;
+
+    private String source;
+    private int offset;
+    private IncrementalTokenizer incremental;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < kilobytes * 1024) {
+            sb.append(CHUNK);
+        }
+        source = sb.toString();
+        // 在中间某个 let 后面敲字符
+        offset = source.indexOf("let i", source.length() / 2) + 5;
+        incremental = new IncrementalTokenizer(source);
+    }
+
+    @Benchmark
+    public int full() throws Exception {
+        String typed = source.substring(0, offset) + "x" + source.substring(offset);
+        int n = new IncrementalTokenizer(typed).getTokens().size();
+        return n + new IncrementalTokenizer(source).getTokens().size();
+    }
+
+    @Benchmark
+    public int incremental() throws Exception {
+        incremental.edit(offset, 0, "x");
+        return incremental.edit(offset, 1, "").newEnd;
+    }
+}
@@ -0,0 +1,106 @@
+package miniplc0java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.analyser.SymbolTable;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.O0Writer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.util.Ty;
+
+/**
+ * 对比函数段的两种序列化方式：
+ * legacy 是原来的 ArrayList<Byte> + listTobyte，writer 是 O0Writer
+ * 程序一共 1M 条指令，分布在 1000 个函数里
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class O0WriterBenchmark {
+
+    @Param({"1000000"})
+    public int instructionCount;
+
+    private ArrayList<Function> funcTable;
+    private CompileContext context;
+
+    @Setup
+    public void setup() {
+        int functions = 1000;
+        ArrayList<Token> globals = new ArrayList<>();
+        funcTable = new ArrayList<>();
+        for (int f = 0; f < functions; f++) {
+            String name = "f" + f;
+            globals.add(new Token(TokenType.STRING_LITERAL, name));
+            Function func = new Function(name, f, f);
+            func.setReturnType(Ty.UINT);
+            func.localCount = 4;
+            for (int i = 0; i < instructionCount / functions; i++) {
+                // 大致模仿 Analyser 生成的指令分布
+                switch (i % 8) {
+                    case 0:
+                        func.addInstruction(new Instruction(Operation.loca, i & 3));
+                        break;
+                    case 1:
+                        func.addInstruction(new Instruction(Operation.load64));
+                        break;
+                    case 2:
+                        func.addInstruction(new Instruction(Operation.push, (long) i));
+                        break;
+                    case 3:
+                        func.addInstruction(new Instruction(Operation.addi));
+                        break;
+                    case 4:
+                        func.addInstruction(new Instruction(Operation.cmpi));
+                        break;
+                    case 5:
+                        func.addInstruction(new Instruction(Operation.brtrue, 1));
+                        break;
+                    case 6:
+                        func.addInstruction(new Instruction(Operation.br, -6));
+                        break;
+                    default:
+                        func.addInstruction(new Instruction(Operation.store64));
+                        break;
+                }
+            }
+            funcTable.add(func);
+        }
+        context = new CompileContext(new SymbolTable(), globals, funcTable);
+    }
+
+    @Benchmark
+    public byte[] legacy() {
+        List<Byte> ret = new ArrayList<Byte>();
+        ret.addAll(Instruction.getIntBytes(funcTable.size()));
+        for (Function f : funcTable) {
+            ret.addAll(Instruction.getIntBytes(f.offset));
+            ret.addAll(Instruction.getIntBytes(1));
+            ret.addAll(Instruction.getIntBytes(f.calParamSlot()));
+            ret.addAll(Instruction.getIntBytes(f.localCount));
+            ret.addAll(Instruction.getIntBytes(f.instructions.size()));
+            for (Instruction i : f.instructions) {
+                i.toString(ret);
+            }
+        }
+        return Instruction.listTobyte(ret);
+    }
+
+    @Benchmark
+    public byte[] writer() {
+        O0Writer out = new O0Writer();
+        Instruction.addFunc(out, context);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+package miniplc0java;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.optimizer.PeepholeOptimizer;
+import miniplc0java.optimizer.SsaOptimizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+
+/**
+ * 优化前后在 MiniVm 上的运行时间：none 不优化，peephole 只做窥孔优化，ssa 是 -O(SSA 优化再窥孔优化)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OptimizerBenchmark {
+
+    private static final String FIB = "fn fib(n: int) -> int {\n"
+            + "    if n < 2 {\n"
+            + "        return n;\n"
+            + "    }\n"
+            + "    return fib(n - 1) + fib(n - 2);\n"
+            + "}\n"
+            + "fn main() -> void {\n"
+            + "    putint(fib(20));\n"
+            + "}\n";
+
+    // 循环里有重复的下标计算和只读一次的临时变量
+    private static final String LOOPS = "fn main() -> void {\n"
+            + "    let i: int = 0;\n"
+            + "    let s: int = 0;\n"
+            + "    while i < 200 {\n"
+            + "        let j: int = 0;\n"
+            + "        let row: int = i * 200;\n"
+            + "        while j < 200 {\n"
+            + "            let k: int = row + j;\n"
+            + "            let t: int = k * k;\n"
+            + "            s = s + (row + j) * (row + j) - t + j;\n"
+            + "            j = j + 1;\n"
+            + "        }\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putint(s);\n"
+            + "}\n";
+
+    private static final String GLOBALS = "let n: int = 0;\n"
+            + "let acc: int = 0;\n"
+            + "fn step(x: int) -> int {\n"
+            + "    let y: int = x * 3 + 1;\n"
+            + "    let half: int = x / 2;\n"
+            + "    if half * 2 == x {\n"
+            + "        return half;\n"
+            + "    }\n"
+            + "    return y;\n"
+            + "}\n"
+            + "fn main() -> void {\n"
+            + "    let i: int = 1;\n"
+            + "    while i < 300 {\n"
+            + "        let x: int = i;\n"
+            + "        while x != 1 {\n"
+            + "            x = step(x);\n"
+            + "            n = n + 1;\n"
+            + "        }\n"
+            + "        acc = acc + n;\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putint(acc);\n"
+            + "}\n";
+
+    @Param({"fib", "loops", "globals"})
+    public String program;
+
+    @Param({"none", "peephole", "ssa"})
+    public String level;
+
+    private MiniVm vm;
+
+    @Setup
+    public void setup() throws Exception {
+        String source;
+        switch (program) {
+            case "fib":
+                source = FIB;
+                break;
+            case "loops":
+                source = LOOPS;
+                break;
+            default:
+                source = GLOBALS;
+                break;
+        }
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(source))));
+        analyser.analyse();
+        CompileContext ctx = analyser.getContext();
+        if (level.equals("peephole"))
+            PeepholeOptimizer.optimize(ctx.funcTable, null);
+        else if (level.equals("ssa"))
+            SsaOptimizer.optimize(ctx, null);
+        vm = new MiniVm(new ArrayList<>(ctx.funcTable), Instruction.globalValues(ctx),
+                new ByteArrayInputStream(new byte[0]), new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Benchmark
+    public void run() {
+        vm.Run();
+    }
+}
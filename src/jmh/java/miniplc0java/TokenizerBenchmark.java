@@ -0,0 +1,77 @@
+package miniplc0java;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 从文件读入一个很大的 c0 源文件并切成 token，包括读文件的时间
+ * tokenize 逐个创建 Token，tokenizeAll 写进 TokenBuffer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TokenizerBenchmark {
+
+    private static final String CHUNK = "fn f(n: int, x: double) -> double {\n"
+            + "    // 一行注释\n"
+            + "    let i: int = 0;\n"
+            + "    let s: double = 0.0;\n"
+            + "    while i < n {\n"
+            + "        if i >= 10 { break; }\n"
+            + "        s = s + x * 1.5e2 - 'a' as double;\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putstr(\"sum: \\n\");\n"
+            + "    return s;\n"
+            + "}\n";
+
+    @Param({"100"})
+    public int megabytes;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("tokenizer", ".c0");
+        long size = (long) megabytes << 20;
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (long written = 0; written < size; written += CHUNK.length()) {
+                out.write(CHUNK);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long tokenize() throws Exception {
+        Tokenizer tokenizer = new Tokenizer(new StringIter(Files.newBufferedReader(file, StandardCharsets.UTF_8)));
+        long count = 0;
+        while (tokenizer.nextToken().getTokenType() != TokenType.EOF) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int tokenizeAll() throws Exception {
+        Tokenizer tokenizer = new Tokenizer(new StringIter(Files.newBufferedReader(file, StandardCharsets.UTF_8)));
+        return tokenizer.tokenizeAll().size();
+    }
+}
@@ -0,0 +1,139 @@
+package miniplc0java;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.O0Module;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.ThreadedVm;
+
+/**
+ * 对比几种执行方式：
+ * miniVm 是逐条 switch Operation 的 MiniVm，threaded 是预解码的 ThreadedVm，
+ * jit 是打开编译层的 ThreadedVm
+ * 每秒执行的指令数见结果里的 instructions 一列，按 MiniVm 执行的 o0 指令条数计算
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VmDispatchBenchmark {
+
+    private static final String FIB = "fn fib(n: int) -> int {\n"
+            + "    if n < 2 {\n"
+            + "        return n;\n"
+            + "    }\n"
+            + "    return fib(n - 1) + fib(n - 2);\n"
+            + "}\n"
+            + "fn main() -> void {\n"
+            + "    putint(fib(22));\n"
+            + "}\n";
+
+    private static final String LOOPS = "fn main() -> void {\n"
+            + "    let i: int = 0;\n"
+            + "    let s: int = 0;\n"
+            + "    while i < 300 {\n"
+            + "        let j: int = 0;\n"
+            + "        while j < 300 {\n"
+            + "            s = s + i * j;\n"
+            + "            j = j + 1;\n"
+            + "        }\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putint(s);\n"
+            + "}\n";
+
+    private static final String DOUBLES = "fn main() -> void {\n"
+            + "    let i: int = 0;\n"
+            + "    let x: double = 0.0;\n"
+            + "    while i < 50000 {\n"
+            + "        x = x * 0.5 + 1.25 / (x + 2.0);\n"
+            + "        i = i + 1;\n"
+            + "    }\n"
+            + "    putdouble(x);\n"
+            + "}\n";
+
+    @Param({"fib", "loops", "doubles"})
+    public String program;
+
+    // 虚拟机可以重复 Run，编译好的代码在多次运行之间保留
+    private MiniVm miniVm;
+    private ThreadedVm threaded;
+    private ThreadedVm jit;
+    private long steps;
+
+    /**
+     * 按迭代累计执行的指令条数，JMH 会换算成每秒的值
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        String source;
+        switch (program) {
+            case "fib":
+                source = FIB;
+                break;
+            case "loops":
+                source = LOOPS;
+                break;
+            default:
+                source = DOUBLES;
+                break;
+        }
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(source))));
+        analyser.analyse();
+        List<Function> functions = new ArrayList<>(analyser.getContext().funcTable);
+        List<byte[]> globals = Instruction.globalValues(analyser.getContext());
+        O0Module module = O0Module.of(functions, globals);
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+        miniVm = new MiniVm(functions, globals, in, sink);
+        threaded = new ThreadedVm(module, in, sink);
+        jit = new ThreadedVm(module, in, sink, 1000);
+        miniVm.Run();
+        steps = miniVm.getSteps();
+    }
+
+    @Benchmark
+    public void miniVm(Counters counters) {
+        miniVm.Run();
+        counters.instructions += steps;
+    }
+
+    @Benchmark
+    public void threaded(Counters counters) {
+        threaded.Run();
+        counters.instructions += steps;
+    }
+
+    @Benchmark
+    public void jit(Counters counters) {
+        jit.Run();
+        counters.instructions += steps;
+    }
+}
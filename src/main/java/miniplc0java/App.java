@@ -1,15 +1,24 @@
 package miniplc0java;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.CompileContext;
 import miniplc0java.analyser.Function;
 import miniplc0java.analyser.SymbolEntry;
 import miniplc0java.error.CompileError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.optimizer.SsaOptimizer;
 import miniplc0java.tokenizer.StringIter;
 import miniplc0java.tokenizer.Token;
 import miniplc0java.tokenizer.TokenType;
@@ -33,8 +42,42 @@ public class App {
             return;
         }
 
+        CompileCache cache = null;
+        if (result.getString("cache") != null) {
+            // 只有 -l、--batch 和 --server 用得上缓存，客户端和 -t 不看它，免得以为它生效了
+            if (result.getString("connect") != null || result.getBoolean("tokenize")) {
+                System.err.println("'--cache' cannot be combined with '--connect' or '--tokenize'.");
+                System.exit(3);
+                return;
+            }
+            cache = new CompileCache(Path.of(result.getString("cache")), result.getLong("cacheSize") << 20);
+        }
+
+        if (result.getString("batch") != null) {
+            System.exit(runBatch(result, cache));
+            return;
+        }
+        if (result.getString("server") != null) {
+            var server = new CompileServer(result.getString("server"), cache);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // 反正要退出了
+                }
+            }));
+            System.err.println("listening on " + server.getLocalAddress());
+            server.serve();
+            return;
+        }
+
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
+        if (inputFileName == null || outputFileName == null) {
+            System.err.println("Please specify an input file and '--output', or use '--batch'.");
+            System.exit(3);
+            return;
+        }
 
         InputStream input;
         if (inputFileName.equals("-")) {
@@ -50,27 +93,40 @@ public class App {
             }
         }
 
-        PrintStream output;
-        if (outputFileName.equals("-")) {
-            output = System.out;
-        } else {
+        if (result.getString("connect") != null) {
+            System.exit(runClient(result.getString("connect"), input, outputFileName, result.getBoolean("optimize")));
+            return;
+        }
+
+        if (cache != null && result.getBoolean("analyse")) {
+            // 命中时不编译，没有优化报告；缓存的结果和是否并行分析无关，不接受这两个选项免得以为它们生效了
+            if (result.getBoolean("optReport") || result.getBoolean("parallel")) {
+                System.err.println("'--cache' cannot be combined with '--opt-report' or '--parallel'.");
+                System.exit(3);
+                return;
+            }
+            byte[] o0;
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
-            } catch (FileNotFoundException e) {
-                System.err.println("Cannot open output file.");
-                e.printStackTrace();
-                System.exit(2);
+                o0 = cache.compile(input.readAllBytes(), result.getBoolean("optimize"));
+            } catch (Exception e) {
+                // 遇到错误不输出，直接退出
+                System.err.println(e);
+                System.exit(1);
                 return;
             }
+            try (WritableByteChannel output = openOutputChannel(outputFileName)) {
+                output.write(ByteBuffer.wrap(o0));
+            }
+            return;
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
+        // 整个文件读进一个 char[]，不再经过 Scanner 按行切分
+        var iter = new StringIter(new InputStreamReader(input));
         var tokenizer = tokenize(iter);
 
         if (result.getBoolean("tokenize")) {
             // tokenize
+            PrintStream output = openOutput(outputFileName);
             var tokens = new ArrayList<Token>();
             try {
                 while (true) {
@@ -95,40 +151,35 @@ public class App {
             }
         } else if (result.getBoolean("analyse")) {
             // analyze
-            var analyzer = new Analyser(tokenizer);
-            List<Instruction> instructions;
+            // --parallel：先读所有函数头，再多线程分析函数体
+            var analyzer = result.getBoolean("parallel") ? new Analyser(tokenizer, newPool(result)) : new Analyser(tokenizer);
             try {
-                instructions = analyzer.analyse();
+                analyzer.analyse();
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
                 System.err.println(e);
                 System.exit(1);
                 return;
             }
-            // 标准头magic + version
-//            System.out.println("输出标准头");
-            output.write(Instruction.addHead());
-            // 全局表
-//            System.out.println("输出全局表");
-            output.write(Instruction.addGlob());
-            // pass
+            CompileContext ctx = analyzer.getContext();
             boolean debug = false;
             if (debug)
-                for (Token t : Instruction.globalVarTable) {
-                    if (Analyser.getSymbol(Instruction.symbolTable, t.getValueString()) != null)
-                        System.out.println(t.getValueString() + " " + Analyser.getSymbol(Instruction.symbolTable, t.getValueString()).getType());
+                for (Token t : ctx.globalVarTable) {
+                    if (Analyser.getSymbol(ctx.symbolTable, t.getValueString()) != null)
+                        System.out.println(t.getValueString() + " " + Analyser.getSymbol(ctx.symbolTable, t.getValueString()).getType());
                     else
                         System.out.println(t.getValueString() + " " + "STRING");
                 }
-//            System.out.println("输出函数指令");
-            // pass
-//            for (Function f : Instruction.funcTable) {
-//                System.out.println(f.getReturnType());
-//            }
-            output.write(Instruction.addFunc());
+            if (result.getBoolean("optimize"))
+                SsaOptimizer.optimize(ctx, result.getBoolean("optReport") ? System.err : null);
+            // 标准头magic + version，全局表，函数指令
+            // 逐个函数流式写出，不在内存里拼出整个模块
+            try (WritableByteChannel output = openOutputChannel(outputFileName)) {
+                Instruction.writeModule(output, ctx);
+            }
             if (debug) {
                 int line = 0;
-                for (Function f : Instruction.funcTable) {
+                for (Function f : ctx.funcTable) {
                     System.out.println("[Function " + f.offset + "]" + f.getName() + " " + f.localCount + " " + f.calParamSlot() + "->0/1");
                     for (Instruction i : f.instructions) {
                         System.out.println(line + ":" + i.debug());
@@ -142,14 +193,133 @@ public class App {
         }
     }
 
+    // -j 个线程，默认和 CPU 个数相同
+    private static ForkJoinPool newPool(Namespace result) {
+        int jobs = result.getInt("jobs");
+        return new ForkJoinPool(jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * --batch：编译列表文件或目录里的所有 c0 文件，-o 给出时是输出目录
+     *
+     * @return 退出码，有文件编译失败时为 1
+     */
+    private static int runBatch(Namespace result, CompileCache cache) throws IOException {
+        Path batch = Path.of(result.getString("batch"));
+        String outputDir = result.getString("output");
+        List<Path> inputs = BatchCompiler.listInputs(batch);
+        Path root = Files.isDirectory(batch) ? batch : batch.toAbsolutePath().getParent();
+        var compiler = new BatchCompiler(root, outputDir == null ? null : Path.of(outputDir),
+                result.getBoolean("optimize"), System.err, cache);
+        var pool = newPool(result);
+        long begin = System.nanoTime();
+        int failed;
+        try {
+            failed = compiler.run(inputs, pool);
+        } finally {
+            pool.shutdown();
+        }
+        long ms = (System.nanoTime() - begin) / 1_000_000;
+        System.err.println("batch: " + (inputs.size() - failed) + " compiled, " + failed + " failed, " + ms + " ms"
+                + (cache == null ? "" : ", cache " + cache.hits() + " hits " + cache.misses() + " misses"));
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * --connect：交给 --server 编译，输出和 -l 相同
+     *
+     * @return 退出码，编译错误为 1
+     */
+    private static int runClient(String address, InputStream input, String outputFileName, boolean optimize)
+            throws IOException {
+        CompileClient.Reply reply;
+        try (var client = new CompileClient(address)) {
+            reply = client.compile(input.readAllBytes(), optimize);
+        }
+        if (!reply.isOk()) {
+            System.err.println(reply.error);
+            return 1;
+        }
+        try (WritableByteChannel output = openOutputChannel(outputFileName)) {
+            output.write(ByteBuffer.wrap(reply.data));
+        }
+        return 0;
+    }
+
+    private static PrintStream openOutput(String outputFileName) {
+        if (outputFileName.equals("-")) {
+            return System.out;
+        }
+        try {
+            return new PrintStream(new FileOutputStream(outputFileName));
+        } catch (FileNotFoundException e) {
+            System.err.println("Cannot open output file.");
+            e.printStackTrace();
+            System.exit(2);
+            return null;
+        }
+    }
+
+    private static WritableByteChannel openOutputChannel(String outputFileName) {
+        if (outputFileName.equals("-")) {
+            // 标准输出关闭时只 flush，不关掉 System.out，之后还可能往上打印
+            WritableByteChannel out = Channels.newChannel(System.out);
+            return new WritableByteChannel() {
+                private boolean open = true;
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    return out.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return open;
+                }
+
+                @Override
+                public void close() {
+                    open = false;
+                    System.out.flush();
+                }
+            };
+        }
+        try {
+            return FileChannel.open(Path.of(outputFileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Cannot open output file.");
+            e.printStackTrace();
+            System.exit(2);
+            return null;
+        }
+    }
+
     private static ArgumentParser buildArgparse() {
         var builder = ArgumentParsers.newFor("miniplc0-java");
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
-                .action(Arguments.store());
-        parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
+        parser.addArgument("-O", "--optimize").help("Optimize the generated code").action(Arguments.storeTrue());
+        parser.addArgument("--opt-report").help("Print instruction counts before/after optimization")
+                .dest("optReport").action(Arguments.storeTrue());
+        parser.addArgument("-o", "--output").help("Set the output file (the output directory with --batch)")
+                .dest("output").action(Arguments.store());
+        parser.addArgument("--batch").help("Compile every .c0 in a directory, or every path listed in a file")
+                .dest("batch").action(Arguments.store());
+        parser.addArgument("--server").help("Keep running and compile requests from a Unix socket path or host:port")
+                .dest("server").action(Arguments.store());
+        parser.addArgument("--connect").help("Compile the input on a running --server")
+                .dest("connect").action(Arguments.store());
+        parser.addArgument("--cache").help("Reuse compiled o0 files from this directory, keyed by source hash; used by -l, --batch and --server, not with --opt-report, --parallel, --connect or -t")
+                .dest("cache").action(Arguments.store());
+        parser.addArgument("--cache-size").help("Size limit of --cache in MiB").dest("cacheSize")
+                .type(Long.class).setDefault(256L).action(Arguments.store());
+        parser.addArgument("--parallel").help("Analyse function bodies in parallel after reading all signatures")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-j", "--jobs").help("Number of threads for --batch and --parallel, defaults to the number of CPUs")
+                .dest("jobs").type(Integer.class).setDefault(0).action(Arguments.store());
+        parser.addArgument("file").nargs("?").dest("input").action(Arguments.store()).help("Input file");
         return parser;
     }
 
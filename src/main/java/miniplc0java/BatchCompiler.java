@@ -0,0 +1,188 @@
+package miniplc0java;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.FunctionCache;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.optimizer.SsaOptimizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * --batch：一个 JVM 里编译很多个 c0 文件，省掉每个文件一次的 JVM 启动
+ * 输入按下标二分成 ForkJoinPool 的任务，空闲线程互相窃取，每个文件各自输出一个 .o0
+ * 每次编译的状态都在自己的 Analyser 和 CompileContext 里，线程之间没有共享的可变状态
+ *
+ * 一个文件出错只打印错误，不影响其它文件
+ */
+public class BatchCompiler {
+    private final Path root;
+    private final Path outputDir;
+    private final boolean optimize;
+    private final PrintStream err;
+    private final CompileCache cache;
+
+    /**
+     * @param root      输入所在的目录，outputDir 不为 null 时输出保留相对它的路径
+     * @param outputDir 为 null 时输出到源文件旁边
+     * @param err       错误信息输出的地方
+     * @param cache     为 null 时不用缓存
+     */
+    public BatchCompiler(Path root, Path outputDir, boolean optimize, PrintStream err, CompileCache cache) {
+        this.root = root.toAbsolutePath().normalize();
+        this.outputDir = outputDir;
+        this.optimize = optimize;
+        this.err = err;
+        this.cache = cache;
+    }
+
+    /**
+     * --batch 的参数可以是目录(递归找所有 .c0)，也可以是每行一个路径的列表文件
+     * 列表里的相对路径相对列表文件所在的目录，空行和 # 开头的行跳过
+     */
+    public static List<Path> listInputs(Path batch) throws IOException {
+        if (Files.isDirectory(batch)) {
+            try (Stream<Path> files = Files.walk(batch)) {
+                return files.filter(p -> p.toString().endsWith(".c0") && Files.isRegularFile(p))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+        Path base = batch.toAbsolutePath().getParent();
+        List<Path> ret = new ArrayList<>();
+        for (String line : Files.readAllLines(batch)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            ret.add(base.resolve(line));
+        }
+        return ret;
+    }
+
+    /**
+     * 编译一个文件，a.c0 输出 a.o0
+     */
+    public Path outputOf(Path input) {
+        String name = input.getFileName().toString();
+        if (name.endsWith(".c0"))
+            name = name.substring(0, name.length() - 3);
+        name += ".o0";
+        if (outputDir == null)
+            return input.resolveSibling(name);
+        Path abs = input.toAbsolutePath().normalize();
+        if (!abs.startsWith(root))
+            return outputDir.resolve(name);
+        return outputDir.resolve(root.relativize(abs)).resolveSibling(name);
+    }
+
+    /**
+     * 在 pool 里编译所有输入
+     *
+     * @return 失败的文件数
+     */
+    public int run(List<Path> inputs, ForkJoinPool pool) {
+        return pool.invoke(new Task(inputs, 0, inputs.size()));
+    }
+
+    /**
+     * 编译一个文件
+     *
+     * @return 成功为 true，失败时错误已经输出到 err
+     */
+    public boolean compileOne(Path input) {
+        Path output = outputOf(input);
+        CompileContext ctx = null;
+        byte[] o0 = null;
+        try {
+            if (cache != null) {
+                o0 = cache.compile(Files.readAllBytes(input), optimize);
+            } else {
+                try (Reader reader = new InputStreamReader(Files.newInputStream(input))) {
+                    ctx = compile(reader, optimize);
+                }
+            }
+        } catch (Exception | StackOverflowError e) {
+            err.println(input + ": " + e);
+            return false;
+        }
+        try {
+            Files.createDirectories(output.toAbsolutePath().getParent());
+            try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (o0 != null)
+                    out.write(ByteBuffer.wrap(o0));
+                else
+                    Instruction.writeModule(out, ctx);
+            }
+        } catch (IOException | CompileError e) {
+            err.println(output + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 分析(和优化)一个源文件，和单文件模式走同一条路
+     */
+    public static CompileContext compile(Reader source, boolean optimize) throws CompileError {
+        return compile(source, optimize, null);
+    }
+
+    /**
+     * @param functions 上一次编译同一个文件留下的记录，为 null 时不做增量编译
+     */
+    public static CompileContext compile(Reader source, boolean optimize, FunctionCache functions) throws CompileError {
+        var analyser = new Analyser(new Tokenizer(new StringIter(source)), functions);
+        analyser.analyse();
+        CompileContext ctx = analyser.getContext();
+        if (optimize)
+            SsaOptimizer.optimize(ctx, null);
+        return ctx;
+    }
+
+    // 区间只剩一个文件时直接编译，否则对半分开，一半 fork 出去给别的线程偷
+    private class Task extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> inputs;
+        private final int from;
+        private final int to;
+
+        Task(List<Path> inputs, int from, int to) {
+            this.inputs = inputs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= 1) {
+                if (from == to)
+                    return 0;
+                return compileOne(inputs.get(from)) ? 0 : 1;
+            }
+            int mid = (from + to) >>> 1;
+            Task right = new Task(inputs, mid, to);
+            right.fork();
+            int failed = new Task(inputs, from, mid).compute();
+            return failed + right.join();
+        }
+    }
+}
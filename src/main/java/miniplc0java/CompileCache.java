@@ -0,0 +1,229 @@
+package miniplc0java;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import miniplc0java.analyser.FunctionCache;
+
+/**
+ * --cache：按源文件内容寻址的编译缓存，命中时直接返回存下来的 o0，不再分析和生成代码
+ * 键是 SHA-256(编译器版本, 选项, 源文件的字节)，文件放在 dir/前两位/键.o0
+ *
+ * 多个编译进程可以共用一个目录：先写临时文件再原子地 rename 过去，读到的要么是完整的旧文件要么是完整的新文件
+ * 总大小超过上限时按最后使用时间(文件的修改时间，命中时更新)删掉最久没用的
+ */
+public class CompileCache {
+    // 改了代码生成而 jar 没变的时候(比如直接跑 class 目录)手动改这个
+    static final String VERSION = "c0-5";
+    private static final String SUFFIX = ".o0";
+    // o0 文件的 magic，读到的文件开头不对就当没命中
+    private static final byte[] MAGIC = {0x72, 0x30, 0x3b, 0x3e};
+
+    private final Path dir;
+    private final long maxBytes;
+    private final String version;
+    // 缓存目录总大小的估计，别的进程也在写，超过上限时重新统计
+    private final AtomicLong size;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public CompileCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.version = compilerVersion();
+        Files.createDirectories(dir);
+        this.size = new AtomicLong(totalSize(entries()));
+        // 上限可能比上次小
+        if (size.get() > maxBytes)
+            evict();
+    }
+
+    /**
+     * 编译一个源文件，结果和 App -l 输出的文件相同
+     * 编译错误不缓存
+     */
+    public byte[] compile(byte[] source, boolean optimize) throws Exception {
+        return compile(source, optimize, null);
+    }
+
+    /**
+     * @param functions 没命中时用来增量编译，为 null 时不用
+     */
+    public byte[] compile(byte[] source, boolean optimize, FunctionCache functions) throws Exception {
+        String key = key(source, optimize);
+        byte[] cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        byte[] o0 = CompileServer.compile(source, optimize, functions);
+        try {
+            put(key, o0);
+        } catch (IOException | UncheckedIOException e) {
+            // 缓存写不进去不影响编译
+        }
+        return o0;
+    }
+
+    public int hits() {
+        return hits.get();
+    }
+
+    public int misses() {
+        return misses.get();
+    }
+
+    String key(byte[] source, boolean optimize) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+        sha.update(version.getBytes());
+        sha.update((byte) 0);
+        sha.update((byte) (optimize ? 1 : 0));
+        sha.update(source);
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : sha.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    byte[] get(String key) {
+        Path p = path(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(p);
+        } catch (IOException e) {
+            // 没有，或者刚被别的进程淘汰
+            return null;
+        }
+        if (bytes.length < MAGIC.length || bytes[0] != MAGIC[0] || bytes[1] != MAGIC[1]
+                || bytes[2] != MAGIC[2] || bytes[3] != MAGIC[3])
+            return null;
+        try {
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // 只读的缓存目录也能用，只是不更新使用时间
+        }
+        return bytes;
+    }
+
+    void put(String key, byte[] o0) throws IOException {
+        Path p = path(key);
+        Files.createDirectories(p.getParent());
+        Path tmp = Files.createTempFile(p.getParent(), key, ".tmp");
+        try {
+            Files.write(tmp, o0);
+            try {
+                Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (size.addAndGet(o0.length) > maxBytes)
+            evict();
+    }
+
+    /**
+     * 按修改时间从旧到新删，删到上限的 90%，免得之后每次 put 都要重新统计
+     */
+    synchronized void evict() throws IOException {
+        List<Path> entries = entries();
+        long total = totalSize(entries);
+        if (total > maxBytes) {
+            long target = maxBytes / 10 * 9;
+            // 先取出时间再排序，排序中间别的进程命中会改修改时间
+            Map<Path, Long> used = new HashMap<>();
+            for (Path p : entries) {
+                used.put(p, lastUsed(p));
+            }
+            List<Path> byAge = new ArrayList<>(entries);
+            byAge.sort(Comparator.comparing(used::get));
+            for (Path p : byAge) {
+                if (total <= target)
+                    break;
+                long n = fileSize(p);
+                try {
+                    Files.delete(p);
+                    total -= n;
+                } catch (NoSuchFileException e) {
+                    // 别的进程已经删了
+                    total -= n;
+                }
+            }
+        }
+        size.set(total);
+    }
+
+    private List<Path> entries() throws IOException {
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+    }
+
+    private static long totalSize(List<Path> entries) {
+        long total = 0;
+        for (Path p : entries) {
+            total += fileSize(p);
+        }
+        return total;
+    }
+
+    private static long fileSize(Path p) {
+        try {
+            return Files.size(p);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastUsed(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 编译器版本：VERSION 加上 jar 的大小和修改时间，重新打包之后旧的缓存自动失效
+     */
+    private static String compilerVersion() {
+        String v = VERSION;
+        try {
+            Path jar = Path.of(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isRegularFile(jar))
+                v += ":" + Files.size(jar) + ":" + Files.getLastModifiedTime(jar).toMillis();
+        } catch (Exception e) {
+            // 拿不到就只用 VERSION
+        }
+        return v;
+    }
+}
@@ -0,0 +1,64 @@
+package miniplc0java;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * --connect：把源文件发给 --server 编译，协议见 CompileServer
+ * 一个连接上可以连续编译多个文件
+ */
+public class CompileClient implements AutoCloseable {
+    /**
+     * 一次编译的结果，成功时 data 是 o0 的字节，否则 error 是错误信息
+     */
+    public static class Reply {
+        public final byte[] data;
+        public final String error;
+
+        Reply(byte[] data, String error) {
+            this.data = data;
+            this.error = error;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public CompileClient(String address) throws IOException {
+        this.channel = CompileServer.connect(address);
+        this.in = new DataInputStream(Channels.newInputStream(channel));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    public Reply compile(byte[] source, boolean optimize) throws IOException {
+        out.writeByte(optimize ? CompileServer.FLAG_OPTIMIZE : 0);
+        out.writeInt(source.length);
+        out.write(source);
+        out.flush();
+
+        int status = in.readUnsignedByte();
+        int length = in.readInt();
+        if (length < 0 || length > CompileServer.MAX_REQUEST)
+            throw new IOException("Bad reply length " + length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        if (status == CompileServer.STATUS_OK)
+            return new Reply(data, null);
+        return new Reply(null, new String(data, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
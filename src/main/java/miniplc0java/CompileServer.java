@@ -0,0 +1,231 @@
+package miniplc0java;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.FunctionCache;
+import miniplc0java.instruction.Instruction;
+
+/**
+ * --server：常驻的编译进程，省掉每次编译的 JVM 启动、类加载和冷代码
+ * 地址是文件路径时监听 Unix domain socket，是 host:port 或 :port 时监听 TCP
+ * Unix domain socket 要 Java 16，这里通过反射打开，代码仍然按 Java 14 编译
+ *
+ * 协议，一个连接上可以连续发多个请求，整数都是大端：
+ * 请求  u8 flags(FLAG_OPTIMIZE)  u32 length  源文件的字节
+ * 回复  u8 status(STATUS_OK / STATUS_ERROR)  u32 length  o0 的字节，或者 UTF-8 的错误信息
+ *
+ * 每个连接一个线程，编译状态都在各自的 CompileContext 里，增量编译的记录(FunctionCache)每个连接一份
+ */
+public class CompileServer {
+    public static final int FLAG_OPTIMIZE = 1;
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    // 超过这个长度的请求直接断开
+    static final int MAX_REQUEST = 64 << 20;
+
+    private final ServerSocketChannel server;
+    // Unix domain socket 对应的文件，关闭时删掉，TCP 时为 null
+    private final Path socketFile;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "compile-server");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 为 null 时不用缓存
+    private final CompileCache cache;
+
+    public CompileServer(String address) throws IOException {
+        this(address, null);
+    }
+
+    public CompileServer(String address, CompileCache cache) throws IOException {
+        this.cache = cache;
+        if (isTcp(address)) {
+            this.socketFile = null;
+            this.server = ServerSocketChannel.open();
+            this.server.bind(tcpAddress(address));
+        } else {
+            this.socketFile = Path.of(address);
+            removeStaleSocket(socketFile);
+            this.server = openUnix(ServerSocketChannel.class);
+            this.server.bind(unixAddress(socketFile));
+        }
+    }
+
+    /**
+     * 删掉上一次没有正常退出时留下的 socket 文件；路径上是别的文件时不动它，直接报错
+     */
+    private static void removeStaleSocket(Path path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isOther())
+            throw new IOException(path + ": address in use / not a socket");
+        Files.delete(path);
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * 一直接受连接，直到 close()
+     */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel ch = server.accept();
+                if (socketFile == null)
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                workers.execute(() -> handle(ch));
+            }
+        } catch (ClosedChannelException e) {
+            // close() 了
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+        workers.shutdownNow();
+        if (socketFile != null)
+            Files.deleteIfExists(socketFile);
+    }
+
+    private void handle(SocketChannel ch) {
+        try (ch) {
+            var in = new DataInputStream(Channels.newInputStream(ch));
+            // 一个回复攒成一次写
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            // 编辑器一般在一个连接上反复编译同一个文件，只重新分析改过的函数
+            var functions = new FunctionCache();
+            while (true) {
+                int flags;
+                try {
+                    flags = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    // 客户端发完了
+                    return;
+                }
+                int length = in.readInt();
+                if (length < 0 || length > MAX_REQUEST)
+                    return;
+                byte[] source = new byte[length];
+                in.readFully(source);
+
+                int status = STATUS_OK;
+                byte[] reply;
+                try {
+                    boolean optimize = (flags & FLAG_OPTIMIZE) != 0;
+                    reply = cache != null ? cache.compile(source, optimize, functions) : compile(source, optimize, functions);
+                } catch (Exception | StackOverflowError e) {
+                    status = STATUS_ERROR;
+                    reply = e.toString().getBytes(StandardCharsets.UTF_8);
+                }
+                out.writeByte(status);
+                out.writeInt(reply.length);
+                out.write(reply);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 连接断了，只影响这一个客户端
+        }
+    }
+
+    /**
+     * 编译一个源文件，结果和 App -l 输出的文件相同
+     */
+    static byte[] compile(byte[] source, boolean optimize) throws Exception {
+        return compile(source, optimize, null);
+    }
+
+    static byte[] compile(byte[] source, boolean optimize, FunctionCache functions) throws Exception {
+        // 和单文件模式一样按平台默认编码读
+        CompileContext ctx = BatchCompiler.compile(new InputStreamReader(new ByteArrayInputStream(source)),
+                optimize, functions);
+        var bytes = new ByteArrayOutputStream();
+        Instruction.writeModule(Channels.newChannel(bytes), ctx);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 连接 --server 的地址，格式同 CompileServer(String)
+     */
+    static SocketChannel connect(String address) throws IOException {
+        if (isTcp(address)) {
+            SocketChannel ch = SocketChannel.open(tcpAddress(address));
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            return ch;
+        }
+        SocketChannel ch = openUnix(SocketChannel.class);
+        ch.connect(unixAddress(Path.of(address)));
+        return ch;
+    }
+
+    private static boolean isTcp(String address) {
+        int colon = address.lastIndexOf(':');
+        return colon >= 0 && colon < address.length() - 1 && address.substring(colon + 1).chars().allMatch(Character::isDigit);
+    }
+
+    private static InetSocketAddress tcpAddress(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        // 不写主机时只监听本机
+        return new InetSocketAddress(host.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host), port);
+    }
+
+    // ServerSocketChannel.open(ProtocolFamily) 和 SocketChannel.open(ProtocolFamily)
+    private static <T> T openUnix(Class<T> channelClass) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channelClass.cast(channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or later, use host:port instead", e);
+        }
+    }
+
+    // UnixDomainSocketAddress.of(path)
+    private static SocketAddress unixAddress(Path path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or later, use host:port instead", e);
+        }
+    }
+}
@@ -16,6 +16,8 @@ import miniplc0java.util.Pos;
 import miniplc0java.util.Ty;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public final class Analyser {
 
@@ -29,8 +31,9 @@ public final class Analyser {
 
     /**
      * 栈式符号表！！！！！
+     * 按名字散列，见 SymbolTable
      */
-    public static Stack<SymbolEntry> symbolTable = new Stack<SymbolEntry>();
+    SymbolTable symbolTable = new SymbolTable();
 
     /**
      * 当前代码块的嵌套层次，随 { } 变化
@@ -54,45 +57,120 @@ public final class Analyser {
     // 这里面不存放库函数，库函数作为字符串放入全局变量
     // 因此调用库函数之前，需要单独检查是否满足调用条件
     ArrayList<Function> funcTable = new ArrayList<Function>();
+    // 函数名到它在funcTable中的下标，和funcTable一起维护
+    HashMap<String, Integer> funcIndex = new HashMap<>();
 
     int locs = 0;
 
     private int calcFuncOffset(String name, Pos curPos) throws CompileError {
-        int i = 0;
-        for (Function f : funcTable) {
-            if (f.getName().equals(name))
-                return i;
-            i++;
-        }
-        throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
+        Integer i = funcIndex.get(name);
+        if (i == null)
+            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
+        return i;
+    }
+
+    private void addFunc(Function f) {
+        funcIndex.put(f.getName(), funcTable.size());
+        funcTable.add(f);
     }
 
     // 单纯的栈式符号表不支持字符串和库函数，因此单独开一个列表存
     // 也就是o0里面函数前面的所有东西
     // (为了目标代码格式)
     // 里面包括全局变量，字符串，库函数名，自定义函数名
-    // 这个表不进行去重检查
+    // 变量和自定义函数名不进行去重检查，字符串和库函数名经过stringPool去重
     ArrayList<Token> globalVarTable = new ArrayList<Token>();
 
+    // 字符串字面量和库函数名的常量池：内容 -> 在globalVarTable中的位置
+    // 相同的内容只占一个全局槽，push和callname都指向它
+    HashMap<String, Integer> stringPool = new HashMap<>();
+
+    // 符号表、全局表、函数表都属于这一次编译，不放在静态变量里
+    final CompileContext context;
+
+    // 增量编译，为 null 时每个函数都重新分析
+    final FunctionCache functionCache;
+    // 这一次编译的记录，成功后交给 functionCache
+    HashMap<String, FunctionCache.Record> newRecords = new HashMap<>();
+    // 正在分析的函数体的记录，不是增量编译或者不在函数体里时为 null
+    FunctionCache.Record recording = null;
+    int reusedCount = 0;
+    // 为了算指纹先读出来的函数体，不能复用时再从这里读
+    ArrayDeque<Token> replay = new ArrayDeque<>();
+    // 先读函数体时遇到的词法错误，replay 读完之后再抛，报错的顺序和不先读时一样
+    TokenizeError pendingError = null;
+
+    // 两遍模式：第一遍登记全局变量和所有函数头，函数体在 pool 里并行分析，为 null 时一遍分析
+    final ForkJoinPool pool;
+    // 两遍模式下正在生成代码的函数，为 null 时是函数表里的最后一个
+    Function curFunc = null;
+    // 两遍模式下函数体的最后一个 token，replay 读完之后一直返回它
+    Token bodyEnd = null;
+
+    // 函数体或全局声明的语法树，每次用之前清空，数组留着给下一个函数用
+    final Ast ast = new Ast();
+    final AstParser parser = new AstParser(this, ast);
+
     public Analyser(Tokenizer tokenizer) {
+        this(tokenizer, null, null);
+    }
+
+    /**
+     * @param functionCache 上一次编译留下的记录，复用没变的函数，编译成功后更新
+     */
+    public Analyser(Tokenizer tokenizer, FunctionCache functionCache) {
+        this(tokenizer, functionCache, null);
+    }
+
+    /**
+     * 两遍模式，函数体里可以用到后面才声明的全局变量和函数
+     * 字符串在全局表里排在所有函数名之后，所以输出和一遍分析的不逐字节相同，但和线程数无关
+     *
+     * @param pool 并行分析函数体的线程池
+     */
+    public Analyser(Tokenizer tokenizer, ForkJoinPool pool) {
+        this(tokenizer, null, pool);
+    }
+
+    private Analyser(Tokenizer tokenizer, FunctionCache functionCache, ForkJoinPool pool) {
         this.tokenizer = tokenizer;
         this.instructions = new ArrayList<>();
+        this.context = new CompileContext(symbolTable, globalVarTable, funcTable);
+        this.functionCache = functionCache;
+        this.pool = pool;
+    }
+
+    /**
+     * 两遍模式下分析一个函数体
+     * 全局的符号表、函数表只读，字符串先放进自己的全局表，合并时再按声明顺序放进 parent 的
+     */
+    private Analyser(Analyser parent, FunctionBody body) {
+        this.tokenizer = null;
+        this.instructions = new ArrayList<>();
+        this.symbolTable = new SymbolTable(parent.symbolTable);
+        this.funcTable = parent.funcTable;
+        this.funcIndex = parent.funcIndex;
+        this.context = parent.context;
+        this.functionCache = null;
+        this.pool = null;
+        this.curFunc = body.func;
+        this.replay = body.tokens;
+        this.pendingError = body.lexError;
+        this.bodyEnd = body.tokens.peekLast();
     }
 
     public List<Instruction> analyse() throws CompileError {
         analyseProgram();
-        addGlobToIns();
-        addFuncToIns();
+        if (functionCache != null)
+            functionCache.finish(newRecords, reusedCount, newRecords.size() - reusedCount);
         return instructions;
     }
 
-    private void addGlobToIns() {
-        Instruction.symbolTable = this.symbolTable;
-        Instruction.globalVarTable = this.globalVarTable;
-    }
-
-    private void addFuncToIns() {
-        Instruction.funcTable = this.funcTable;
+    /**
+     * @return 这次编译的符号表、全局表和函数表，analyse() 之后交给 Instruction 输出
+     */
+    public CompileContext getContext() {
+        return context;
     }
 
     /**
@@ -101,26 +179,36 @@ public final class Analyser {
      * @return
      * @throws TokenizeError
      */
-    private Token peek() throws TokenizeError {
+    Token peek() throws TokenizeError {
         if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
+            peekedToken = read();
         }
         return peekedToken;
     }
 
+    private Token read() throws TokenizeError {
+        if (!replay.isEmpty())
+            return replay.poll();
+        if (pendingError != null)
+            throw pendingError;
+        if (bodyEnd != null)
+            return bodyEnd;
+        return tokenizer.nextToken();
+    }
+
     /**
      * 获取下一个 Token
      *
      * @return
      * @throws TokenizeError
      */
-    private Token next() throws TokenizeError {
+    Token next() throws TokenizeError {
         if (peekedToken != null) {
             var token = peekedToken;
             peekedToken = null;
             return token;
         } else {
-            return tokenizer.nextToken();
+            return read();
         }
     }
 
@@ -131,7 +219,7 @@ public final class Analyser {
      * @return
      * @throws TokenizeError
      */
-    private boolean check(TokenType tt) throws TokenizeError {
+    boolean check(TokenType tt) throws TokenizeError {
         var token = peek();
         return token.getTokenType() == tt;
     }
@@ -143,7 +231,7 @@ public final class Analyser {
      * @return 如果匹配则返回这个 token，否则返回 null
      * @throws TokenizeError
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
+    Token nextIf(TokenType tt) throws TokenizeError {
         var token = peek();
         if (token.getTokenType() == tt) {
             return next();
@@ -159,7 +247,7 @@ public final class Analyser {
      * @return 这个 token
      * @throws CompileError 如果类型不匹配
      */
-    private Token expect(TokenType tt) throws CompileError {
+    Token expect(TokenType tt) throws CompileError {
         var token = peek();
         if (token.getTokenType() == tt) {
             return next();
@@ -186,6 +274,7 @@ public final class Analyser {
      */
     private void pushNestedBlock() {
         this.currentDepth++;
+        symbolTable.pushScope();
         this.stackBP = this.nextOffset;
     }
 
@@ -201,8 +290,7 @@ public final class Analyser {
     private void popNestedBlock() {
         // 字符串字面量，函数，加上全局变量，单独开一个地方存
         // 最终栈里面剩下的就是全局变量，不过没什么用
-        while (symbolTable.lastElement().getDepth() == this.currentDepth)
-            symbolTable.pop();
+        symbolTable.popScope();
         this.currentDepth--;
 //        this.currentDepth--;
 //        for (int i = this.nextOffset; i > this.stackBP; i--)
@@ -213,34 +301,28 @@ public final class Analyser {
     /**
      * 查找某个符号
      * 对于全局变量，这里假设所有声明都在函数声明之前！
-     * 否则需要多遍扫描
+     * 否则需要多遍扫描，见两遍模式 Analyser(Tokenizer, ForkJoinPool)
      *
      * @return
      */
-    public static SymbolEntry getSymbol(Stack<SymbolEntry> s, String name) {
-        for (int i = s.size() - 1; i >= 0; i--) {// 后面声明的符号会覆盖前面的
-            if (s.get(i).name.equals(name)) {
-                return s.get(i);
-            }
-        }
-        return null;
+    public static SymbolEntry getSymbol(SymbolTable s, String name) {
+        // 后面声明的符号会覆盖前面的
+        return s.get(name);
     }
 
     /**
      * 查找某个函数
      * 在c0中，函数都是全局变量，不存在嵌套声明
      *
-     * @param s
      * @param name
-     * @return
+     * @return 不存在时返回 null
      */
-    private Function getFunc(ArrayList<Function> s, String name) {
-        for (int i = s.size() - 1; i >= 0; i--) {// 后面声明的符号会覆盖前面的
-            if (s.get(i).name.equals(name)) {
-                return s.get(i);
-            }
-        }
-        return null;
+    private Function getFunc(String name) {
+        Integer i = funcIndex.get(name);
+        Function f = i == null ? null : funcTable.get(i);
+        if (recording != null && !recording.callees.containsKey(name))
+            recording.callees.put(name, FunctionCache.signature(f));
+        return f;
     }
 
     /**
@@ -249,6 +331,8 @@ public final class Analyser {
      * @return
      */
     private Function getCurFunc() {
+        if (curFunc != null)
+            return curFunc;
         // 应该在function列表的最后面（因为是刚加进来的）
         // 但最外层的指令不属于某个函数，比如分析完毕后，函数列表最后一条实际上不是当前函数！
         // 另外这样实现的话，调用库函数就不能在函数列表再压一个了，可以把库函数一开始都压进去
@@ -272,17 +356,19 @@ public final class Analyser {
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
     private void addSymbol(String name, Ty type, boolean isInitialized, boolean isConstant, Pos curPos) throws AnalyzeError {
-        if ((getSymbol(this.symbolTable, name) != null) &&
-                (getSymbol(this.symbolTable, name).depth == currentDepth)) {
+        SymbolEntry old = getSymbol(this.symbolTable, name);
+        if (old != null && old.depth == currentDepth) {
             // 支持覆盖，只有同一层次才算重复声明
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
             // 通过了重复声明检查
-            this.symbolTable.push(new SymbolEntry(name, type, isConstant, isInitialized, getNextVariableOffset(), currentDepth));
+            SymbolEntry s = new SymbolEntry(name, type, isConstant, isInitialized, getNextVariableOffset(), currentDepth);
+            this.symbolTable.push(s);
             // 全局变量不需要赋初值，在_start里面用赋值语句完成
             if (currentDepth == 0) {
                 // int OR double OR function(void)
                 addGlobVar(new Token(Token.tyToTokenType(type), name));
+                s.offset = calcGlobOffset();
             }
         }
     }
@@ -311,7 +397,7 @@ public final class Analyser {
      * @throws AnalyzeError
      */
     private void setFuncType(String name, Ty type) throws AnalyzeError {
-        var entry = getFunc(this.funcTable, name);
+        var entry = getFunc(name);
         entry.setReturnType(type);
     }
 
@@ -322,7 +408,7 @@ public final class Analyser {
      * @param param
      */
     private void addFuncParam(String name, Variable param) {
-        Function entry = getFunc(this.funcTable, name);
+        Function entry = getFunc(name);
         entry.addParamList(param);
     }
 
@@ -354,8 +440,6 @@ public final class Analyser {
 //        }
 //    }
 
-    boolean isCondExpr;// 如歌表达式位于判断条件，要加一个跳转指令
-
     /**
      * 获取变量是否是常量
      *
@@ -386,6 +470,21 @@ public final class Analyser {
         return this.globalVarTable.size() - 1;
     }
 
+    /**
+     * 字符串字面量或库函数名在全局表中的位置，第一次出现时才加进全局表
+     */
+    private int internString(String string) {
+        if (recording != null)
+            recording.strings.add(string);
+        Integer offset = stringPool.get(string);
+        if (offset == null) {
+            addGlobVar(new Token(TokenType.STRING_LITERAL, string));
+            offset = calcGlobOffset();
+            stringPool.put(string, offset);
+        }
+        return offset;
+    }
+
     /**
      * item -> function | decl_stmt
      * program -> item*
@@ -395,6 +494,126 @@ public final class Analyser {
         expect(TokenType.EOF);
     }
 
+    /**
+     * 两遍模式
+     * 第一遍按顺序分析全局变量(代码放进 _start)和函数头，函数体的 token 先存起来
+     * 然后每个函数体交给一个新的 Analyser 在 pool 里分析，最后按声明顺序把字符串放进全局表、重新链接
+     * 全局变量的初值里仍然只能调用前面的函数
+     */
+    private void analyseItemsInParallel(Function start) throws CompileError {
+        ArrayList<FunctionBody> bodies = new ArrayList<>();
+        CompileError error = null;
+        try {
+            while (check(TokenType.LET_KW) || check(TokenType.CONST_KW) || check(TokenType.FN_KW)) {
+                if (nextIf(TokenType.FN_KW) != null) {
+                    Function f = analyseFunctionHead();
+                    ArrayList<SymbolEntry> params = symbolTable.currentScope();
+                    boolean complete = readFunctionBody();
+                    // 读出来的 token 整个交给函数体，不复制
+                    bodies.add(new FunctionBody(f, params, replay, pendingError));
+                    replay = new ArrayDeque<>();
+                    pendingError = null;
+                    popNestedBlock();
+                    // 分析这个函数体时一定会报错
+                    if (!complete)
+                        break;
+                } else {
+                    curFunc = start;
+                    analyseDeclaration();
+                    curFunc = null;
+                }
+            }
+        } catch (CompileError e) {
+            // 前面的函数体里的错误先报
+            error = e;
+        }
+        pool.invoke(new BodyTask(bodies, 0, bodies.size()));
+        for (FunctionBody body : bodies) {
+            if (body.error != null)
+                throw body.error;
+        }
+        if (error != null)
+            throw error;
+        for (FunctionBody body : bodies) {
+            for (String string : body.links.strings) {
+                internString(string);
+            }
+            body.func.instructions = body.links.relink(symbolTable, stringPool, funcIndex);
+        }
+    }
+
+    /**
+     * 两遍模式下在自己的 Analyser 里分析一个函数体，和 analyseFunctionDeclaration 的后半部分相同
+     */
+    private void analyseBody(FunctionBody body) throws CompileError {
+        pushNestedBlock();
+        for (SymbolEntry s : body.params) {
+            symbolTable.push(new SymbolEntry(s.name, s.type, s.isConstant, s.isInitialized, s.stackOffset, s.depth));
+        }
+        // 借用增量编译的记录，记下要重新链接的字符串
+        recording = new FunctionCache.Record(null, null, 0);
+        inFuncDec = true;
+        analyseBlockStmt();
+        inFuncDec = false;
+        popNestedBlock();
+        if (body.func.getReturnType() == Ty.VOID)
+            body.func.addInstruction(new Instruction(Operation.ret));
+        recording.finish(body.func);
+        body.links = recording;
+    }
+
+    // 第一遍留下的函数体：函数、参数那一层的符号、函数体的 token，以及分析的结果
+    private static class FunctionBody {
+        final Function func;
+        final ArrayList<SymbolEntry> params;
+        final ArrayDeque<Token> tokens;
+        final TokenizeError lexError;
+        FunctionCache.Record links;
+        CompileError error;
+
+        FunctionBody(Function func, ArrayList<SymbolEntry> params, ArrayDeque<Token> tokens, TokenizeError lexError) {
+            this.func = func;
+            this.params = params;
+            this.tokens = tokens;
+            this.lexError = lexError;
+        }
+    }
+
+    // 和 BatchCompiler 一样对半分开，一半 fork 出去
+    private class BodyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<FunctionBody> bodies;
+        private final int from;
+        private final int to;
+
+        BodyTask(List<FunctionBody> bodies, int from, int to) {
+            this.bodies = bodies;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from == to)
+                    return;
+                FunctionBody body = bodies.get(from);
+                try {
+                    new Analyser(Analyser.this, body).analyseBody(body);
+                } catch (CompileError e) {
+                    body.error = e;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            BodyTask right = new BodyTask(bodies, mid, to);
+            right.fork();
+            new BodyTask(bodies, from, mid).compute();
+            right.join();
+        }
+    }
+
     /**
      * decl_stmt -> let_decl_stmt | const_decl_stmt
      * - let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
@@ -404,20 +623,20 @@ public final class Analyser {
     private void analyseMain() throws CompileError {
         // 全局变量赋值的目标代码放在_start中,且不会被栈式符号表弹出
         Function start = new Function("_start", 0, 0);
-        this.funcTable.add(start);
+        addFunc(start);
         setFuncType("_start", Ty.VOID);
-        while (check(TokenType.LET_KW) || check(TokenType.CONST_KW) || check(TokenType.FN_KW)) {
-            if (check(TokenType.LET_KW))
-                analyseVariableDeclaration();
-            else if (check(TokenType.CONST_KW))
-                analyseConstantDeclaration();
+        if (pool != null)
+            analyseItemsInParallel(start);
+        else while (check(TokenType.LET_KW) || check(TokenType.CONST_KW) || check(TokenType.FN_KW)) {
+            if (check(TokenType.LET_KW) || check(TokenType.CONST_KW))
+                analyseDeclaration();
                 // 我们假设全局变量声明都在函数之前
             else// if (check(TokenType.FN_KW))
                 analyseFunctionDeclaration();
         }
         // 把字符串_start放在全局表最后
         addGlobVar(new Token(TokenType.STRING_LITERAL, "_start"));
-        getFunc(funcTable, "_start").offset = globalVarTable.size() - 1;
+        getFunc("_start").offset = globalVarTable.size() - 1;
         // 调用main
         Pos curPos = nextIf(TokenType.EOF).getEndPos();
         // 找不到main会报错
@@ -428,99 +647,49 @@ public final class Analyser {
     }
 
     /**
-     * let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
-     * ty -> IDENT(int, void, double)
+     * 全局的 let 或 const，读成一个节点后马上生成
      */
-    private void analyseVariableDeclaration() throws CompileError {
-//        System.out.println("变量声明分析");
-        if (nextIf(TokenType.LET_KW) != null) {
-            // 标识符
-            Token nameToken = expect(TokenType.IDENT);
-            // 名字
-            String name = nameToken.getValueString();
-            Pos curPos = nameToken.getStartPos();
-            // 冒号
-            expect(TokenType.COLON);
-            // 加入符号表
-            Token typeToken = expect(TokenType.IDENT);
-            Ty type = typeToken.getType();
-            // 变量不能是void类型
-            if (type == Ty.VOID)
-                throw new AnalyzeError(ErrorCode.VarTypeVoid, curPos);
-            addSymbol(name, type, false, false, curPos);
-            // 等于号
-            if (nextIf(TokenType.ASSIGN) != null) {
-                locateVar(name, curPos);
-                // 表达式(带类型，可能发生类型转换)
-                ExpVal rightExp = analyseExpression();
-                if (rightExp.type != type) {
-                    throw new AnalyzeError(ErrorCode.TypeUnmatch, curPos);
-                }
-                Object value = rightExp.value;
-                declareSymbol(name, curPos, value);
-                // 赋值
-                getCurFunc().addInstruction(new Instruction(Operation.store64));
-                // 添加到全局表
-//                if (this.currentDepth == 0)
-//                    addGlobVar(new Token(TokenType.UINT_LITERAL, rightExp.value));
-
-            } else {
-                // 添加到全局表
-//                if (this.currentDepth == 0)
-//                    addGlobVar(new Token(TokenType.UINT_LITERAL, 0));
-            }
-            // 添加到函数的局部变量
-            if (inFuncDec) {
-                getCurFunc().localCount++;
-//                System.out.println("got a loc var"+" "+name);
-            }
-            // 分号
-            expect(TokenType.SEMICOLON);
-        }
+    private void analyseDeclaration() throws CompileError {
+        ast.clear();
+        genDeclaration(parser.parseDecl());
     }
 
     /**
+     * let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
      * const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
      * ty -> IDENT(int, void, double)
      */
-    private void analyseConstantDeclaration() throws CompileError {
-        if (nextIf(TokenType.CONST_KW) != null) {
-            // 标识符
-            Token nameToken = expect(TokenType.IDENT);
-            // 名字
-            String name = nameToken.getValueString();
-            Pos curPos = nameToken.getStartPos();
-            // 冒号
-            expect(TokenType.COLON);
-            // 加入符号表
-            Token typeToken = expect(TokenType.IDENT);
-            Ty type = typeToken.getType();
-            // 变量不能是void类型
-            if (type == Ty.VOID)
-                throw new AnalyzeError(ErrorCode.VarTypeVoid, curPos);
-            addSymbol(name, type, true, true, curPos);
+    private void genDeclaration(int node) throws CompileError {
+        boolean isConst = ast.kind[node] == Ast.CONST;
+        // 标识符
+        Token nameToken = ast.tok[node];
+        // 名字
+        String name = nameToken.getValueString();
+        Pos curPos = nameToken.getStartPos();
+        // 加入符号表
+        Ty type = ast.tok[ast.b[node]].getType();
+        // 变量不能是void类型
+        if (type == Ty.VOID)
+            throw new AnalyzeError(ErrorCode.VarTypeVoid, curPos);
+        addSymbol(name, type, isConst, isConst, curPos);
+        // 等于号，const类型必须赋值，读的时候已经检查过
+        if (ast.a[node] >= 0) {
             // 定位，便于赋值
             locateVar(name, curPos);
-            // 等于号,const类型必须赋值
-            expect(TokenType.ASSIGN);
             // 表达式(带类型，可能发生类型转换)
-            ExpVal rightExp = analyseExpression();
+            ExpVal rightExp = genExpression(ast.a[node]);
             if (rightExp.type != type) {
                 throw new AnalyzeError(ErrorCode.TypeUnmatch, curPos);
             }
-            Object value = rightExp.value;
+            // 常量的初值是常量时记下来，读这个常量时直接 push
+            Object value = isConst ? rightExp.constant : rightExp.value;
             declareSymbol(name, curPos, value);
-            // 添加到全局表
-//            if (this.currentDepth == 0)
-//                addGlobVar(new Token(TokenType.UINT_LITERAL, rightExp.value));
             // 赋值
             getCurFunc().addInstruction(new Instruction(Operation.store64));
-            // 添加到函数的局部变量
-            if (inFuncDec)
-                getCurFunc().localCount++;
-            // 分号
-            expect(TokenType.SEMICOLON);
         }
+        // 添加到函数的局部变量
+        if (inFuncDec)
+            getCurFunc().localCount++;
     }
 
     /**
@@ -532,79 +701,14 @@ public final class Analyser {
 
     private void analyseFunctionDeclaration() throws CompileError {
         if (nextIf(TokenType.FN_KW) != null) {
-            // 标识符
-            Token nameToken = expect(TokenType.IDENT);
-            // 名字
-            String name = nameToken.getValueString();
-            Pos curPos = nameToken.getStartPos();
-            // 函数返回值类型还不知道，先设为VOID
-            // 既解决函数和变量重名的问题，也便于求o0中的函数偏移量
-            addSymbol(name, Ty.FUNC, true, true, curPos);
-            // 添加到全局表(已经在addSymbol与全局变量一起加进去了)
-//            addGlobVar(new Token(TokenType.STRING_LITERAL, name));
-            // 已经在栈式符号表进行了重复性检查
-//            if (getFunc(this.funcTable, name) != null)
-//                throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
-            // new一个函数类，存放相关信息，为了便于被调用，放到单独的函数列表中
-            // 注意:这个偏移量是全局符号表里的
-            Function newFunc = new Function(name, globalVarTable.size() - 1, funcTable.size());
-            // 但函数可以调用自己，因此在分析函数体之前，应当已经加入列表了
-            this.funcTable.add(newFunc);
-            // 参数与局部变量都属于下一层======================================
-            pushNestedBlock();
-            // 左括号
-            expect(TokenType.L_PAREN);
-            // 由于返回值要在参数之前压栈，但一开始不知道返回类型，所以先假设为int
-            locs++;// 这个算无名变量
-            addSymbol("LoCc" + locs, Ty.UINT, false, false, curPos);
-            int retArg = symbolTable.size() - 1;
-            // 参数列表，可以为空
-            while (check(TokenType.IDENT) || check(TokenType.CONST_KW)) {
-                boolean isConst = false;
-                // 可能有const
-                if (nextIf(TokenType.CONST_KW) != null)
-                    isConst = true;
-                // 参数名
-                Token newVarName = nextIf(TokenType.IDENT);
-                String varName = newVarName.getValueString();
-                // 冒号
-                expect(TokenType.COLON);
-                // 类型
-                Token typeToken = expect(TokenType.IDENT);
-                Ty type = typeToken.getType();
-                // 变量不能是void类型
-                if (type == Ty.VOID)
-                    throw new AnalyzeError(ErrorCode.VarTypeVoid, curPos);
-                // 压入栈式符号表，但后面会被弹出
-                addSymbol(varName, type, false, isConst, curPos);
-                // 因此也压入函数的参数列表
-                Variable newParam = new Variable(varName, isConst, type);
-                addFuncParam(name, newParam);
-                // 有下一个的话，前面用逗号分隔
-                if (nextIf(TokenType.COMMA) == null)
-                    break;
-            }
-            // 右括号
-            expect(TokenType.R_PAREN);
-            // 箭头
-            expect(TokenType.ARROW);
-            // 返回值类型，需要回填
-            Token typeToken = expect(TokenType.IDENT);
-            Ty type = typeToken.getType();
-            setFuncType(name, type);
-            // 不需要返回值，再从符号表删掉
-            if (type == Ty.VOID) {
-                for (int i = retArg; i < symbolTable.size() - 1; i++) {
-                    symbolTable.set(i, symbolTable.get(i + 1));
-                }
-                symbolTable.pop();
-            }
+            Function newFunc = analyseFunctionHead();
+            String name = newFunc.getName();
             // 函数体，可能有return语句（需要检查类型）
             // 进入时记得增加嵌套层次
             // 局部变量计数
             inFuncDec = true;
-            // 函数体
-            analyseBlockStmt();
+            // 函数体，增量编译时没变的函数直接复用上一次的指令
+            boolean reused = analyseFunctionBody(newFunc);
             inFuncDec = false;
             // 退出该嵌套层次，回到上一层
 //            for (SymbolEntry s : symbolTable){
@@ -613,14 +717,192 @@ public final class Analyser {
 //            System.out.println();
             // 记得弹出和压入是成对操作======================================
             popNestedBlock();
-            // 保险期间，再返回一次
-            if (getFunc(funcTable, getCurFunc().getName()).getReturnType() == Ty.VOID)
+            // 保险期间，再返回一次，复用的指令里已经有了
+            if (!reused && getFunc(getCurFunc().getName()).getReturnType() == Ty.VOID)
                 getCurFunc().addInstruction(new Instruction(Operation.ret));
+            if (recording != null) {
+                recording.finish(newFunc);
+                newRecords.put(name, recording);
+                recording = null;
+            }
             // pass
 //            System.out.println("func:"+getCurFunc().getName()+"\tfinished.");
         }
     }
 
+    /**
+     * 函数头，fn 已经读过
+     * 返回时参数所在的一层还没有退出
+     */
+    private Function analyseFunctionHead() throws CompileError {
+        // 标识符
+        Token nameToken = expect(TokenType.IDENT);
+        // 名字
+        String name = nameToken.getValueString();
+        Pos curPos = nameToken.getStartPos();
+        // 函数返回值类型还不知道，先设为VOID
+        // 既解决函数和变量重名的问题，也便于求o0中的函数偏移量
+        addSymbol(name, Ty.FUNC, true, true, curPos);
+        // 添加到全局表(已经在addSymbol与全局变量一起加进去了)
+//            addGlobVar(new Token(TokenType.STRING_LITERAL, name));
+        // 已经在栈式符号表进行了重复性检查
+//            if (getFunc(this.funcTable, name) != null)
+//                throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
+        // new一个函数类，存放相关信息，为了便于被调用，放到单独的函数列表中
+        // 注意:这个偏移量是全局符号表里的
+        Function newFunc = new Function(name, globalVarTable.size() - 1, funcTable.size());
+        // 但函数可以调用自己，因此在分析函数体之前，应当已经加入列表了
+        addFunc(newFunc);
+        // 参数与局部变量都属于下一层======================================
+        pushNestedBlock();
+        // 左括号
+        expect(TokenType.L_PAREN);
+        // 由于返回值要在参数之前压栈，但一开始不知道返回类型，所以先假设为int
+        locs++;// 这个算无名变量
+        addSymbol("LoCc" + locs, Ty.UINT, false, false, curPos);
+        SymbolEntry retArg = getSymbol(symbolTable, "LoCc" + locs);
+        // 参数列表，可以为空
+        while (check(TokenType.IDENT) || check(TokenType.CONST_KW)) {
+            boolean isConst = false;
+            // 可能有const
+            if (nextIf(TokenType.CONST_KW) != null)
+                isConst = true;
+            // 参数名
+            Token newVarName = nextIf(TokenType.IDENT);
+            String varName = newVarName.getValueString();
+            // 冒号
+            expect(TokenType.COLON);
+            // 类型
+            Token typeToken = expect(TokenType.IDENT);
+            Ty type = typeToken.getType();
+            // 变量不能是void类型
+            if (type == Ty.VOID)
+                throw new AnalyzeError(ErrorCode.VarTypeVoid, curPos);
+            // 压入栈式符号表，但后面会被弹出
+            addSymbol(varName, type, false, isConst, curPos);
+            // 因此也压入函数的参数列表
+            Variable newParam = new Variable(varName, isConst, type);
+            addFuncParam(name, newParam);
+            // 有下一个的话，前面用逗号分隔
+            if (nextIf(TokenType.COMMA) == null)
+                break;
+        }
+        // 右括号
+        expect(TokenType.R_PAREN);
+        // 箭头
+        expect(TokenType.ARROW);
+        // 返回值类型，需要回填
+        Token typeToken = expect(TokenType.IDENT);
+        Ty type = typeToken.getType();
+        setFuncType(name, type);
+        // 不需要返回值，再从符号表删掉
+        if (type == Ty.VOID) {
+            symbolTable.remove(retArg);
+        }
+        return newFunc;
+    }
+
+    /**
+     * 分析函数体
+     * 增量编译时先把函数体的 token 读到匹配的 } 为止
+     * 函数头、函数体、进入时的状态、依赖都和上一次相同就复用上一次的指令，否则把读出来的 token 放回去正常分析，并记下这一次的依赖
+     *
+     * @return 是否复用了上一次的指令
+     */
+    private boolean analyseFunctionBody(Function f) throws CompileError {
+        if (functionCache == null) {
+            analyseBlockStmt();
+            return false;
+        }
+        if (!readFunctionBody()) {
+            analyseBlockStmt();
+            return false;
+        }
+        String head = FunctionCache.head(f);
+        int state = bodyState();
+        FunctionCache.Record old = functionCache.records.get(f.getName());
+        if (old != null && old.entryState == state && old.sameSource(head, replay)
+                && old.matches(symbolTable, funcIndex, funcTable)) {
+            replay.clear();
+            // 字符串按上一次的顺序放进全局表，和重新分析的结果一样
+            for (String string : old.strings) {
+                internString(string);
+            }
+            f.instructions = old.relink(symbolTable, stringPool, funcIndex);
+            f.localCount = old.localCount;
+            setBodyState(old.exitState);
+            locs += old.locsDelta;
+            newRecords.put(f.getName(), old);
+            reusedCount++;
+            return true;
+        }
+        recording = new FunctionCache.Record(head, replay.toArray(new Token[0]), state);
+        int locsBefore = locs;
+        symbolTable.getTrace = recording.globals;
+        symbolTable.getVarTrace = recording.vars;
+        try {
+            analyseBlockStmt();
+        } finally {
+            symbolTable.getTrace = null;
+            symbolTable.getVarTrace = null;
+        }
+        recording.exitState = bodyState();
+        recording.locsDelta = locs - locsBefore;
+        return false;
+    }
+
+    /**
+     * 把函数体的 token 读到 replay 里，到匹配的 } 为止
+     * 词法错误记在 pendingError 里，分析到那里时再抛
+     *
+     * @return 函数体是否完整
+     */
+    private boolean readFunctionBody() {
+        int depth = 0;
+        // 函数之间 replay 总是空的，直接从 tokenizer 读
+        Token t = peekedToken;
+        peekedToken = null;
+        try {
+            while (true) {
+                if (t == null)
+                    t = tokenizer.nextToken();
+                replay.add(t);
+                if (t.getTokenType() == TokenType.L_BRACE)
+                    depth++;
+                else if (t.getTokenType() == TokenType.R_BRACE)
+                    depth--;
+                // 不以 { 开头、缺 } 的都交给 analyseBlockStmt 报错
+                if (depth <= 0 || t.getTokenType() == TokenType.EOF)
+                    return depth == 0 && t.getTokenType() == TokenType.R_BRACE;
+                t = null;
+            }
+        } catch (TokenizeError e) {
+            pendingError = e;
+            return false;
+        }
+    }
+
+    /**
+     * 分析函数体时会读写的标志，增量编译时复用的函数必须在相同的状态下进入
+     */
+    private int bodyState() {
+        return (inLoop ? 1 : 0) | loopDepth << 1;
+    }
+
+    private void setBodyState(int state) {
+        inLoop = (state & 1) != 0;
+        loopDepth = state >> 1;
+    }
+
+    /**
+     * 增量编译时记下需要重新链接的指令
+     */
+    private Instruction link(Instruction ins, int kind, String name) {
+        if (recording != null)
+            recording.link(ins, kind, name);
+        return ins;
+    }
+
     /**
      * 表达式类
      * 存放表达式的值和类型
@@ -630,6 +912,10 @@ public final class Analyser {
         // 记录表达式的值和类型
         Ty type;
         Object value;
+        // 表达式的指令从这里开始
+        int start;
+        // 编译期就能算出的值，Long 或 Double，否则为 null
+        Object constant;
 
         ExpVal(Ty type, Object value) {
             this.type = type;
@@ -637,45 +923,53 @@ public final class Analyser {
         }
     }
 
+    /**
+     * 函数体：先整个读成语法树，再按语法树生成代码
+     * 语法错误在读的时候就报，所以同一个函数里先报语法错误
+     *
+     * @throws CompileError
+     */
+    private void analyseBlockStmt() throws CompileError {
+        ast.clear();
+        int body = parser.parseBody(getCurFunc().getReturnType() != Ty.VOID);
+        genBlockStmt(body);
+    }
+
     /**
      * stmt ->
-     * expr_stmt    开始符号集较为复杂，放在最后分析
-     * | decl_stmt  以let或const开始
-     * | if_stmt    以if开始
-     * | while_stmt 以while开始
-     * | return_stmt以return开始
-     * | block_stmt 以{开始
-     * | empty_stmt 空语句直接跳过
+     * expr_stmt    直接是 EXPR 节点
+     * | decl_stmt  LET 或 CONST
+     * | if_stmt    IF
+     * | while_stmt WHILE
+     * | return_stmt RETURN
+     * | block_stmt BLOCK
+     * | empty_stmt 读的时候已经跳过了
      */
-    private void analyseStatement() throws CompileError {
-        // 声明语句
-        if (check(TokenType.EOF))
-            throw new AnalyzeError(ErrorCode.ExpectedToken, expect(TokenType.EOF).getEndPos());
-        if (check(TokenType.LET_KW))
-            analyseVariableDeclaration();
-        else if (check(TokenType.CONST_KW))
-            analyseConstantDeclaration();
-        else if (check(TokenType.IF_KW))
-            analyseIfStmt();
-        else if (check(TokenType.ELSE_KW))// else只能跟在if里面，不能单独出现
-            throw new AnalyzeError(ErrorCode.ElseHaveNoIf, expect(TokenType.ELSE_KW).getEndPos());
-        else if (check(TokenType.WHILE_KW))
-            analyseWhileStmt();
-        else if (check(TokenType.BREAK_KW))
-            analyseBreakStmt();
-        else if (check(TokenType.CONTINUE_KW))
-            analyseContinueStmt();
-        else if (check(TokenType.RETURN_KW))
-            analyseReturnStmt();
-        else if (check(TokenType.L_BRACE))
-            analyseBlockStmt();
-            // 空语句直接跳过
-        else if (check(TokenType.SEMICOLON)) {
-            next();
+    private void genStatement(int node) throws CompileError {
+        switch (ast.kind[node]) {
+            case Ast.LET:
+            case Ast.CONST:
+                genDeclaration(node);
+                break;
+            case Ast.IF:
+                genIfStmt(node);
+                break;
+            case Ast.WHILE:
+                genWhileStmt(node);
+                break;
+            case Ast.BREAK:
+            case Ast.CONTINUE:
+                genBreakStmt(node);
+                break;
+            case Ast.RETURN:
+                genReturnStmt(node);
+                break;
+            case Ast.BLOCK:
+                genBlockStmt(node);
+                break;
+            default:
+                genExpression(node);
         }
-        // 无效语句在表达式中单独处理
-        else
-            analyseExpression();
     }
 
     /**
@@ -688,38 +982,63 @@ public final class Analyser {
      *
      * @throws CompileError
      */
-    private void analyseIfStmt() throws CompileError {
-        expect(TokenType.IF_KW);
-        // 判断条件
-        isCondExpr = true;
-        isSingleCond = true;
-        analyseExpression();
-        isCondExpr = false;
-        // 先占位
-        getCurFunc().addInstruction(new Instruction(Operation.br, 0));
-        int loc1 = getCurFunc().instructions.size() - 1;
-        analyseBlockStmt();
+    private void genIfStmt(int node) throws CompileError {
+        // 判断条件，不成立时跳走，先占位
+        int loc1 = genCondition(ast.a[node], false);
+        genBlockStmt(ast.b[node]);
+        // Else是可选的，后面可能嵌套一个if
+        if (ast.c[node] < 0) {
+            patch(loc1, getCurFunc().instructions.size() - 1);
+            return;
+        }
         // 先占位
         getCurFunc().addInstruction(new Instruction(Operation.br, 0));
         int loc2 = getCurFunc().instructions.size() - 1;
         // 回填
-        getCurFunc().instructions.set(loc1, new Instruction(Operation.br, loc2 - loc1));
-        if (nextIf(TokenType.ELSE_KW) != null)// Else是可选的
-        {
-            if (check(TokenType.IF_KW)) {
-                // 存在嵌套
-                analyseIfStmt();
-            } else
-                analyseBlockStmt();
-        }
-        // 这个占位似乎可以省略
-//        getCurFunc().addInstruction(new Instruction(Operation.br, 0));
+        patch(loc1, loc2);
+        genStatement(ast.c[node]);
         int loc3 = getCurFunc().instructions.size() - 1;
         // 回填
         // 此时控制跳到else块之后，需保证仍然有语句，比如显式的Ret
         getCurFunc().instructions.set(loc2, new Instruction(Operation.br, loc3 - loc2));
     }
 
+    /**
+     * 判断条件：比较直接编译成比较加一条条件跳转，不先算出真假值再判断
+     * 条件为 jumpIf 时跳走，否则顺序执行下去
+     *
+     * @return 条件跳转指令的位置，偏移等跳转目标确定后用 patch 回填
+     * @throws CompileError
+     */
+    private int genCondition(int node, boolean jumpIf) throws CompileError {
+        Function curFunc = getCurFunc();
+        int cond = ast.a[node];
+        // 外面套的括号不影响判断
+        while (ast.kind[cond] == Ast.PAREN)
+            cond = ast.a[ast.a[cond]];
+        Operation branch;
+        if (ast.kind[cond] == Ast.COMPARE) {
+            // 条件成立时跳走用的指令，不成立时跳走换成相反的
+            branch = genCompareOp(cond);
+        } else {
+            // 单项的判断谓词，非 0 为真
+            genCompare(cond);
+            branch = Operation.brtrue;
+        }
+        if (!jumpIf)
+            branch = branch == Operation.brtrue ? Operation.brfalse : Operation.brtrue;
+        addFuncIns(curFunc.getName(), new Instruction(branch, 0));
+        return curFunc.instructions.size() - 1;
+    }
+
+    /**
+     * 回填 loc 处的条件跳转，跳到 to 之后的那条指令
+     */
+    private void patch(int loc, int to) {
+        Operation branch = getCurFunc().instructions.get(loc).getOpt();
+        getCurFunc().instructions.set(loc, new Instruction(branch, to - loc));
+    }
+
     /**
      * while_stmt -> 'while' expr block_stmt
      * //                    ^~~~ ^~~~~~~~~~while_block
@@ -730,82 +1049,59 @@ public final class Analyser {
      */
     boolean inLoop = false;
     int loopDepth = 0;// while存在嵌套问题，不同的break和continue指向的位置不同
-    Stack<Integer> breakPoints = new Stack<>();// 存放break语句的指令偏移
-    Stack<Integer> continuePoints = new Stack<>();// 存放continue语句的指令偏移
+    ArrayList<Integer> breakPoints = null;// 当前这层循环里break语句的指令偏移
+    ArrayList<Integer> continuePoints = null;// 当前这层循环里continue语句的指令偏移
 
-    private void analyseWhileStmt() throws CompileError {
-        // FIXME:break & continue的实现(仅循环内使用
-        expect(TokenType.WHILE_KW);
+    private void genWhileStmt(int node) throws CompileError {
         loopDepth++;// 与代码块{}的嵌套深度不同
-        int breakBP = breakPoints.size();
-        int continueBP = continuePoints.size();
-        // 占位
-        getCurFunc().addInstruction(new Instruction(Operation.br, 0));
-        int loc1 = getCurFunc().instructions.size() - 1;
-        // 判断条件
-        isCondExpr = true;
-        isSingleCond = true;
-        analyseExpression();
-        isCondExpr = false;
-        // 占位
+        // 外层循环的留着，这一层结束后换回去
+        ArrayList<Integer> outerBreaks = breakPoints;
+        ArrayList<Integer> outerContinues = continuePoints;
+        breakPoints = new ArrayList<>();
+        continuePoints = new ArrayList<>();
+        // 判断条件放在循环体后面，每次循环只走一条条件跳转：
+        // br cond; body; cond: 判断条件; 成立时跳回 body
+        // 占位，跳到判断条件
+        var instructions = getCurFunc().instructions;
         getCurFunc().addInstruction(new Instruction(Operation.br, 0));
-        int loc2 = getCurFunc().instructions.size() - 1;
+        int loc1 = instructions.size() - 1;
+        // 判断条件按源码顺序先生成(报错的顺序也一样)，先拿出来，生成完循环体再接上
+        genCondition(ast.a[node], true);
+        var cond = new ArrayList<>(instructions.subList(loc1 + 1, instructions.size()));
+        instructions.subList(loc1 + 1, instructions.size()).clear();
         inLoop = true;
-        analyseBlockStmt();// 这里面可能有break或continue语句,或嵌套了一层while!!!
+        genBlockStmt(ast.b[node]);// 这里面可能有break或continue语句,或嵌套了一层while!!!
         if (loopDepth == 1)
             inLoop = false;
-        int loc3 = getCurFunc().instructions.size() - 1;
-        // 占位+回填
-        loc3++;
-        getCurFunc().addInstruction(new Instruction(Operation.br, loc1 - loc3));
-        // 回填
+        // 判断条件从 loc2 之后开始
+        int loc2 = instructions.size() - 1;
+        instructions.set(loc1, new Instruction(Operation.br, loc2 - loc1));
+        instructions.addAll(cond);
+        // 条件跳转是判断条件的最后一条
+        int loc3 = instructions.size() - 1;
+        // 回填，跳回循环体开头
+        patch(loc3, loc1);
+        // 回填break和continue
         // 同样也应确保后面还有指令，这与返回路径检查挂钩(while块是函数最后语句的情况)
-        getCurFunc().instructions.set(loc2, new Instruction(Operation.br, loc3 - loc2));
-        // 回填break
-        while (breakPoints.size() > breakBP)
-        {
-            int i = breakPoints.lastElement();
+        for (int i : breakPoints) {
             getCurFunc().instructions.set(i, new Instruction(Operation.br, loc3 - i));
-            breakPoints.pop();
         }
-        // 回填continue
-//        for (Integer i : continuePoints)
-//            System.out.println(i);
-        while (continuePoints.size() > continueBP)
-        {
-            int j = continuePoints.lastElement();
-            getCurFunc().instructions.set(j, new Instruction(Operation.br, loc1 - j));
-            continuePoints.pop();
+        for (int j : continuePoints) {
+            getCurFunc().instructions.set(j, new Instruction(Operation.br, loc2 - j));
         }
+        breakPoints = outerBreaks;
+        continuePoints = outerContinues;
         loopDepth--;
     }
 
-    private void analyseBreakStmt() throws CompileError {
-        Token breakToken = expect(TokenType.BREAK_KW);
-        if (inLoop) {
-            // 占位
-            getCurFunc().instructions.add(new Instruction(Operation.br, 888));
-            int loc = getCurFunc().instructions.size()-1;
-            breakPoints.push(loc);
-//            System.out.println(loc+":break in depth"+loopDepth);
-            expect(TokenType.SEMICOLON);
-        }
-        else
-            throw new AnalyzeError(ErrorCode.BreakDenied, breakToken.getEndPos());
-    }
-
-    private void analyseContinueStmt() throws CompileError {
-        Token breakToken = expect(TokenType.CONTINUE_KW);
-        if (inLoop) {
-            // 占位
-            getCurFunc().instructions.add(new Instruction(Operation.br, 666));
-            int loc = getCurFunc().instructions.size()-1;
-            continuePoints.push(loc);
-//            System.out.println(loc+":continue in depth"+loopDepth);
-            expect(TokenType.SEMICOLON);
-        }
-        else
-            throw new AnalyzeError(ErrorCode.ContinueDenied, breakToken.getEndPos());
+    private void genBreakStmt(int node) throws CompileError {
+        boolean isBreak = ast.kind[node] == Ast.BREAK;
+        if (!inLoop)
+            throw new AnalyzeError(isBreak ? ErrorCode.BreakDenied : ErrorCode.ContinueDenied, ast.tok[node].getEndPos());
+        // 占位，这层循环结束时回填
+        getCurFunc().instructions.add(new Instruction(Operation.br, 0));
+        int loc = getCurFunc().instructions.size() - 1;
+        (isBreak ? breakPoints : continuePoints).add(loc);
     }
 
     /**
@@ -813,10 +1109,9 @@ public final class Analyser {
      *
      * @throws CompileError
      */
-    private void analyseReturnStmt() throws CompileError {
-        Token retToken = expect(TokenType.RETURN_KW);
+    private void genReturnStmt(int node) throws CompileError {
         // 这个报错位置其实不太对，但在同一行
-        Pos curPos = retToken.getEndPos();
+        Pos curPos = ast.tok[node].getEndPos();
         Function curFunc = getCurFunc();
         Ty retType = curFunc.getReturnType();
         if (retType == Ty.VOID) {
@@ -824,7 +1119,7 @@ public final class Analyser {
         } else {
             // 有返回类型的必须有返回值，还要类型一致
             addFuncIns(curFunc.getName(), new Instruction(Operation.arga, (int) 0));
-            ExpVal rightExp = analyseExpression();
+            ExpVal rightExp = genExpression(ast.a[node]);
             if (rightExp.type == Ty.VOID)
                 throw new AnalyzeError(ErrorCode.NoReturnValue, curPos);
             // 返回类型是否匹配
@@ -832,11 +1127,9 @@ public final class Analyser {
                 throw new AnalyzeError(ErrorCode.TypeUnmatch, curPos);
             }
             // TODO:int返回类型的函数 返回路径检查
-//            addFuncIns(curFunc.getName(), new Instruction(Operation.push, rightExp.value));
             addFuncIns(curFunc.getName(), new Instruction(Operation.store64));
             addFuncIns(curFunc.getName(), new Instruction(Operation.ret));
         }
-        expect(TokenType.SEMICOLON);
     }
 
     /**
@@ -844,13 +1137,11 @@ public final class Analyser {
      *
      * @throws CompileError
      */
-    private void analyseBlockStmt() throws CompileError {
-        expect(TokenType.L_BRACE);
+    private void genBlockStmt(int node) throws CompileError {
         pushNestedBlock();
-        // 语句不会以 } 开头
-        while (!check(TokenType.R_BRACE))
-            analyseStatement();
-        expect(TokenType.R_BRACE);
+        for (int s = ast.a[node]; s >= 0; s = ast.next[s]) {
+            genStatement(s);
+        }
         popNestedBlock();
     }
 
@@ -862,182 +1153,178 @@ public final class Analyser {
      * F -> A ( as int_ty | double_ty )
      * A -> ( - ) I
      * I -> IDENT | UINT | DOUBLE | func_call | '(' E ')' | IDENT = E
+     * 语法树里的左结合链按从左到右的顺序生成，和直接边读边生成的指令相同
      */
-    boolean isSingleCond = true;// 在判断条件中时，表示这只有一项，需要加brtrue指令
-    boolean inCall = false;// 函数调用时，参数列表里面的表达式也可能是一项，导致生成俩brtrue
+    private ExpVal genExpression(int node) throws CompileError {
+        return genCompare(ast.a[node]);
+    }
 
-    private ExpVal analyseExpression() throws CompileError {
-        Function curFunc = getCurFunc();
-        ExpVal expval = analyseC();// 第一项
-//        boolean isSingleCond = true;
-        while (true) {
-            var op = peek();
-            if (op.getTokenType() != TokenType.EQ &&
-                    op.getTokenType() != TokenType.NEQ &&
-                    op.getTokenType() != TokenType.LT &&
-                    op.getTokenType() != TokenType.GT &&
-                    op.getTokenType() != TokenType.LE &&
-                    op.getTokenType() != TokenType.GE) {
-                break;
-            }
-            isSingleCond = false;
-            // 运算符
-            next();
-            ExpVal rightExp = analyseC();
-            // 生成目标代码
-            if (rightExp.type == Ty.UINT) {
-                if (op.getTokenType() == TokenType.EQ) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brfalse, 1));
-                } else if (op.getTokenType() == TokenType.NEQ) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
-                } else if (op.getTokenType() == TokenType.LT) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setlt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
-                } else if (op.getTokenType() == TokenType.GT) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setgt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
-                } else if (op.getTokenType() == TokenType.LE) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setgt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brfalse, 1));
-                } else if (op.getTokenType() == TokenType.GE) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setlt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brfalse, 1));
-                } else
-                    ;// do nothing
-            } else // double
-            {
-                if (op.getTokenType() == TokenType.EQ) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpf));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brfalse, 1));
-                } else if (op.getTokenType() == TokenType.NEQ) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpi));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
-                } else if (op.getTokenType() == TokenType.LT) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpf));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setlt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
-                } else if (op.getTokenType() == TokenType.GT) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpf));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setgt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
-                } else if (op.getTokenType() == TokenType.LE) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpf));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setgt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brfalse, 1));
-                } else if (op.getTokenType() == TokenType.GE) {
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.cmpf));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.setlt));
-                    addFuncIns(curFunc.getName(), new Instruction(Operation.brfalse, 1));
-                } else
-                    ;// do nothing
-            }
+    // E -> C ( == | != | < | > | <= | >= C )
+    // 不在判断条件里的比较要算出 0/1 的真假值
+    private ExpVal genCompare(int node) throws CompileError {
+        if (ast.kind[node] != Ast.COMPARE)
+            return genArith(node);
+        String name = getCurFunc().getName();
+        TokenType op = ast.tok[node].getTokenType();
+        Operation branch = genCompareOp(node);
+        // == 和 != 栈顶是 cmpi/cmpf 的 -1/0/1，平方之后不等为 1
+        if (op == TokenType.EQ || op == TokenType.NEQ) {
+            addFuncIns(name, new Instruction(Operation.dup));
+            addFuncIns(name, new Instruction(Operation.muli));
         }
-        // 单项的判断谓词
-        if (isCondExpr && isSingleCond && !inCall) {
-//            System.out.println(curFunc.getName()+peek().getValueString());
-            addFuncIns(curFunc.getName(), new Instruction(Operation.brtrue, 1));
+        // 比较结果为 0 时成立的，和 1 异或把 0/1 反过来；not 是按位取反，不能用
+        if (branch == Operation.brfalse) {
+            addFuncIns(name, new Instruction(Operation.push, 1L));
+            addFuncIns(name, new Instruction(Operation.xor));
         }
-//        System.out.println(expval.value+expval.type.toString());
-        return expval;
+        return new ExpVal(Ty.UINT, 1);
     }
 
-    // C -> T { + | - T}
-    private ExpVal analyseC() throws CompileError {
-        ExpVal expVal = analyseT();
-        while (true) {
-            var op = peek();
-            if (op.getTokenType() != TokenType.PLUS &&
-                    op.getTokenType() != TokenType.MINUS) {
-                break;
-            }
-            // 运算符
-            next();
-            ExpVal rightExp = analyseT();
-            // todo:跳过类型检查
-            // 生成目标代码
-            if (op.getTokenType() == TokenType.PLUS) {
-                if ((rightExp != null) && (rightExp.type == Ty.DOUBLE))
-                    getCurFunc().addInstruction(new Instruction(Operation.addf));
-                else
-                    getCurFunc().addInstruction(new Instruction(Operation.addi));
-            } else if (op.getTokenType() == TokenType.MINUS) {
-                if ((rightExp != null) && (rightExp.type == Ty.DOUBLE))
-                    getCurFunc().addInstruction(new Instruction(Operation.subf));
-                else
-                    getCurFunc().addInstruction(new Instruction(Operation.subi));
-            } else
-                ;// do nothing
+    /**
+     * 生成比较两边的值和比较指令，返回比较成立时跳走用的条件跳转
+     * cmpi/cmpf 相等得 0，setlt/setgt 成立得 1
+     */
+    private Operation genCompareOp(int node) throws CompileError {
+        Function curFunc = getCurFunc();
+        genCompare(ast.a[node]);
+        TokenType op = ast.tok[node].getTokenType();
+        ExpVal rightExp = genArith(ast.b[node]);
+        // 生成目标代码
+        addFuncIns(curFunc.getName(), new Instruction(rightExp.type == Ty.UINT ? Operation.cmpi : Operation.cmpf));
+        if (op == TokenType.LT || op == TokenType.GE)
+            addFuncIns(curFunc.getName(), new Instruction(Operation.setlt));
+        else if (op == TokenType.GT || op == TokenType.LE)
+            addFuncIns(curFunc.getName(), new Instruction(Operation.setgt));
+        if (op == TokenType.EQ || op == TokenType.LE || op == TokenType.GE)
+            return Operation.brfalse;
+        return Operation.brtrue;
+    }
+
+    private ExpVal constExp(Ty type, Object constant) {
+        ExpVal ret = new ExpVal(type, constant);
+        ret.constant = constant;
+        return ret;
+    }
+
+    /**
+     * 把表达式 exp 已经生成的指令换成一条 push
+     */
+    private void replaceWithPush(ExpVal exp, Object constant) {
+        var instructions = getCurFunc().instructions;
+        while (instructions.size() > exp.start) {
+            instructions.remove(instructions.size() - 1);
         }
-        return expVal;
+        instructions.add(new Instruction(Operation.push, constant));
+        exp.constant = constant;
     }
 
-    //T -> F { * | / F}
-    private ExpVal analyseT() throws CompileError {
-        ExpVal expVal = analyseF();
-        while (true) {
-            var op = peek();
-            if (op.getTokenType() != TokenType.MUL &&
-                    op.getTokenType() != TokenType.DIV) {
-                break;
-            }
-            // 运算符
-            next();
-            ExpVal rightExp = analyseF();
-            // todo:跳过类型检查
-            // 生成目标代码
-            if (op.getTokenType() == TokenType.MUL) {
-                if ((rightExp != null) && (rightExp.type == Ty.DOUBLE))
-                    getCurFunc().addInstruction(new Instruction(Operation.mulf));
-                else
-                    getCurFunc().addInstruction(new Instruction(Operation.muli));
-            } else if (op.getTokenType() == TokenType.DIV) {
-                if ((rightExp != null) && (rightExp.type == Ty.DOUBLE))
-                    getCurFunc().addInstruction(new Instruction(Operation.divf));
-                else
-                    getCurFunc().addInstruction(new Instruction(Operation.divi));
-            } else
-                ;// do nothing
+    /**
+     * 常量折叠：left op right 两边都是常量时把两边的指令换成结果的 push
+     * 整数除以 0 和 MIN / -1 留到运行时
+     *
+     * @return 是否折叠了，没有折叠时 left 不再是常量
+     */
+    private boolean foldBinary(ExpVal left, TokenType op, ExpVal right) {
+        Object l = left.constant;
+        Object r = right.constant;
+        Object result = null;
+        if (l instanceof Long && r instanceof Long) {
+            long a = (Long) l;
+            long b = (Long) r;
+            if (op == TokenType.PLUS)
+                result = a + b;
+            else if (op == TokenType.MINUS)
+                result = a - b;
+            else if (op == TokenType.MUL)
+                result = a * b;
+            else if (op == TokenType.DIV && b != 0 && !(a == Long.MIN_VALUE && b == -1))
+                result = a / b;
+        } else if (l instanceof Double && r instanceof Double) {
+            double a = (Double) l;
+            double b = (Double) r;
+            if (op == TokenType.PLUS)
+                result = a + b;
+            else if (op == TokenType.MINUS)
+                result = a - b;
+            else if (op == TokenType.MUL)
+                result = a * b;
+            else if (op == TokenType.DIV)
+                result = a / b;
+        }
+        if (result == null) {
+            left.constant = null;
+            return false;
         }
+        replaceWithPush(left, result);
+        return true;
+    }
+
+    // C -> T { + | - T}
+    // T -> F { * | / F}
+    private ExpVal genArith(int node) throws CompileError {
+        if (ast.kind[node] != Ast.BINARY)
+            return genCast(node);
+        ExpVal expVal = genArith(ast.a[node]);
+        TokenType op = ast.tok[node].getTokenType();
+        ExpVal rightExp = genArith(ast.b[node]);
+        // 两边都是常量，直接算出结果
+        if (foldBinary(expVal, op, rightExp))
+            return expVal;
+        // todo:跳过类型检查
+        // 生成目标代码
+        boolean isDouble = rightExp.type == Ty.DOUBLE;
+        if (op == TokenType.PLUS)
+            getCurFunc().addInstruction(new Instruction(isDouble ? Operation.addf : Operation.addi));
+        else if (op == TokenType.MINUS)
+            getCurFunc().addInstruction(new Instruction(isDouble ? Operation.subf : Operation.subi));
+        else if (op == TokenType.MUL)
+            getCurFunc().addInstruction(new Instruction(isDouble ? Operation.mulf : Operation.muli));
+        else if (op == TokenType.DIV)
+            getCurFunc().addInstruction(new Instruction(isDouble ? Operation.divf : Operation.divi));
         return expVal;
     }
 
     //F -> A ( as int_ty | double_ty )
-    private ExpVal analyseF() throws CompileError {
-        ExpVal expVal = analyseA();
+    private ExpVal genCast(int node) throws CompileError {
+        if (ast.kind[node] != Ast.CAST)
+            return genUnary(node);
         // 注意as可以多次连接,如uia = uib as double as int也是合法的
-        while (check(TokenType.AS_KW)) {
-            expect(TokenType.AS_KW);
-            Token transTo = expect(TokenType.IDENT);
-            if (transTo.getValueString().equals("int") && expVal.type == Ty.DOUBLE) {
-                // 改一下左边expVal的类型,symbolTable不动，因为是临时转的
-                expVal.type = Ty.UINT;
+        ExpVal expVal = genCast(ast.a[node]);
+        String transTo = ast.tok[node].getValueString();
+        if (transTo.equals("int") && expVal.type == Ty.DOUBLE) {
+            // 改一下左边expVal的类型,symbolTable不动，因为是临时转的
+            expVal.type = Ty.UINT;
+            if (expVal.constant instanceof Double)
+                replaceWithPush(expVal, (long) (double) (Double) expVal.constant);
+            else
                 getCurFunc().addInstruction(new Instruction(Operation.ftoi));
-            } else if (transTo.getValueString().equals("double") && expVal.type == Ty.UINT) {
-                // 改一下左边expVal的类型
-                expVal.type = Ty.DOUBLE;
-//                System.out.println(expVal.type.toString()+expVal.value);
+        } else if (transTo.equals("double") && expVal.type == Ty.UINT) {
+            // 改一下左边expVal的类型
+            expVal.type = Ty.DOUBLE;
+            if (expVal.constant instanceof Long)
+                replaceWithPush(expVal, (double) (long) (Long) expVal.constant);
+            else
                 getCurFunc().addInstruction(new Instruction(Operation.itof));
-            } else
-                ;// do nothing
-        }
+        } else
+            ;// do nothing
         return expVal;
     }
 
     //A -> ( - ) I
-    private ExpVal analyseA() throws CompileError {
+    private ExpVal genUnary(int node) throws CompileError {
         int minuscount = 0;
-        while (check(TokenType.MINUS)) {
-            minuscount++;
-            expect(TokenType.MINUS);
+        if (ast.kind[node] == Ast.NEG) {
+            minuscount = ast.b[node];
+            node = ast.a[node];
         }
-        ExpVal expVal = analyseI();
-        if (minuscount % 2 != 0)
+        int start = getCurFunc().instructions.size();
+        ExpVal expVal = genItem(node);
+        expVal.start = start;
+        if (minuscount % 2 != 0 && expVal.constant instanceof Long)
+            replaceWithPush(expVal, -(Long) expVal.constant);
+        else if (minuscount % 2 != 0 && expVal.constant instanceof Double)
+            replaceWithPush(expVal, -(Double) expVal.constant);
+        else if (minuscount % 2 != 0)
         {
             if (expVal.type == Ty.UINT)
                 getCurFunc().addInstruction(new Instruction(Operation.negi));
@@ -1049,85 +1336,88 @@ public final class Analyser {
     }
 
     //I -> IDENT | UINT | DOUBLE | func_call | '(' E ')' | IDENT = E
-    private ExpVal analyseI() throws CompileError {
-        Pos curPos = null;
-        if (check(TokenType.IDENT)) {
-            Token nameToken = expect(TokenType.IDENT);
-            curPos = nameToken.getEndPos();
-            locateVar(nameToken.getValueString(), curPos);
-            if (check(TokenType.L_PAREN)) {
-                // 是函数调用
-                return analyseCallExpr(nameToken.getValueString(), curPos);
-            } else if (check(TokenType.ASSIGN)) {
-                // 注意类型比较
-                if (nameToken.getType() == Ty.VOID)
-                    throw new AnalyzeError(ErrorCode.InvalidAssignment, nameToken.getEndPos());
-                SymbolEntry leftVar = getSymbol(this.symbolTable, nameToken.getValueString());
-                if (leftVar == null)
-                    throw new AnalyzeError(ErrorCode.NotDeclared, nameToken.getEndPos());
-                if (leftVar.isConstant)
-                    throw new AnalyzeError(ErrorCode.InvalidAssignment, nameToken.getEndPos());
-                // 赋值号
-                expect(TokenType.ASSIGN);
-                // 赋值表达式右半部
-                ExpVal rightExp = analyseExpression();
-                Ty leftType = getSymbol(symbolTable, nameToken.getValueString()).getType();
-                if (leftType != rightExp.type) {
-                    // 赋值号两侧类型检查
-                    System.out.println(leftType + " unmatch " + rightExp.type);
-                    throw new AnalyzeError(ErrorCode.TypeUnmatch, nameToken.getEndPos());
-                }
-                getCurFunc().addInstruction(new Instruction(Operation.store64));
-                return new ExpVal(Ty.VOID, 1);
-            } else {
-                // 只是一个变量
-                getCurFunc().addInstruction(new Instruction(Operation.load64));
-
-                SymbolEntry s = getSymbol(symbolTable, nameToken.getValueString());
-//                return new ExpVal(s.getType(), nameToken.getValue());
-                if (s.getType() == Ty.UINT)
-                    return new ExpVal(Ty.UINT, nameToken.getValue());
-                else// if DOUBLE
-                    return new ExpVal(Ty.DOUBLE, nameToken.getValue());
+    private ExpVal genItem(int node) throws CompileError {
+        Token token = ast.tok[node];
+        switch (ast.kind[node]) {
+            case Ast.VAR:
+            case Ast.CALL:
+            case Ast.ASSIGN:
+                return genIdent(node);
+            case Ast.UINT:
+                // 不要用getLong！！！
+                getCurFunc().addInstruction(new Instruction(Operation.push, Long.valueOf(token.getValueString())));
+                return constExp(Ty.UINT, Long.valueOf(token.getValueString()));
+            case Ast.DOUBLE:
+                getCurFunc().addInstruction(new Instruction(Operation.push, Double.valueOf(token.getValueString())));
+                return constExp(Ty.DOUBLE, Double.valueOf(token.getValueString()));
+            case Ast.STRING: {
+                // 字符串字面量要加入全局表
+                String string = token.getValueString();
+                int offset = internString(string);
+                getCurFunc().addInstruction(link(new Instruction(Operation.push, offset), FunctionCache.LINK_STRING, string));
+                return new ExpVal(Ty.STRING, 1);
             }
-        } else if (check(TokenType.UINT_LITERAL)) {
-            Token numToken = expect(TokenType.UINT_LITERAL);
-//            System.out.println(Long.valueOf(numToken.getValueString()));
-            // 不要用getLong！！！
-            getCurFunc().addInstruction(new Instruction(Operation.push, Long.valueOf(numToken.getValueString())));
-            return new ExpVal(Ty.UINT, Long.valueOf(numToken.getValueString()));
-        } else if (check(TokenType.DOUBLE_LITERAL)) {
-            Token doubleToken = expect(TokenType.DOUBLE_LITERAL);
-//            System.out.println("Find a double:"+doubleToken.getValue());
-            getCurFunc().addInstruction(new Instruction(Operation.push, Double.valueOf(doubleToken.getValueString())));
-            return new ExpVal(Ty.DOUBLE, Double.valueOf(doubleToken.getValueString()));
-        } else if (check(TokenType.STRING_LITERAL)) {
-            // 字符串字面量要加入全局表
-            addGlobVar(expect(TokenType.STRING_LITERAL));
-            getCurFunc().addInstruction(new Instruction(Operation.push, calcGlobOffset()));
-            return new ExpVal(Ty.STRING, 1);
-        } else if (check(TokenType.CHAR_LITERAL)) {
-            Token charToken = expect(TokenType.CHAR_LITERAL);
-            getCurFunc().addInstruction(new Instruction(Operation.push, charToken.getValue()));
-            return new ExpVal(Ty.UINT, charToken.getValue());
-        } else if (check(TokenType.L_PAREN)) {
-            expect(TokenType.L_PAREN);
-            // fixme:对于((a+1)>1)没有问题,((a))可能会产生错误
-            isSingleCond = false;
-            ExpVal ret = analyseExpression();
-            expect(TokenType.R_PAREN);
-            return ret;
+            case Ast.CHAR:
+                getCurFunc().addInstruction(new Instruction(Operation.push, token.getValue()));
+                return constExp(Ty.UINT, Long.valueOf((Integer) token.getValue()));
+            case Ast.PAREN:
+                return genExpression(ast.a[node]);
+            default:
+                // 说明是空的
+                return new ExpVal(Ty.VOID, 0);
+        }
+    }
+
+    // 变量、赋值和函数调用都以 IDENT 开头
+    private ExpVal genIdent(int node) throws CompileError {
+        Token nameToken = ast.tok[node];
+        Pos curPos = nameToken.getEndPos();
+        int start = getCurFunc().instructions.size();
+        locateVar(nameToken.getValueString(), curPos);
+        if (ast.kind[node] == Ast.CALL) {
+            // 是函数调用
+            return genCallExpr(node, nameToken.getValueString(), curPos);
+        } else if (ast.kind[node] == Ast.ASSIGN) {
+            // 注意类型比较
+            if (nameToken.getType() == Ty.VOID)
+                throw new AnalyzeError(ErrorCode.InvalidAssignment, nameToken.getEndPos());
+            SymbolEntry leftVar = getSymbol(this.symbolTable, nameToken.getValueString());
+            if (leftVar == null)
+                throw new AnalyzeError(ErrorCode.NotDeclared, nameToken.getEndPos());
+            if (leftVar.isConstant)
+                throw new AnalyzeError(ErrorCode.InvalidAssignment, nameToken.getEndPos());
+            // 赋值表达式右半部
+            ExpVal rightExp = genExpression(ast.a[node]);
+            Ty leftType = getSymbol(symbolTable, nameToken.getValueString()).getType();
+            if (leftType != rightExp.type) {
+                // 赋值号两侧类型检查
+                System.out.println(leftType + " unmatch " + rightExp.type);
+                throw new AnalyzeError(ErrorCode.TypeUnmatch, nameToken.getEndPos());
+            }
+            getCurFunc().addInstruction(new Instruction(Operation.store64));
+            return new ExpVal(Ty.VOID, 1);
         } else {
-            // 说明是空的
-            if (!isSingleCond)
-                isSingleCond = true;
-            return new ExpVal(Ty.VOID, 0);
+            SymbolEntry s = getSymbol(symbolTable, nameToken.getValueString());
+            // 初值已知的常量，不用取地址再读
+            if (s.isConstant() && (s.value instanceof Long || s.value instanceof Double)) {
+                ExpVal ret = new ExpVal(s.getType(), nameToken.getValue());
+                ret.start = start;
+                replaceWithPush(ret, s.value);
+                return ret;
+            }
+            // 只是一个变量
+            getCurFunc().addInstruction(new Instruction(Operation.load64));
+
+            if (s.getType() == Ty.UINT)
+                return new ExpVal(Ty.UINT, nameToken.getValue());
+            else// if DOUBLE
+                return new ExpVal(Ty.DOUBLE, nameToken.getValue());
         }
     }
 
     // call_expr -> IDENT '(' call_param_list? ')'
     // call_param_list -> expr (',' expr)*
-    private ExpVal analyseCallExpr(String funcName, Pos curPos) throws CompileError {
+    private ExpVal genCallExpr(int node, String funcName, Pos curPos) throws CompileError {
         // 库函数和自定义函数区别对待
         boolean isLib = false;
         if (funcName.equals("getint") || funcName.equals("getdouble") || funcName.equals("getchar")) {
@@ -1139,8 +1429,11 @@ public final class Analyser {
             isLib = true;
             getCurFunc().addInstruction(new Instruction(Operation.stackalloc, 0));
         }
+        Function callee = null;
         if (!isLib) {
-            Function callee = getFunc(this.funcTable, funcName);
+            callee = getFunc(funcName);
+            if (callee == null)
+                throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
             if (callee.returnType == Ty.VOID)
                 getCurFunc().addInstruction(new Instruction(Operation.stackalloc, 0));
             else if (callee.returnType == Ty.UINT || callee.returnType == Ty.DOUBLE)
@@ -1149,28 +1442,18 @@ public final class Analyser {
                 getCurFunc().addInstruction(new Instruction(Operation.stackalloc, 1));
         }
         // 压入参数
-        expect(TokenType.L_PAREN);
-        inCall = true;
-        if (!check(TokenType.R_PAREN)) {
-            // 参数列表非空
-            // TODO:逐个检查参数是否与声明对应，包括类型和个数
-            //  包括库函数，这里先假设测试数据点没有这种错误
-            int i;
-            analyseExpression();
-            while (check(TokenType.COMMA)) {
-                expect(TokenType.COMMA);
-                analyseExpression();
-            }
+        // TODO:逐个检查参数是否与声明对应，包括类型和个数
+        //  包括库函数，这里先假设测试数据点没有这种错误
+        for (int arg = ast.a[node]; arg >= 0; arg = ast.next[arg]) {
+            genExpression(arg);
         }
-        expect(TokenType.R_PAREN);
-        inCall = false;
         // 调用call系列指令
         // 库函数
         if (isLib) {
-            addGlobVar(new Token(TokenType.STRING_LITERAL, funcName));
             // 在全局表里，不妨把函数名看做字符串
-            // 库函数每次压一个进去，index就是表里最后面的那个
-            getCurFunc().addInstruction(new Instruction(Operation.callname, globalVarTable.size() - 1));
+            // 同一个库函数只压一次，之后的调用都用这个位置
+            getCurFunc().addInstruction(link(new Instruction(Operation.callname, internString(funcName)),
+                    FunctionCache.LINK_STRING, funcName));
             if (funcName.equals("getint") || funcName.equals("getchar"))
                 return new ExpVal(Ty.UINT, 1);
             else if (funcName.equals("getdouble"))
@@ -1180,59 +1463,42 @@ public final class Analyser {
         }
         // 自定义函数
         else {
-            // 其实Function的属性offset已经记录了位置
-            getCurFunc().addInstruction(new Instruction(Operation.call, calcFuncOffset(funcName, curPos)));
-            return new ExpVal(getFunc(this.funcTable, funcName).getReturnType(), 1);
+            // callee.localOffset 就是它在函数列表中的位置
+            getCurFunc().addInstruction(link(new Instruction(Operation.call, callee.localOffset),
+                    FunctionCache.LINK_FUNC, funcName));
+            return new ExpVal(callee.getReturnType(), 1);
         }
     }
 
     // 找到变量在局部符号表，或全局符号表中的偏移
     // 还应有类型检查,交由上一层完成，所以把type返回
     // 添加定位指令
-    // TODO:fetal bug!!!
     private ExpVal locateVar(String name, Pos curPos) throws CompileError {
         // 查找顺序：局部变量->参数列表（注意这一层还有函数名）->全局变量
         // 对应深度：   >1  ->            1                ->  0
-        SymbolEntry s = null;
-        int i = symbolTable.size() - 1;
-        for (; i >= 0; i--) {
-            s = symbolTable.get(i);
-            if (s.getName().equals(name) && s.getType() != Ty.FUNC)// 第二个条件:有些函数的参数仍是函数调用
-                break;
-        }
+        // 跳过函数名:有些函数的参数仍是函数调用
+        SymbolEntry s = symbolTable.getVar(name);
         if (s != null) {
             // 计算实际的偏移量
             // 如果函数有返回值，Args(0)是返回值，否则从0算起
-            int offset = i;
+            int offset;
             if (s.getDepth() == 0) {
-                offset = i;
-                // 如果是变量而不是函数，访问要取值
-                if (i != -1) {
-                    getCurFunc().addInstruction(new Instruction(Operation.globa, offset));
-//                    System.out.println(name);
-                }
+                // 全局表里还有字符串和库函数名，用登记时记下的位置
+                offset = s.offset;
+                getCurFunc().addInstruction(link(new Instruction(Operation.globa, offset), FunctionCache.LINK_GLOBAL, name));
             } else if (s.getDepth() == 1) {
-                for (; i >= 0; i--) {
-                    if (symbolTable.get(i).getName().equals(getCurFunc().getName()))
-                        break;
-                }
-                offset = offset - i - 1;
-                if (getCurFunc().getReturnType() != Ty.VOID)
-                    ;//offset += 1;// 此时Arg[0]放函数返回值
+                // 参数层从返回值(如果有)开始数
+                offset = s.index - symbolTable.scopeStart(1);
                 getCurFunc().addInstruction(new Instruction(Operation.arga, offset));
             } else {
-                for (; i >= 0; i--) {
-                    if (symbolTable.get(i).getDepth() <= 1)
-                        break;
-                }
-//                for (int j = i+1; j <= offset;j++)
-//                    System.out.println(symbolTable.get(j).getName()+" "+symbolTable.get(j).getDepth());
-//                System.out.println();
-                offset = offset - i - 1;// 从0开始数
-
+                // 函数体内各层的局部变量连续排列，从0开始数
+                offset = s.index - symbolTable.scopeStart(2);
                 getCurFunc().addInstruction(new Instruction(Operation.loca, offset));
             }
             return new ExpVal(s.getType(), offset);
+        } else if (symbolTable.size() > 0) {
+            // 库函数和自定义函数的调用也会走到这里，不生成指令
+            return new ExpVal(Ty.FUNC, -1);
         } else {
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
         }
@@ -0,0 +1,95 @@
+package miniplc0java.analyser;
+
+import java.util.Arrays;
+
+import miniplc0java.tokenizer.Token;
+
+/**
+ * 语法树，AstParser 生成，Analyser 按它生成代码
+ * 节点不是对象，而是几个数组里的同一个下标，-1 表示没有；每个函数体或全局声明开始前 clear()，数组留着接着用
+ * 所以占用的内存只和最大的那个函数有关，不随源文件变大
+ *
+ * 各种节点的 tok、a、b、c：
+ * 语句  BLOCK       a 第一条语句，语句之间用 next 连起来
+ *       LET/CONST   tok 变量名，a 初值(EXPR，let 可以没有)，b 类型(TYPE)
+ *       IF          tok if，a 条件(EXPR)，b 为真时的 BLOCK，c else 后面的 BLOCK 或 IF
+ *       WHILE       tok while，a 条件(EXPR)，b 循环体(BLOCK)
+ *       BREAK/CONTINUE/RETURN  tok 关键字，RETURN 的 a 是返回值(EXPR)
+ *       表达式语句直接是 EXPR
+ * 表达式 EXPR       a 表达式，只是包一层；条件里的跳转由 genCondition 生成
+ *       COMPARE/BINARY  tok 运算符，a 左边，b 右边
+ *       CAST        tok 目标类型，a 被转换的表达式
+ *       NEG         a 被取负的，b 负号的个数
+ *       VAR/CALL/ASSIGN  tok 名字，CALL 的 a 是第一个参数(EXPR，用 next 连起来)，ASSIGN 的 a 是右边(EXPR)
+ *       UINT/DOUBLE/STRING/CHAR  tok 字面量
+ *       PAREN       a 括号里的 EXPR
+ *       EMPTY       缺了的表达式，比如 return ;
+ */
+final class Ast {
+    static final byte BLOCK = 0;
+    static final byte LET = 1;
+    static final byte CONST = 2;
+    static final byte TYPE = 3;
+    static final byte IF = 4;
+    static final byte WHILE = 5;
+    static final byte BREAK = 6;
+    static final byte CONTINUE = 7;
+    static final byte RETURN = 8;
+    static final byte EXPR = 9;
+    static final byte COMPARE = 10;
+    static final byte BINARY = 11;
+    static final byte CAST = 12;
+    static final byte NEG = 13;
+    static final byte VAR = 14;
+    static final byte CALL = 15;
+    static final byte ASSIGN = 16;
+    static final byte UINT = 17;
+    static final byte DOUBLE = 18;
+    static final byte STRING = 19;
+    static final byte CHAR = 20;
+    static final byte PAREN = 21;
+    static final byte EMPTY = 22;
+
+    byte[] kind = new byte[256];
+    Token[] tok = new Token[256];
+    int[] a = new int[256];
+    int[] b = new int[256];
+    int[] c = new int[256];
+    int[] next = new int[256];
+    private int size = 0;
+
+    int add(byte kind, Token tok, int a, int b) {
+        if (size == this.kind.length)
+            grow();
+        int n = size++;
+        this.kind[n] = kind;
+        this.tok[n] = tok;
+        this.a[n] = a;
+        this.b[n] = b;
+        this.c[n] = -1;
+        this.next[n] = -1;
+        return n;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 丢掉所有节点，不再引用其中的 token
+     */
+    void clear() {
+        Arrays.fill(tok, 0, size, null);
+        size = 0;
+    }
+
+    private void grow() {
+        int n = kind.length * 2;
+        kind = Arrays.copyOf(kind, n);
+        tok = Arrays.copyOf(tok, n);
+        a = Arrays.copyOf(a, n);
+        b = Arrays.copyOf(b, n);
+        c = Arrays.copyOf(c, n);
+        next = Arrays.copyOf(next, n);
+    }
+}
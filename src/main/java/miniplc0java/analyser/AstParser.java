@@ -0,0 +1,234 @@
+package miniplc0java.analyser;
+
+import miniplc0java.error.AnalyzeError;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 只管语法：从 Analyser 的 token 流读出函数体或一条声明，放进 Ast
+ * 符号、类型、生成代码都留给 Analyser，语法错误在这里报
+ */
+final class AstParser {
+    private final Analyser in;
+    private final Ast ast;
+    // 当前函数有没有返回值，决定 return 后面读不读表达式
+    private boolean returnsValue = false;
+
+    AstParser(Analyser in, Ast ast) {
+        this.in = in;
+        this.ast = ast;
+    }
+
+    /**
+     * block_stmt -> '{' stmt* '}'
+     */
+    int parseBody(boolean returnsValue) throws CompileError {
+        this.returnsValue = returnsValue;
+        return parseBlock();
+    }
+
+    /**
+     * stmt -> expr_stmt | decl_stmt | if_stmt | while_stmt | break_stmt | continue_stmt | return_stmt | block_stmt | empty_stmt
+     *
+     * @return 语句的节点，空语句为 -1
+     */
+    private int parseStatement() throws CompileError {
+        if (in.check(TokenType.EOF))
+            throw new AnalyzeError(ErrorCode.ExpectedToken, in.expect(TokenType.EOF).getEndPos());
+        if (in.check(TokenType.LET_KW) || in.check(TokenType.CONST_KW))
+            return parseDecl();
+        if (in.check(TokenType.IF_KW))
+            return parseIf();
+        // else只能跟在if里面，不能单独出现
+        if (in.check(TokenType.ELSE_KW))
+            throw new AnalyzeError(ErrorCode.ElseHaveNoIf, in.expect(TokenType.ELSE_KW).getEndPos());
+        if (in.check(TokenType.WHILE_KW)) {
+            Token t = in.expect(TokenType.WHILE_KW);
+            int cond = parseExpression();
+            return ast.add(Ast.WHILE, t, cond, parseBlock());
+        }
+        if (in.check(TokenType.BREAK_KW) || in.check(TokenType.CONTINUE_KW)) {
+            Token t = in.next();
+            in.expect(TokenType.SEMICOLON);
+            return ast.add(t.getTokenType() == TokenType.BREAK_KW ? Ast.BREAK : Ast.CONTINUE, t, -1, -1);
+        }
+        if (in.check(TokenType.RETURN_KW)) {
+            Token t = in.expect(TokenType.RETURN_KW);
+            int value = returnsValue ? parseExpression() : -1;
+            in.expect(TokenType.SEMICOLON);
+            return ast.add(Ast.RETURN, t, value, -1);
+        }
+        if (in.check(TokenType.L_BRACE))
+            return parseBlock();
+        // 空语句直接跳过
+        if (in.nextIf(TokenType.SEMICOLON) != null)
+            return -1;
+        int expr = parseExpression();
+        // 一个 token 都没读，不是语句的开头
+        if (ast.kind[ast.a[expr]] == Ast.EMPTY)
+            throw new AnalyzeError(ErrorCode.InvalidInput, in.peek().getStartPos());
+        return expr;
+    }
+
+    private int parseBlock() throws CompileError {
+        Token t = in.expect(TokenType.L_BRACE);
+        int block = ast.add(Ast.BLOCK, t, -1, -1);
+        int last = -1;
+        // 语句不会以 } 开头
+        while (!in.check(TokenType.R_BRACE)) {
+            int s = parseStatement();
+            if (s < 0)
+                continue;
+            if (last < 0)
+                ast.a[block] = s;
+            else
+                ast.next[last] = s;
+            last = s;
+        }
+        in.expect(TokenType.R_BRACE);
+        return block;
+    }
+
+    /**
+     * let_decl_stmt -> 'let' IDENT ':' ty ('=' expr)? ';'
+     * const_decl_stmt -> 'const' IDENT ':' ty '=' expr ';'
+     */
+    int parseDecl() throws CompileError {
+        boolean isConst = in.next().getTokenType() == TokenType.CONST_KW;
+        Token name = in.expect(TokenType.IDENT);
+        in.expect(TokenType.COLON);
+        int type = ast.add(Ast.TYPE, in.expect(TokenType.IDENT), -1, -1);
+        int init = -1;
+        if (isConst) {
+            in.expect(TokenType.ASSIGN);
+            init = parseExpression();
+        } else if (in.nextIf(TokenType.ASSIGN) != null) {
+            init = parseExpression();
+        }
+        in.expect(TokenType.SEMICOLON);
+        return ast.add(isConst ? Ast.CONST : Ast.LET, name, init, type);
+    }
+
+    /**
+     * if_stmt -> 'if' expr block_stmt ('else' (block_stmt | if_stmt))?
+     */
+    private int parseIf() throws CompileError {
+        Token t = in.expect(TokenType.IF_KW);
+        int cond = parseExpression();
+        int node = ast.add(Ast.IF, t, cond, parseBlock());
+        if (in.nextIf(TokenType.ELSE_KW) != null)
+            ast.c[node] = in.check(TokenType.IF_KW) ? parseIf() : parseBlock();
+        return node;
+    }
+
+    /**
+     * E -> C ( == | != | < | > | <= | >= C )
+     */
+    private int parseExpression() throws CompileError {
+        int left = parseTerm(0);
+        while (isCompare(in.peek().getTokenType())) {
+            Token op = in.next();
+            left = ast.add(Ast.COMPARE, op, left, parseTerm(0));
+        }
+        return ast.add(Ast.EXPR, null, left, -1);
+    }
+
+    private static boolean isCompare(TokenType t) {
+        return t == TokenType.EQ || t == TokenType.NEQ || t == TokenType.LT
+                || t == TokenType.GT || t == TokenType.LE || t == TokenType.GE;
+    }
+
+    /**
+     * level 0: C -> T { + | - T}
+     * level 1: T -> F { * | / F}
+     */
+    private int parseTerm(int level) throws CompileError {
+        TokenType op1 = level == 0 ? TokenType.PLUS : TokenType.MUL;
+        TokenType op2 = level == 0 ? TokenType.MINUS : TokenType.DIV;
+        int left = level == 0 ? parseTerm(1) : parseCast();
+        while (in.check(op1) || in.check(op2)) {
+            Token op = in.next();
+            left = ast.add(Ast.BINARY, op, left, level == 0 ? parseTerm(1) : parseCast());
+        }
+        return left;
+    }
+
+    /**
+     * F -> A ( as int_ty | double_ty )
+     * as 可以连着写，uia = uib as double as int 也是合法的
+     */
+    private int parseCast() throws CompileError {
+        int node = parseUnary();
+        while (in.nextIf(TokenType.AS_KW) != null) {
+            node = ast.add(Ast.CAST, in.expect(TokenType.IDENT), node, -1);
+        }
+        return node;
+    }
+
+    /**
+     * A -> ( - ) I
+     */
+    private int parseUnary() throws CompileError {
+        int minus = 0;
+        while (in.nextIf(TokenType.MINUS) != null) {
+            minus++;
+        }
+        int node = parseItem();
+        return minus == 0 ? node : ast.add(Ast.NEG, null, node, minus);
+    }
+
+    /**
+     * I -> IDENT | UINT | DOUBLE | STRING | CHAR | func_call | '(' E ')' | IDENT = E
+     */
+    private int parseItem() throws CompileError {
+        Token t = in.peek();
+        switch (t.getTokenType()) {
+            case IDENT:
+                in.next();
+                if (in.check(TokenType.L_PAREN))
+                    return parseCall(t);
+                if (in.nextIf(TokenType.ASSIGN) != null)
+                    return ast.add(Ast.ASSIGN, t, parseExpression(), -1);
+                return ast.add(Ast.VAR, t, -1, -1);
+            case UINT_LITERAL:
+                return ast.add(Ast.UINT, in.next(), -1, -1);
+            case DOUBLE_LITERAL:
+                return ast.add(Ast.DOUBLE, in.next(), -1, -1);
+            case STRING_LITERAL:
+                return ast.add(Ast.STRING, in.next(), -1, -1);
+            case CHAR_LITERAL:
+                return ast.add(Ast.CHAR, in.next(), -1, -1);
+            case L_PAREN: {
+                in.next();
+                int e = parseExpression();
+                in.expect(TokenType.R_PAREN);
+                return ast.add(Ast.PAREN, t, e, -1);
+            }
+            default:
+                // 说明是空的，不读 token
+                return ast.add(Ast.EMPTY, t, -1, -1);
+        }
+    }
+
+    /**
+     * call_expr -> IDENT '(' call_param_list? ')'
+     * call_param_list -> expr (',' expr)*
+     */
+    private int parseCall(Token name) throws CompileError {
+        in.expect(TokenType.L_PAREN);
+        int call = ast.add(Ast.CALL, name, -1, -1);
+        if (!in.check(TokenType.R_PAREN)) {
+            int last = parseExpression();
+            ast.a[call] = last;
+            while (in.nextIf(TokenType.COMMA) != null) {
+                int arg = parseExpression();
+                ast.next[last] = arg;
+                last = arg;
+            }
+        }
+        in.expect(TokenType.R_PAREN);
+        return call;
+    }
+}
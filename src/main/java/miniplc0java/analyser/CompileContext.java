@@ -0,0 +1,27 @@
+package miniplc0java.analyser;
+
+import java.util.ArrayList;
+
+import miniplc0java.tokenizer.Token;
+
+/**
+ * 一次编译的全部状态：符号表，全局表，函数表
+ * 由 Analyser 创建并填充，分析完之后交给 Instruction 输出目标代码、交给优化器和虚拟机
+ * 每次编译一个独立的对象，多个文件可以在不同线程里同时编译
+ */
+public class CompileContext {
+    public final SymbolTable symbolTable;
+    // 全局变量，字符串，库函数名，自定义函数名，顺序就是o0里全局表的顺序
+    public final ArrayList<Token> globalVarTable;
+    public final ArrayList<Function> funcTable;
+
+    public CompileContext() {
+        this(new SymbolTable(), new ArrayList<>(), new ArrayList<>());
+    }
+
+    public CompileContext(SymbolTable symbolTable, ArrayList<Token> globalVarTable, ArrayList<Function> funcTable) {
+        this.symbolTable = symbolTable;
+        this.globalVarTable = globalVarTable;
+        this.funcTable = funcTable;
+    }
+}
@@ -0,0 +1,214 @@
+package miniplc0java.analyser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.util.Ty;
+
+/**
+ * 增量编译：记下上一次编译里每个函数生成的指令和它依赖的东西
+ * 再编译时，如果一个函数的头和函数体的 token 都没变(逐个比较类型和值，不是哈希)，它查过的全局符号、调用的函数的签名也都没变，
+ * 就跳过函数体的分析，直接复用上次的指令，只重新链接其中的全局表位置(globa、字符串 push、callname)和函数编号(call)
+ *
+ * 同一个 FunctionCache 依次交给多个 Analyser，比如编辑器里每次保存编译一次
+ * 编译成功后换成这一次的记录，失败时保留上一次的
+ */
+public class FunctionCache {
+    static final int LINK_GLOBAL = 0;
+    static final int LINK_STRING = 1;
+    static final int LINK_FUNC = 2;
+
+    HashMap<String, Record> records = new HashMap<>();
+    private int reused = 0;
+    private int analysed = 0;
+
+    /**
+     * @return 上一次编译复用的函数个数
+     */
+    public int reused() {
+        return reused;
+    }
+
+    /**
+     * @return 上一次编译重新分析的函数个数
+     */
+    public int analysed() {
+        return analysed;
+    }
+
+    void finish(HashMap<String, Record> records, int reused, int analysed) {
+        this.records = records;
+        this.reused = reused;
+        this.analysed = analysed;
+    }
+
+    /**
+     * 函数头：名字、参数、返回类型
+     */
+    static String head(Function f) {
+        StringBuilder sb = new StringBuilder(f.name).append('(');
+        for (Variable v : f.paramList) {
+            sb.append(v.isConst ? "const " : "").append(v.name).append(':').append(v.type).append(',');
+        }
+        return sb.append(")->").append(f.returnType).toString();
+    }
+
+    /**
+     * 被调用函数的签名，每个类型一个字符，最后一个是返回类型，不存在时为 null
+     */
+    static String signature(Function f) {
+        if (f == null)
+            return null;
+        char[] sig = new char[f.paramList.size() + 1];
+        for (int i = 0; i < sig.length - 1; i++) {
+            sig[i] = (char) f.paramList.get(i).type.ordinal();
+        }
+        sig[sig.length - 1] = (char) f.returnType.ordinal();
+        return new String(sig);
+    }
+
+    /**
+     * 一个函数的记录
+     * 分析函数体时 Analyser 往里面记依赖，分析完调用 finish 换算出需要重新链接的指令
+     */
+    static class Record {
+        final String head;
+        // 函数体从 { 到 } 的 token
+        final Token[] body;
+        // 进入函数体时 Analyser 的各个标志，见 Analyser.bodyState()
+        final int entryState;
+        int exitState;
+        int locsDelta;
+        int localCount;
+
+        // 查过的全局符号(或者没查到)：SymbolTable.get 和 getVar 各一份
+        final HashMap<String, SymbolEntry> globals = new HashMap<>();
+        final HashMap<String, SymbolEntry> vars = new HashMap<>();
+        // 调用的函数名 -> 签名
+        final HashMap<String, String> callees = new HashMap<>();
+        // 按第一次出现的顺序，复用时按这个顺序放进全局表，全局表的布局和重新分析完全相同
+        final LinkedHashSet<String> strings = new LinkedHashSet<>();
+        // 分析过程中生成的需要重新链接的指令
+        IdentityHashMap<Instruction, Integer> linkKinds = new IdentityHashMap<>();
+        IdentityHashMap<Instruction, String> linkNames = new IdentityHashMap<>();
+
+        // finish 之后：指令，以及其中需要重新链接的下标
+        ArrayList<Instruction> instructions;
+        int[] linkAt;
+        int[] linkKind;
+        String[] linkName;
+
+        Record(String head, Token[] body, int entryState) {
+            this.head = head;
+            this.body = body;
+            this.entryState = entryState;
+        }
+
+        /**
+         * 函数头和函数体都和上一次相同，token 的位置可以变
+         */
+        boolean sameSource(String head, Collection<Token> body) {
+            if (!this.head.equals(head) || this.body.length != body.size())
+                return false;
+            int i = 0;
+            for (Token t : body) {
+                Token old = this.body[i++];
+                if (old.getTokenType() != t.getTokenType() || !Objects.equals(old.getValue(), t.getValue()))
+                    return false;
+            }
+            return true;
+        }
+
+        void link(Instruction ins, int kind, String name) {
+            linkKinds.put(ins, kind);
+            linkNames.put(ins, name);
+        }
+
+        void finish(Function f) {
+            instructions = new ArrayList<>(f.instructions);
+            localCount = f.localCount;
+            int n = 0;
+            for (Instruction ins : instructions) {
+                if (linkKinds.containsKey(ins))
+                    n++;
+            }
+            linkAt = new int[n];
+            linkKind = new int[n];
+            linkName = new String[n];
+            n = 0;
+            for (int i = 0; i < instructions.size(); i++) {
+                Instruction ins = instructions.get(i);
+                Integer kind = linkKinds.get(ins);
+                if (kind != null) {
+                    linkAt[n] = i;
+                    linkKind[n] = kind;
+                    linkName[n] = linkNames.get(ins);
+                    n++;
+                }
+            }
+            // 常量折叠删掉的指令不用留着
+            linkKinds = null;
+            linkNames = null;
+        }
+
+        /**
+         * 依赖有没有变：查到的全局符号类型、是否常量、常量值相同，调用的函数签名相同
+         * 全局符号的位置和函数编号可以变，复用时重新链接
+         */
+        boolean matches(SymbolTable table, Map<String, Integer> funcIndex, ArrayList<Function> funcTable) {
+            for (Map.Entry<String, SymbolEntry> e : globals.entrySet()) {
+                if (!sameGlobal(e.getValue(), table.get(e.getKey())))
+                    return false;
+            }
+            for (Map.Entry<String, SymbolEntry> e : vars.entrySet()) {
+                if (!sameGlobal(e.getValue(), table.getVar(e.getKey())))
+                    return false;
+            }
+            for (Map.Entry<String, String> e : callees.entrySet()) {
+                Integer i = funcIndex.get(e.getKey());
+                if (!Objects.equals(e.getValue(), signature(i == null ? null : funcTable.get(i))))
+                    return false;
+            }
+            return true;
+        }
+
+        private static boolean sameGlobal(SymbolEntry old, SymbolEntry now) {
+            if (old == null || now == null)
+                return old == now;
+            return now.depth == 0 && old.type == now.type && old.isConstant == now.isConstant
+                    && Objects.equals(old.value, now.value);
+        }
+
+        /**
+         * 复制一份指令，把全局表位置和函数编号换成这一次编译的
+         */
+        ArrayList<Instruction> relink(SymbolTable table, Map<String, Integer> stringPool, Map<String, Integer> funcIndex) {
+            ArrayList<Instruction> ret = new ArrayList<>(instructions);
+            for (int k = 0; k < linkAt.length; k++) {
+                int operand;
+                switch (linkKind[k]) {
+                    case LINK_GLOBAL:
+                        operand = table.getVar(linkName[k]).offset;
+                        break;
+                    case LINK_STRING:
+                        operand = stringPool.get(linkName[k]);
+                        break;
+                    default:
+                        operand = funcIndex.get(linkName[k]);
+                        break;
+                }
+                Instruction old = ret.get(linkAt[k]);
+                if (old.getOperand() != operand)
+                    ret.set(linkAt[k], new Instruction(old.getOpt(), operand));
+            }
+            return ret;
+        }
+    }
+}
@@ -10,7 +10,9 @@ public class SymbolEntry {
     int stackOffset;
     int depth;// 嵌套层次
     Object value;// 由于在o0中进行栈上赋值，因此先存起来
-    int offset;// 对全局变量有意义
+    int offset;// 对全局变量有意义，是它在全局表里的位置
+    int index;// 在符号表里按声明顺序的位置
+    SymbolEntry shadowed;// 被它覆盖的同名符号
 
     public SymbolEntry(String name, Ty type, boolean isConstant, boolean isDeclared, int stackOffset, int depth) {
         this.name = name;
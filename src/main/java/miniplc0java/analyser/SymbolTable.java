@@ -0,0 +1,150 @@
+package miniplc0java.analyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import miniplc0java.util.Ty;
+
+/**
+ * 栈式符号表，按名字散列
+ * 每个名字对应一条链，链头是最近声明的符号，SymbolEntry.shadowed 指向被它覆盖的同名符号
+ * 另外按声明顺序保存所有符号，SymbolEntry.index 是符号在其中的位置，
+ * 每一层记下第一个符号的位置，变量的 arga/loca 偏移直接由位置减去层的起点得到
+ *
+ * 查找只看链头，不用从栈顶逐个比较名字；退出一层时只把这一层的符号从链头摘下
+ *
+ * 并行分析函数体时每个函数一张表，自己这里找不到的再去全局的表(parent)里找，全局的表只读
+ */
+public class SymbolTable {
+    private final HashMap<String, SymbolEntry> heads = new HashMap<>();
+    private final ArrayList<SymbolEntry> entries = new ArrayList<>();
+    // scopeStart[d] 是第 d 层第一个符号的位置
+    private int[] scopeStart = new int[8];
+    private int depth = 0;
+    // 外层只读的表，没有则为 null
+    private final SymbolTable parent;
+
+    // 增量编译时记下函数体查到的全局符号(或者没查到)，见 FunctionCache，平时为 null
+    HashMap<String, SymbolEntry> getTrace = null;
+    HashMap<String, SymbolEntry> getVarTrace = null;
+
+    public SymbolTable() {
+        this(null);
+    }
+
+    /**
+     * @param parent 找不到的符号到这里找，只读
+     */
+    public SymbolTable(SymbolTable parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * 最近声明的同名符号，没有则返回 null
+     */
+    public SymbolEntry get(String name) {
+        SymbolEntry s = heads.get(name);
+        if (s == null && parent != null)
+            s = parent.get(name);
+        if (getTrace != null)
+            trace(getTrace, name, s);
+        return s;
+    }
+
+    /**
+     * 最近声明的同名变量，跳过函数名
+     */
+    public SymbolEntry getVar(String name) {
+        SymbolEntry s = heads.get(name);
+        while (s != null && s.type == Ty.FUNC)
+            s = s.shadowed;
+        if (s == null && parent != null)
+            s = parent.getVar(name);
+        if (getVarTrace != null)
+            trace(getVarTrace, name, s);
+        return s;
+    }
+
+    // 局部变量和参数不用记，函数体和函数头没变它们就不变
+    private static void trace(HashMap<String, SymbolEntry> trace, String name, SymbolEntry s) {
+        if ((s == null || s.depth == 0) && !trace.containsKey(name))
+            trace.put(name, s);
+    }
+
+    public void push(SymbolEntry s) {
+        s.index = entries.size();
+        s.shadowed = heads.put(s.name, s);
+        entries.add(s);
+    }
+
+    /**
+     * 删掉一个符号，它后面的符号依次前移
+     * 只用于删除无返回值函数的返回值占位，后面只有几个参数
+     */
+    public void remove(SymbolEntry s) {
+        entries.remove(s.index);
+        for (int i = s.index; i < entries.size(); i++)
+            entries.get(i).index = i;
+        unlink(s);
+    }
+
+    /**
+     * 进入下一层，对应 {
+     */
+    public void pushScope() {
+        depth++;
+        if (depth == scopeStart.length)
+            scopeStart = Arrays.copyOf(scopeStart, depth * 2);
+        scopeStart[depth] = entries.size();
+    }
+
+    /**
+     * 退出当前层，弹出这一层的所有符号，对应 }
+     */
+    public void popScope() {
+        int start = scopeStart[depth];
+        for (int i = entries.size() - 1; i >= start; i--)
+            unlink(entries.remove(i));
+        depth--;
+    }
+
+    /**
+     * @return 第 d 层第一个符号的位置
+     */
+    public int scopeStart(int d) {
+        return scopeStart[d];
+    }
+
+    public int size() {
+        return entries.size() + (parent == null ? 0 : parent.size());
+    }
+
+    /**
+     * @return 当前层的所有符号，按声明顺序
+     */
+    ArrayList<SymbolEntry> currentScope() {
+        return new ArrayList<>(entries.subList(scopeStart[depth], entries.size()));
+    }
+
+    public void clear() {
+        heads.clear();
+        entries.clear();
+        depth = 0;
+    }
+
+    private void unlink(SymbolEntry s) {
+        SymbolEntry head = heads.get(s.name);
+        if (head == s) {
+            if (s.shadowed == null)
+                heads.remove(s.name);
+            else
+                heads.put(s.name, s.shadowed);
+            return;
+        }
+        while (head != null && head.shadowed != s)
+            head = head.shadowed;
+        if (head != null)
+            head.shadowed = s.shadowed;
+    }
+}
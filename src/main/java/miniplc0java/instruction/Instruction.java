@@ -1,15 +1,19 @@
 package miniplc0java.instruction;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.CompileContext;
 import miniplc0java.analyser.Function;
 import miniplc0java.analyser.SymbolEntry;
 import miniplc0java.error.CompileError;
 import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
 import miniplc0java.util.Ty;
 
+import java.io.IOException;
 import java.util.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.logging.Logger;
 
@@ -179,6 +183,22 @@ public class Instruction {
         return x;
     }
 
+    /**
+     * 与 writeTo(O0Writer) 写出的操作数一致：push 是 u64，br 取 z 的低32位，其余取 x
+     *
+     * @return 操作数，没有操作数时为0
+     */
+    public long getOperand() {
+        switch (this.opt.getOperandSize()) {
+            case 8:
+                return this.z;
+            case 4:
+                return this.opt == Operation.br ? (int) this.z : this.x;
+            default:
+                return 0;
+        }
+    }
+
     public void setX(Integer x) {
         this.x = x;
     }
@@ -202,6 +222,13 @@ public class Instruction {
     }
 
 
+    /**
+     * 旧的输出方式，每个字节都装箱进列表
+     * 已经被 writeTo(O0Writer) 取代，保留下来用于对比测试
+     *
+     * @param output
+     * @return
+     */
     public boolean toString(List<Byte> output) {
         switch (this.opt) {
             case nop:
@@ -345,77 +372,164 @@ public class Instruction {
         }
     }
 
+    /**
+     * 把这条指令按 o0 格式写入缓冲区：u8 的指令编码，加上可能有的操作数
+     * 与 toString(List<Byte>) 的输出逐字节相同
+     *
+     * @param out
+     */
+    public void writeTo(O0Writer out) {
+        out.putU8(this.opt.getCode());
+        switch (this.opt.getOperandSize()) {
+            case 8:
+                // push的操作数是u64类型
+                out.putU64(this.z);
+                break;
+            case 4:
+                if (this.opt == Operation.br)// 操作数可能是负数
+                    out.putU32((int) this.z);
+                else
+                    out.putU32(this.x);
+                break;
+            default:
+                break;
+        }
+    }
+
     public static byte[] addHead() {
+        O0Writer out = new O0Writer(8);
+        addHead(out);
+        return out.toByteArray();
+    }
+
+    public static void addHead(O0Writer out) {
         // magic-number and version in o0
-        List<Byte> ret = new ArrayList<Byte>();
-        ret.addAll(getString(getIntBytes(0x72303b3e)));
-        ret.addAll(getString(getIntBytes(0x00000001)));
-        return listTobyte(ret);
+        out.putU32(0x72303b3e);
+        out.putU32(0x00000001);
     }
 
-    public static ArrayList<Token> globalVarTable = new ArrayList<Token>();
-    public static Stack<SymbolEntry> symbolTable = new Stack<SymbolEntry>();
+    public static byte[] addGlob(CompileContext ctx) throws CompileError {
+        O0Writer out = new O0Writer();
+        addGlob(out, ctx);
+        return out.toByteArray();
+    }
 
-    public static byte[] addGlob() throws CompileError {
-        List<Byte> ret = new ArrayList<Byte>();
-        ret.addAll(getString(getIntBytes(globalVarTable.size())));// glob.count
-        for (Token t : globalVarTable) {
-            SymbolEntry s = Analyser.getSymbol(symbolTable, t.getValueString());
-            // u64和f64大小相同!!!
-            if ((s != null) && (s.getType() == Ty.UINT || s.getType() == Ty.DOUBLE)) {
+    public static void addGlob(O0Writer out, CompileContext ctx) throws CompileError {
+        out.putU32(ctx.globalVarTable.size());// glob.count
+        for (Token t : ctx.globalVarTable) {
+            SymbolEntry s = globalVar(ctx, t);
+            if (s != null) {
                 if (s.isConstant())
-                    ret.addAll(getString(getByteBytes(1)));
+                    out.putU8(1);
                 else
-                    ret.addAll(getString(getByteBytes(0)));
+                    out.putU8(0);
                 // 长度为8
-                ret.addAll(getString(getIntBytes(8)));
+                out.putU32(8);
                 // 初始值为0
-                ret.addAll(getString(getLongBytes(0)));
+                out.putU64(0);
             } else//字符串 或 函数名
             {
-                ret.addAll(getString(getByteBytes(1)));// is_const
-                ret.addAll(getString(getIntBytes(t.getValueString().length())));// count
                 String string = t.getValueString();
-                char[] ch = string.toCharArray();// 转ascii
-//                System.out.println("字符串长度为"+ch.length);
-                for (int i = 0; i < ch.length; i++) {
-                    ret.addAll(getString(getByteBytes(Integer.valueOf(ch[i]).byteValue())));
-//                    System.out.print(Integer.toHexString(Integer.valueOf(ch[i]).intValue())+" ");
+                out.putU8(1);// is_const
+                out.putU32(string.length());// count
+                for (int i = 0; i < string.length(); i++) {
+                    out.putU8(string.charAt(i));// 转ascii
                 }// value
             }
         }
-        return listTobyte(ret);
     }
 
-    public static ArrayList<Function> funcTable = new ArrayList<Function>();
-
-    public static byte[] addFunc() {
-        List<Byte> ret = new ArrayList<Byte>();
-        ret.addAll(getString(getIntBytes(funcTable.size())));// func.count
-        for (Function f : funcTable) {
-            int offset = calcFuncOffset(f.getName());// 函数在globTable中的偏移
-            ret.addAll(getString(getIntBytes(offset)));// name,好像没什么用
-            if (f.returnType == Ty.VOID)
-                ret.addAll(getString(getIntBytes(0)));// ret_slots
-            else
-                ret.addAll(getString(getIntBytes(1)));// 返回一个int
-            ret.addAll(getString(getIntBytes(f.calParamSlot())));// param_slots
-//        System.out.println(f.getName()+" "+f.localCount+" "+f.calParamSlot()+"->0/1");
-            ret.addAll(getString(getIntBytes(f.localCount)));// loc_slots
-            ret.addAll(getString(getIntBytes(f.instructions.size())));// body.count
-            for (Instruction i : f.instructions) {
-                i.toString(ret);// body items
+    /**
+     * 全局表每一项的初始值，与 addGlob 输出的 value 部分相同
+     * 变量是8字节的0，字符串和函数名是它的字符
+     *
+     * @return
+     */
+    public static List<byte[]> globalValues(CompileContext ctx) {
+        List<byte[]> ret = new ArrayList<>();
+        for (Token t : ctx.globalVarTable) {
+            if (globalVar(ctx, t) != null) {
+                ret.add(new byte[8]);
+            } else {
+                String string = t.getValueString();
+                byte[] value = new byte[string.length()];
+                for (int i = 0; i < string.length(); i++) {
+                    value[i] = (byte) string.charAt(i);
+                }
+                ret.add(value);
             }
         }
-        return listTobyte(ret);
+        return ret;
+    }
+
+    /**
+     * 全局表里的这一项如果是变量，返回它的符号，字符串或函数名返回 null
+     * 字符串和函数名的 token 类型是 STRING_LITERAL，不按名字查，否则和变量同名的字符串会被当成变量
+     */
+    private static SymbolEntry globalVar(CompileContext ctx, Token t) {
+        if (t.getTokenType() == TokenType.STRING_LITERAL)
+            return null;
+        SymbolEntry s = Analyser.getSymbol(ctx.symbolTable, t.getValueString());
+        // u64和f64大小相同!!!
+        if ((s != null) && (s.getType() == Ty.UINT || s.getType() == Ty.DOUBLE))
+            return s;
+        return null;
+    }
+
+    public static byte[] addFunc(CompileContext ctx) {
+        O0Writer out = new O0Writer();
+        addFunc(out, ctx);
+        return out.toByteArray();
     }
 
-    private static int calcFuncOffset(String name) {
-        // 函数名在全局表中的偏移
-        for (int i = 0; i < Instruction.globalVarTable.size(); i++) {
-            if (Instruction.globalVarTable.get(i).getValueString().equals(name))
-                return i;
+    public static void addFunc(O0Writer out, CompileContext ctx) {
+        out.putU32(ctx.funcTable.size());// func.count
+        for (Function f : ctx.funcTable) {
+            addFunc(out, f);
+        }
+    }
+
+    /**
+     * 输出一个函数：函数头加上函数体
+     * 各个计数(ret_slots, param_slots, loc_slots, body.count)在函数分析完后都是已知的
+     *
+     * @param out
+     * @param f
+     */
+    public static void addFunc(O0Writer out, Function f) {
+        // 函数名在globTable中的偏移，分析时已经记在f.offset里
+        out.putU32(f.offset);// name,好像没什么用
+        if (f.returnType == Ty.VOID)
+            out.putU32(0);// ret_slots
+        else
+            out.putU32(1);// 返回一个int
+        out.putU32(f.calParamSlot());// param_slots
+        out.putU32(f.localCount);// loc_slots
+        out.putU32(f.instructions.size());// body.count
+        for (Instruction i : f.instructions) {
+            i.writeTo(out);// body items
+        }
+    }
+
+    /**
+     * 流式输出整个模块
+     * 先输出标准头和全局表，再逐个函数序列化后立刻写入 channel
+     * 缓冲区复用，峰值内存只取决于最大的那个函数(或全局表)，而不是整个模块
+     *
+     * @param out 比如 FileChannel
+     * @param ctx Analyser.getContext()
+     * @throws CompileError
+     * @throws IOException
+     */
+    public static void writeModule(WritableByteChannel out, CompileContext ctx) throws CompileError, IOException {
+        O0Writer buf = new O0Writer();
+        addHead(buf);
+        addGlob(buf, ctx);
+        buf.putU32(ctx.funcTable.size());// func.count
+        buf.flushTo(out);
+        for (Function f : ctx.funcTable) {
+            addFunc(buf, f);
+            buf.flushTo(out);
         }
-        return -1;// 随便整的，不存在这种情况
     }
 }
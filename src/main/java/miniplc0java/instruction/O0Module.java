@@ -0,0 +1,101 @@
+package miniplc0java.instruction;
+
+import java.util.List;
+
+import miniplc0java.analyser.Function;
+import miniplc0java.util.Ty;
+
+/**
+ * 解码后的 o0 模块
+ * 不为每条指令创建对象，所有函数的指令放在同一组扁平数组里：
+ * 第 f 个函数的指令是 [funcStart[f], funcStart[f + 1]) 这一段
+ */
+public class O0Module {
+    public int magic;
+    public int version;
+
+    // 全局表
+    public boolean[] globalIsConst;
+    public byte[][] globals;
+
+    // 函数表，下标就是 call 的操作数
+    public int[] funcName;// 函数名在全局表中的偏移
+    public int[] retSlots;
+    public int[] paramSlots;
+    public int[] locSlots;
+    public int[] funcStart;// 长度为函数个数+1，最后一项是指令总数
+
+    // 指令
+    public byte[] opcodes;// o0 中的指令编码
+    public long[] operands;// 没有操作数的指令为0，u32/i32 已经做了符号扩展
+
+    /**
+     * 直接用编译器的函数表构造模块，和写出再读回来的结果相同
+     * 只是没有常量标记，globalIsConst 全为 false
+     *
+     * @param functions 函数表
+     * @param globals   全局表每一项的初始值，见 Instruction.globalValues()
+     * @return
+     */
+    public static O0Module of(List<Function> functions, List<byte[]> globals) {
+        O0Module m = new O0Module();
+        m.magic = O0Reader.MAGIC;
+        m.version = O0Reader.VERSION;
+        m.globals = globals.toArray(new byte[0][]);
+        m.globalIsConst = new boolean[m.globals.length];
+        int n = functions.size();
+        m.funcName = new int[n];
+        m.retSlots = new int[n];
+        m.paramSlots = new int[n];
+        m.locSlots = new int[n];
+        m.funcStart = new int[n + 1];
+        int total = 0;
+        for (Function f : functions) {
+            total += f.instructions.size();
+        }
+        m.opcodes = new byte[total];
+        m.operands = new long[total];
+        int at = 0;
+        for (int i = 0; i < n; i++) {
+            Function f = functions.get(i);
+            m.funcName[i] = f.offset;
+            m.retSlots[i] = (f.getReturnType() == null || f.getReturnType() == Ty.VOID) ? 0 : 1;
+            m.paramSlots[i] = f.calParamSlot();
+            m.locSlots[i] = f.localCount;
+            m.funcStart[i] = at;
+            for (Instruction ins : f.instructions) {
+                m.opcodes[at] = (byte) ins.getOpt().getCode();
+                m.operands[at] = ins.getOperand();
+                at++;
+            }
+        }
+        m.funcStart[n] = at;
+        return m;
+    }
+
+    public int functionCount() {
+        return funcName.length;
+    }
+
+    public int instructionCount() {
+        return funcStart[funcName.length];
+    }
+
+    /**
+     * 按指令编码查 Operation
+     *
+     * @param code o0 中的指令编码
+     * @return 不认识的编码返回 null
+     */
+    public static Operation operationOf(int code) {
+        return BY_CODE[code & 0xff];
+    }
+
+    private static final Operation[] BY_CODE = new Operation[256];
+
+    static {
+        for (Operation op : Operation.values()) {
+            BY_CODE[op.getCode()] = op;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package miniplc0java.instruction;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 读入 o0 模块，是 Instruction 里那些 add* 函数的逆过程
+ * 文件通过 FileChannel.map 映射进内存，直接解码成 O0Module 的扁平数组
+ */
+public class O0Reader {
+    public static final int MAGIC = 0x72303b3e;
+    public static final int VERSION = 0x00000001;
+
+    private O0Reader() {
+    }
+
+    public static O0Module read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buf);
+        }
+    }
+
+    /**
+     * 从 buf 的当前位置开始解码一个模块
+     *
+     * @param buf
+     * @return
+     * @throws IOException 格式不对或者文件被截断
+     */
+    public static O0Module read(ByteBuffer buf) throws IOException {
+        buf.order(ByteOrder.BIG_ENDIAN);
+        try {
+            return decode(buf);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated o0 module");
+        }
+    }
+
+    private static int count(ByteBuffer buf) throws IOException {
+        int n = buf.getInt();
+        // 每一项至少占一个字节，大于剩余长度的计数一定是坏的
+        if (n < 0 || n > buf.remaining())
+            throw new IOException("invalid count " + Integer.toUnsignedString(n) + " at " + (buf.position() - 4));
+        return n;
+    }
+
+    private static O0Module decode(ByteBuffer buf) throws IOException {
+        O0Module m = new O0Module();
+        m.magic = buf.getInt();
+        if (m.magic != MAGIC)
+            throw new IOException("bad magic 0x" + Integer.toHexString(m.magic));
+        m.version = buf.getInt();
+        if (m.version != VERSION)
+            throw new IOException("unsupported version " + m.version);
+
+        // 全局表
+        int globalCount = count(buf);
+        m.globalIsConst = new boolean[globalCount];
+        m.globals = new byte[globalCount][];
+        for (int i = 0; i < globalCount; i++) {
+            m.globalIsConst[i] = buf.get() != 0;
+            byte[] value = new byte[count(buf)];
+            buf.get(value);
+            m.globals[i] = value;
+        }
+
+        // 函数表
+        int funcCount = count(buf);
+        m.funcName = new int[funcCount];
+        m.retSlots = new int[funcCount];
+        m.paramSlots = new int[funcCount];
+        m.locSlots = new int[funcCount];
+        m.funcStart = new int[funcCount + 1];
+        byte[] opcodes = new byte[Math.max(16, Math.min(buf.remaining(), 1 << 16))];
+        long[] operands = new long[opcodes.length];
+        int n = 0;
+        for (int f = 0; f < funcCount; f++) {
+            m.funcName[f] = buf.getInt();
+            m.retSlots[f] = buf.getInt();
+            m.paramSlots[f] = buf.getInt();
+            m.locSlots[f] = buf.getInt();
+            int bodyCount = count(buf);
+            m.funcStart[f] = n;
+            if (n + bodyCount > opcodes.length) {
+                int newLength = Math.max(opcodes.length * 2, n + bodyCount);
+                opcodes = Arrays.copyOf(opcodes, newLength);
+                operands = Arrays.copyOf(operands, newLength);
+            }
+            for (int i = 0; i < bodyCount; i++, n++) {
+                int pos = buf.position();
+                byte code = buf.get();
+                Operation op = O0Module.operationOf(code);
+                if (op == null)
+                    throw new IOException("unknown opcode 0x" + Integer.toHexString(code & 0xff) + " at " + pos);
+                opcodes[n] = code;
+                switch (op.getOperandSize()) {
+                    case 8:
+                        operands[n] = buf.getLong();
+                        break;
+                    case 4:
+                        operands[n] = buf.getInt();
+                        break;
+                    default:
+                        operands[n] = 0;
+                        break;
+                }
+            }
+        }
+        m.funcStart[funcCount] = n;
+        m.opcodes = Arrays.copyOf(opcodes, n);
+        m.operands = Arrays.copyOf(operands, n);
+        return m;
+    }
+}
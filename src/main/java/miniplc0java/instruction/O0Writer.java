@@ -0,0 +1,94 @@
+package miniplc0java.instruction;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * o0 目标文件的字节缓冲区
+ * 大端序，直接写入 byte[]，不会为每个字节装箱，也不会为每条指令创建临时列表
+ */
+public class O0Writer {
+    private byte[] buf;
+    private int size = 0;
+
+    public O0Writer() {
+        this(4096);
+    }
+
+    public O0Writer(int initialCapacity) {
+        this.buf = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * 保证还能再写入 n 个字节
+     */
+    private void ensure(int n) {
+        if (size + n > buf.length) {
+            int newLength = Math.max(buf.length << 1, size + n);
+            buf = Arrays.copyOf(buf, newLength);
+        }
+    }
+
+    public void putU8(int v) {
+        ensure(1);
+        buf[size++] = (byte) v;
+    }
+
+    public void putU32(int v) {
+        ensure(4);
+        buf[size] = (byte) (v >>> 24);
+        buf[size + 1] = (byte) (v >>> 16);
+        buf[size + 2] = (byte) (v >>> 8);
+        buf[size + 3] = (byte) v;
+        size += 4;
+    }
+
+    public void putU64(long v) {
+        ensure(8);
+        putU32((int) (v >>> 32));
+        putU32((int) v);
+    }
+
+    public void putBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * 已写入的字节数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 清空内容但保留已分配的空间，便于复用
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+
+    /**
+     * 把缓冲区内容全部写进 channel，然后清空缓冲区
+     * 流式输出时每写完一段就调用一次，缓冲区只需要容纳最大的一段
+     */
+    public void flushTo(WritableByteChannel out) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, size);
+        while (bb.hasRemaining()) {
+            out.write(bb);
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,342 @@
+package miniplc0java.optimizer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 窥孔优化，在 Analyser.analyse() 之后、写出目标文件之前对每个函数的指令做改写
+ *
+ * 改写前先把 br/brtrue/brfalse 的相对偏移换算成绝对位置，删改完指令后再换算回相对偏移，
+ * 所以删掉任意条指令都不会破坏跳转
+ *
+ * 规则：
+ * - brtrue 1; br k  =>  brfalse k，brfalse 1; br k  =>  brtrue k
+ * - 跳到下一条的跳转(如 br 0)删掉，条件跳转换成 pop
+ * - 跳到 br 的跳转直接跳到最终目标
+ * - push 0; addi/subi 和 push 1; muli/divi 删掉
+ * - loca n; load64; loca n; load64  =>  loca n; load64; dup，arga、globa 同理
+ * - loca n; loca n; load64; store64 删掉，arga、globa 同理
+ * - 无条件跳转和 ret 之后到下一个跳转目标之前的不可达指令删掉
+ * - br k 前面的几个块和顺序执行到 k 前面的几个块相同时，前一份换成跳到后一份开头的 br(尾部合并)
+ */
+public class PeepholeOptimizer {
+    // 重复改写的次数上限，每一轮都只会让指令变少，正常几轮就收敛
+    private static final int MAX_ROUNDS = 16;
+
+    private List<Instruction> insts;
+    // 跳转指令的绝对目标，其它指令为 -1
+    private List<Integer> targets;
+    // 每条指令是不是某个跳转的目标
+    private boolean[] isTarget;
+
+    private PeepholeOptimizer(List<Instruction> instructions) {
+        this.insts = new ArrayList<>(instructions);
+        this.targets = new ArrayList<>(instructions.size());
+        for (int i = 0; i < insts.size(); i++) {
+            Instruction ins = insts.get(i);
+            targets.add(isBranch(ins.getOpt()) ? i + 1 + (int) ins.getOperand() : -1);
+        }
+    }
+
+    /**
+     * 优化所有函数
+     *
+     * @param report 不为 null 时输出每个函数优化前后的指令条数
+     */
+    public static void optimize(List<Function> functions, PrintStream report) {
+        int before = 0;
+        int after = 0;
+        for (Function f : functions) {
+            int n = f.instructions.size();
+            optimize(f);
+            before += n;
+            after += f.instructions.size();
+            if (report != null)
+                report.println(f.getName() + ": " + n + " -> " + f.instructions.size());
+        }
+        if (report != null)
+            report.println("total: " + before + " -> " + after);
+    }
+
+    /**
+     * 优化一个函数，直接替换 f.instructions 的内容
+     */
+    public static void optimize(Function f) {
+        PeepholeOptimizer opt = new PeepholeOptimizer(f.instructions);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (!opt.round())
+                break;
+        }
+        f.instructions.clear();
+        f.instructions.addAll(opt.emit());
+    }
+
+    /**
+     * 只做尾部合并
+     *
+     * @return 合并后的指令，不改动 instructions
+     */
+    static List<Instruction> mergeTails(List<Instruction> instructions) {
+        PeepholeOptimizer opt = new PeepholeOptimizer(instructions);
+        while (opt.mergeTails()) {
+            // 每次合并都让指令变少
+        }
+        return opt.emit();
+    }
+
+    private static boolean isBranch(Operation op) {
+        return op == Operation.br || op == Operation.brtrue || op == Operation.brfalse;
+    }
+
+    /**
+     * @return 第 i 条指令的操作，越界或者已经删掉时为 null
+     */
+    private Operation op(int i) {
+        if (i >= insts.size() || insts.get(i) == null)
+            return null;
+        return insts.get(i).getOpt();
+    }
+
+    private long operand(int i) {
+        return insts.get(i).getOperand();
+    }
+
+    private void markTargets() {
+        isTarget = new boolean[insts.size() + 1];
+        for (int t : targets) {
+            if (t >= 0 && t <= insts.size())
+                isTarget[t] = true;
+        }
+    }
+
+    /**
+     * 做一轮改写，删掉的指令先置为 null，最后统一压缩
+     *
+     * @return 这一轮有没有改动
+     */
+    private boolean round() {
+        markTargets();
+        int n = insts.size();
+        boolean changed = false;
+
+        // 跳到 br 的跳转直接跳到最终目标，跳过的 br 链有环时不处理
+        for (int i = 0; i < n; i++) {
+            int t = targets.get(i);
+            if (t < 0)
+                continue;
+            int hops = 0;
+            while (t < n && op(t) == Operation.br && targets.get(t) != t && hops++ < n) {
+                t = targets.get(t);
+            }
+            if (t != targets.get(i) && hops <= n) {
+                targets.set(i, t);
+                changed = true;
+            }
+        }
+        markTargets();
+
+        for (int i = 0; i < n; i++) {
+            Operation a = op(i);
+            if (a == null)
+                continue;
+            Operation b = op(i + 1);
+            if ((a == Operation.brtrue || a == Operation.brfalse) && targets.get(i) == i + 2
+                    && b == Operation.br && !isTarget[i + 1]) {
+                // brtrue 1; br k => brfalse k
+                Operation inverted = a == Operation.brtrue ? Operation.brfalse : Operation.brtrue;
+                insts.set(i, new Instruction(inverted, 0));
+                targets.set(i, targets.get(i + 1));
+                remove(i + 1);
+                changed = true;
+            } else if (isBranch(a) && targets.get(i) == i + 1) {
+                // 跳到下一条
+                if (a == Operation.br) {
+                    remove(i);
+                } else {
+                    insts.set(i, new Instruction(Operation.pop));
+                    targets.set(i, -1);
+                }
+                changed = true;
+            } else if (a == Operation.push && !isTarget[i + 1]
+                    && ((operand(i) == 0 && (b == Operation.addi || b == Operation.subi))
+                    || (operand(i) == 1 && (b == Operation.muli || b == Operation.divi)))) {
+                remove(i);
+                remove(i + 1);
+                changed = true;
+            } else if ((a == Operation.loca || a == Operation.arga || a == Operation.globa)
+                    && b == Operation.load64 && op(i + 2) == a && op(i + 3) == Operation.load64
+                    && operand(i) == operand(i + 2) && !isTarget[i + 1] && !isTarget[i + 2] && !isTarget[i + 3]) {
+                // 连续读同一个变量
+                insts.set(i + 2, new Instruction(Operation.dup));
+                remove(i + 3);
+                changed = true;
+            } else if ((a == Operation.loca || a == Operation.arga || a == Operation.globa)
+                    && b == a && operand(i) == operand(i + 1) && op(i + 2) == Operation.load64
+                    && op(i + 3) == Operation.store64 && !isTarget[i + 1] && !isTarget[i + 2] && !isTarget[i + 3]) {
+                // 变量赋值给自己，SlotAllocator 把复制的两边分到同一个 slot 之后会出现
+                for (int k = i; k < i + 4; k++) {
+                    remove(k);
+                }
+                changed = true;
+            }
+        }
+        changed |= removeUnreachable();
+        compact();
+        changed |= mergeTails();
+        return changed;
+    }
+
+    /**
+     * 尾部合并：br t 前面的 k 条和 t 前面的 k 条相同(跳转比较绝对目标)时，执行哪一份都一样，
+     * 前一份的第一条换成跳到后一份开头的 br，其余的连同 br t 删掉；跳进被删部分的跳转改到后一份对应的位置
+     */
+    private boolean mergeTails() {
+        markTargets();
+        int n = insts.size();
+        boolean changed = false;
+        for (int j = 0; j < n; j++) {
+            if (op(j) != Operation.br)
+                continue;
+            int t = targets.get(j);
+            if (t > n)
+                continue;
+            int k = 0;
+            while (true) {
+                int a = j - 1 - k;
+                int b = t - 1 - k;
+                // 两份不能重叠
+                if (a < 0 || b < 0 || (b <= j && b >= a) || (a <= t - 1 && a >= b))
+                    break;
+                if (op(a) == null || op(a) != op(b) || targets.get(a) != (int) targets.get(b))
+                    break;
+                if (targets.get(a) < 0 && operand(a) != operand(b))
+                    break;
+                k++;
+            }
+            // 只在块的开头合并，这时运算栈上没有压了一半的地址，之后的分析(SlotAllocator 等)还能处理
+            while (k > 0 && !(isLeader(t - k) && isLeader(j - k))) {
+                k--;
+            }
+            if (k == 0)
+                continue;
+            for (int i = 0; i < n; i++) {
+                int target = targets.get(i);
+                if (target > j - k && target <= j)
+                    targets.set(i, target - j + t);
+            }
+            insts.set(j - k, new Instruction(Operation.br, 0));
+            targets.set(j - k, t - k);
+            for (int i = j - k + 1; i <= j; i++) {
+                remove(i);
+            }
+            changed = true;
+            markTargets();
+        }
+        compact();
+        return changed;
+    }
+
+    /**
+     * 第 i 条是不是基本块的开头
+     */
+    private boolean isLeader(int i) {
+        if (i == 0 || isTarget[i])
+            return true;
+        Operation prev = op(i - 1);
+        return prev != null && (isBranch(prev) || prev == Operation.ret || prev == Operation.panic);
+    }
+
+    private void remove(int i) {
+        insts.set(i, null);
+        targets.set(i, -1);
+    }
+
+    /**
+     * 从第 0 条开始沿着顺序执行和跳转找可达的指令，其余的删掉
+     */
+    private boolean removeUnreachable() {
+        int n = insts.size();
+        boolean[] reachable = new boolean[n + 1];
+        int[] work = new int[n + 1];
+        int top = 0;
+        work[top++] = 0;
+        reachable[0] = true;
+        while (top > 0) {
+            int i = work[--top];
+            // 已删掉的指令相当于直接落到下一条
+            int next = i + 1;
+            int target = -1;
+            if (i < n && insts.get(i) != null) {
+                Operation a = op(i);
+                if (a == Operation.br || a == Operation.ret || a == Operation.panic)
+                    next = -1;
+                target = targets.get(i);
+            }
+            if (i == n)
+                next = -1;
+            if (next >= 0 && !reachable[next]) {
+                reachable[next] = true;
+                work[top++] = next;
+            }
+            if (target >= 0 && target <= n && !reachable[target]) {
+                reachable[target] = true;
+                work[top++] = target;
+            }
+        }
+        boolean changed = false;
+        for (int i = 0; i < n; i++) {
+            if (!reachable[i] && insts.get(i) != null) {
+                remove(i);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 去掉置为 null 的指令，跳转目标指向删除后的位置
+     * 目标被删掉时指向它后面第一条留下的指令
+     */
+    private void compact() {
+        int n = insts.size();
+        int[] newIndex = new int[n + 1];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            newIndex[i] = count;
+            if (insts.get(i) != null)
+                count++;
+        }
+        newIndex[n] = count;
+        List<Instruction> newInsts = new ArrayList<>(count);
+        List<Integer> newTargets = new ArrayList<>(count);
+        for (int i = 0; i < n; i++) {
+            if (insts.get(i) == null)
+                continue;
+            newInsts.add(insts.get(i));
+            int t = targets.get(i);
+            newTargets.add(t >= 0 ? newIndex[Math.min(t, n)] : -1);
+        }
+        insts = newInsts;
+        targets = newTargets;
+    }
+
+    /**
+     * 把绝对目标换算回相对偏移
+     */
+    private List<Instruction> emit() {
+        List<Instruction> ret = new ArrayList<>(insts.size());
+        for (int i = 0; i < insts.size(); i++) {
+            Instruction ins = insts.get(i);
+            int t = targets.get(i);
+            if (t >= 0)
+                ins = new Instruction(ins.getOpt(), t - i - 1);
+            ret.add(ins);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,378 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Token;
+
+/**
+ * 局部变量的 slot 分配：活跃区间不相交的局部变量放进同一个 slot，减小 loc_slots
+ *
+ * Analyser 给每个声明的局部变量一个 slot，SsaOptimizer 给每个要存的值一个 slot，
+ * 这里按指令算出每个 slot 在哪些地方活跃(之后还会被读)，写一个 slot 时和当时活跃的其它 slot 冲突，
+ * 再按冲突图贪心着色，颜色就是新的 slot；没有用到的 slot 直接去掉
+ *
+ * loca 压的地址只能被 load64/store64 用掉，否则不知道读写的是哪个 slot，这个函数保持原样
+ * 读没写过的局部变量得到 0：这样的 slot 从函数开头一直活跃到读的地方，期间写别的 slot 都算冲突
+ */
+public class SlotAllocator {
+    // 模拟运算栈时每一项的标记：非负数是 loca 压的地址(slot)，UNKNOWN 是其它值，
+    // 不大于 LOADED 的是从 slot (LOADED - 标记) 读出来的值，写到另一个 slot 时是复制
+    private static final int UNKNOWN = -1;
+    private static final int LOADED = -2;
+
+    private final Function f;
+    private final List<Function> functions;
+    private final List<Token> globals;
+    private final int slots;
+
+    // 每条指令读(load64)或写(store64)的 slot，-1 表示都不是
+    private int[] reads;
+    private int[] writes;
+    // 写的值是从哪个 slot 复制来的，不是复制时为 -1
+    private int[] copyFrom;
+
+    private SlotAllocator(Function f, CompileContext ctx) {
+        this.f = f;
+        this.functions = ctx.funcTable;
+        this.globals = ctx.globalVarTable;
+        this.slots = f.localCount;
+    }
+
+    /**
+     * 重新分配一个函数的局部变量，直接改 loca 的操作数和 f.localCount
+     *
+     * @return 是否分配过，不能分析时为 false
+     */
+    public static boolean allocate(Function f, CompileContext ctx) {
+        if (f.localCount == 0)
+            return false;
+        SlotAllocator alloc = new SlotAllocator(f, ctx);
+        return alloc.run();
+    }
+
+    private boolean run() {
+        int n = f.instructions.size();
+        reads = new int[n];
+        writes = new int[n];
+        copyFrom = new int[n];
+        boolean[] leader = new boolean[n + 1];
+        int[] target = new int[n];
+        leader[0] = true;
+        for (int i = 0; i < n; i++) {
+            Instruction ins = f.instructions.get(i);
+            Operation op = ins.getOpt();
+            target[i] = -1;
+            if (op == Operation.br || op == Operation.brtrue || op == Operation.brfalse) {
+                long t = i + 1 + ins.getOperand();
+                if (t < 0 || t > n)
+                    return false;
+                target[i] = (int) t;
+                leader[(int) t] = true;
+                leader[i + 1] = true;
+            } else if (op == Operation.ret || op == Operation.panic) {
+                leader[i + 1] = true;
+            }
+        }
+        // 块的开头，最后一项是 n
+        ArrayList<Integer> starts = new ArrayList<>();
+        int[] blockOf = new int[n + 1];
+        for (int i = 0; i <= n; i++) {
+            if (leader[i] && i < n)
+                starts.add(i);
+            blockOf[i] = starts.size() - 1;
+        }
+        int blocks = starts.size();
+        starts.add(n);
+        for (int b = 0; b < blocks; b++) {
+            if (!simulate(starts.get(b), starts.get(b + 1)))
+                return false;
+        }
+
+        // 每块的后继：跳转目标，以及顺序执行的下一块；n 是函数结尾，没有后继
+        int[][] succs = new int[blocks][];
+        for (int b = 0; b < blocks; b++) {
+            int last = starts.get(b + 1) - 1;
+            Operation op = f.instructions.get(last).getOpt();
+            int fall = starts.get(b + 1) < n ? b + 1 : -1;
+            int jump = target[last] >= 0 && target[last] < n ? blockOf[target[last]] : -1;
+            if (op == Operation.ret || op == Operation.panic)
+                succs[b] = new int[0];
+            else if (op == Operation.br)
+                succs[b] = jump < 0 ? new int[0] : new int[]{jump};
+            else if (target[last] >= 0)
+                succs[b] = jump < 0 ? (fall < 0 ? new int[0] : new int[]{fall}) : (fall < 0 ? new int[]{jump} : new int[]{jump, fall});
+            else
+                succs[b] = fall < 0 ? new int[0] : new int[]{fall};
+        }
+
+        // 活跃变量，倒着迭代到不动点
+        BitSet[] liveIn = new BitSet[blocks];
+        BitSet[] liveOut = new BitSet[blocks];
+        for (int b = 0; b < blocks; b++) {
+            liveIn[b] = new BitSet();
+            liveOut[b] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks - 1; b >= 0; b--) {
+                for (int s : succs[b]) {
+                    liveOut[b].or(liveIn[s]);
+                }
+                BitSet live = (BitSet) liveOut[b].clone();
+                transfer(starts.get(b), starts.get(b + 1), live, null);
+                if (!live.equals(liveIn[b])) {
+                    liveIn[b] = live;
+                    changed = true;
+                }
+            }
+        }
+        BitSet[] interfere = new BitSet[slots];
+        for (int s = 0; s < slots; s++) {
+            interfere[s] = new BitSet();
+        }
+        for (int b = 0; b < blocks; b++) {
+            transfer(starts.get(b), starts.get(b + 1), (BitSet) liveOut[b].clone(), interfere);
+        }
+        // 按 slot 的顺序贪心着色，复制的两边优先用同一个颜色
+        BitSet used = new BitSet();
+        ArrayList<ArrayList<Integer>> partners = new ArrayList<>();
+        for (int s = 0; s < slots; s++) {
+            partners.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            if (reads[i] >= 0)
+                used.set(reads[i]);
+            if (writes[i] >= 0)
+                used.set(writes[i]);
+            if (copyFrom[i] >= 0) {
+                partners.get(writes[i]).add(copyFrom[i]);
+                partners.get(copyFrom[i]).add(writes[i]);
+            }
+        }
+        int[] color = new int[slots];
+        int colors = 0;
+        for (int s = 0; s < slots; s++) {
+            color[s] = -1;
+            if (!used.get(s))
+                continue;
+            BitSet taken = new BitSet();
+            for (int t = interfere[s].nextSetBit(0); t >= 0; t = interfere[s].nextSetBit(t + 1)) {
+                if (color[t] >= 0)
+                    taken.set(color[t]);
+            }
+            int c = -1;
+            for (int other : partners.get(s)) {
+                if (c < 0 && color[other] >= 0 && !taken.get(color[other]))
+                    c = color[other];
+            }
+            if (c < 0)
+                c = taken.nextClearBit(0);
+            color[s] = c;
+            colors = Math.max(colors, c + 1);
+        }
+        for (int i = 0; i < n; i++) {
+            Instruction ins = f.instructions.get(i);
+            if (ins.getOpt() == Operation.loca) {
+                int c = color[(int) ins.getOperand()];
+                if (c != ins.getOperand())
+                    f.instructions.set(i, new Instruction(Operation.loca, c));
+            }
+        }
+        f.localCount = colors;
+        return true;
+    }
+
+    /**
+     * 模拟一个块的运算栈，找出每个 loca 的地址被哪条 load64/store64 用掉
+     * 块开始时栈里的东西看不到，当成 UNKNOWN
+     *
+     * @return 地址是否都在块内被 load64/store64 用掉
+     */
+    private boolean simulate(int from, int to) {
+        ArrayList<Integer> stack = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Instruction ins = f.instructions.get(i);
+            Operation op = ins.getOpt();
+            reads[i] = -1;
+            writes[i] = -1;
+            copyFrom[i] = -1;
+            int pops;
+            int pushes = 0;
+            switch (op) {
+                case loca: {
+                    long s = ins.getOperand();
+                    if (s < 0 || s >= slots)
+                        return false;
+                    stack.add((int) s);
+                    continue;
+                }
+                case load64: {
+                    int addr = pop(stack);
+                    if (addr >= 0) {
+                        reads[i] = addr;
+                        stack.add(LOADED - addr);
+                    } else {
+                        stack.add(UNKNOWN);
+                    }
+                    continue;
+                }
+                case store64: {
+                    int value = pop(stack);
+                    int addr = pop(stack);
+                    if (value >= 0)
+                        return false;
+                    if (addr >= 0) {
+                        writes[i] = addr;
+                        copyFrom[i] = value <= LOADED ? LOADED - value : -1;
+                        // 栈里之前从这个 slot 读出来的值已经不是它现在的值了，比如并行复制里的交换
+                        for (int k = 0; k < stack.size(); k++) {
+                            if (stack.get(k) == LOADED - addr)
+                                stack.set(k, UNKNOWN);
+                        }
+                    }
+                    continue;
+                }
+                case dup: {
+                    int top = pop(stack);
+                    if (top >= 0)
+                        return false;
+                    stack.add(top);
+                    stack.add(top);
+                    continue;
+                }
+                case nop:
+                case br:
+                case ret:
+                case println:
+                case panic:
+                    pops = 0;
+                    break;
+                case push:
+                case arga:
+                case globa:
+                case scani:
+                case scanc:
+                case scanf:
+                    pops = 0;
+                    pushes = 1;
+                    break;
+                case pop:
+                case brtrue:
+                case brfalse:
+                case printi:
+                case printc:
+                case printf:
+                case prints:
+                case free:
+                    pops = 1;
+                    break;
+                case popn:
+                    pops = (int) ins.getOperand();
+                    break;
+                case stackalloc:
+                    pops = 0;
+                    pushes = (int) ins.getOperand();
+                    break;
+                case load8:
+                case load16:
+                case load32:
+                case alloc:
+                case not:
+                case negi:
+                case negf:
+                case itof:
+                case ftoi:
+                case setlt:
+                case setgt:
+                    pops = 1;
+                    pushes = 1;
+                    break;
+                case store8:
+                case store16:
+                case store32:
+                    pops = 2;
+                    break;
+                case call: {
+                    long k = ins.getOperand();
+                    if (k < 0 || k >= functions.size())
+                        return false;
+                    // 返回值的位置在参数下面，调用前后都在栈上
+                    pops = functions.get((int) k).calParamSlot();
+                    break;
+                }
+                case callname: {
+                    long g = ins.getOperand();
+                    if (g < 0 || g >= globals.size())
+                        return false;
+                    String name = globals.get((int) g).getValueString();
+                    if (name.equals("putln")) {
+                        pops = 0;
+                    } else if (name.startsWith("put")) {
+                        pops = 1;
+                    } else if (name.startsWith("get")) {
+                        // 把结果写进预留的位置
+                        pops = 1;
+                        pushes = 1;
+                    } else {
+                        return false;
+                    }
+                    break;
+                }
+                default:
+                    // 二元运算
+                    pops = 2;
+                    pushes = 1;
+                    break;
+            }
+            for (int k = 0; k < pops; k++) {
+                if (pop(stack) >= 0)
+                    return false;
+            }
+            for (int k = 0; k < pushes; k++) {
+                stack.add(UNKNOWN);
+            }
+        }
+        for (int tag : stack) {
+            if (tag >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static int pop(ArrayList<Integer> stack) {
+        return stack.isEmpty() ? UNKNOWN : stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * 从块的结尾倒着走到开头，live 变成块开头活跃的 slot
+     *
+     * @param interfere 不为 null 时记下写 slot 时的冲突
+     */
+    private void transfer(int from, int to, BitSet live, BitSet[] interfere) {
+        for (int i = to - 1; i >= from; i--) {
+            int w = writes[i];
+            if (w >= 0) {
+                live.clear(w);
+                if (interfere != null) {
+                    BitSet others = (BitSet) live.clone();
+                    // 复制之后两边的值相同，不算冲突
+                    if (copyFrom[i] >= 0)
+                        others.clear(copyFrom[i]);
+                    interfere[w].or(others);
+                    for (int s = others.nextSetBit(0); s >= 0; s = others.nextSetBit(s + 1)) {
+                        interfere[s].set(w);
+                    }
+                }
+            }
+            if (reads[i] >= 0)
+                live.set(reads[i]);
+        }
+    }
+}
@@ -0,0 +1,1405 @@
+package miniplc0java.optimizer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.util.Ty;
+
+/**
+ * 基于 SSA 的全局优化，在 PeepholeOptimizer 之前对每个函数做一遍
+ *
+ * 1. 按跳转把指令切成基本块，建控制流图和支配树
+ * 2. 逐块模拟运算栈，把栈上的计算还原成值(Node)；局部变量和参数的读写变成 SSA 的定义和使用，汇合处放 phi
+ * 3. 值编号：按支配树合并相同的计算，顺便折叠常量、去掉平凡的 phi，变量之间的复制也就没有了
+ * 4. 从副作用(调用、读写全局变量、跳转条件、返回值)出发标记用到的值，其余的都不生成
+ * 5. 生成回栈式代码：只用一次的值直接嵌在使用的地方，phi、跨块或者用多次又算得慢的值存进新的局部变量，
+ *    phi 在前驱块的末尾(条件跳转的那条边上)一起复制
+ *
+ * 调用、读写全局变量和除数不是常量的除法按原来的顺序执行
+ * 遇到不认识的指令、入口块是循环头、块开始时运算栈里有东西被用到等情况，这个函数保持原样
+ */
+public class SsaOptimizer {
+    // 常量条件的跳转生成时直接去掉，要下一轮重新建图才能删掉不可达的块
+    private static final int MAX_ROUNDS = 4;
+    // 生成代码时是递归的，嵌在一起的值超过这么多层就存进局部变量
+    private static final int MAX_DEPTH = 100;
+
+    // 值的种类
+    private static final int CONST = 0;// value 是 64 位的值
+    private static final int PARAM = 1;// 进入函数时参数(包括返回值)的值，value 是 arga 的操作数
+    private static final int PHI = 2;// value 是变量编号
+    private static final int PURE = 3;// 没有副作用的运算
+    private static final int PINNED = 4;// 调用、读写全局变量、可能除以 0 的除法，value 是 call/callname/globa 的操作数
+    private static final int ADDR = 5;// loca/arga/globa 压的地址，只能被 load64/store64 用掉
+
+    private final Function f;
+    private final List<Function> functions;
+    private final List<Token> globals;
+    // 返回值和参数占的 slot 数，变量编号先是 arga 的操作数，然后是 loca 的操作数加上 argSlots
+    private final int retSlots;
+    private final int argSlots;
+    private final int vars;
+
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    // 按逆后序排列的可达块，支配者总在前面
+    private final ArrayList<Block> rpo = new ArrayList<>();
+    private final HashMap<Long, Node> constants = new HashMap<>();
+    private Node[] params;
+    private int nextId = 0;
+    private int slots = 0;
+    // 下标是 slot，合并之前每个值一个
+    private final ArrayList<Node> slotted = new ArrayList<>();
+
+    private ArrayList<Instruction> out;
+    // 每条跳转指令的目标块，其它指令为 null
+    private ArrayList<Block> jumps;
+
+    private SsaOptimizer(Function f, CompileContext ctx) {
+        this.f = f;
+        this.functions = ctx.funcTable;
+        this.globals = ctx.globalVarTable;
+        this.retSlots = hasReturnSlot(f) ? 1 : 0;
+        this.argSlots = retSlots + f.calParamSlot();
+        this.vars = argSlots + f.localCount;
+    }
+
+    /**
+     * -O：每个函数依次做 SSA 优化、局部变量的 slot 分配、窥孔优化
+     *
+     * @param report 不为 null 时输出每个函数原来、SSA 优化后、窥孔优化后的指令条数，以及分配前后的局部变量个数
+     */
+    public static void optimize(CompileContext ctx, PrintStream report) {
+        int before = 0;
+        int middle = 0;
+        int after = 0;
+        int localsBefore = 0;
+        int localsAfter = 0;
+        for (Function f : ctx.funcTable) {
+            int n = f.instructions.size();
+            int locals = f.localCount;
+            optimize(f, ctx);
+            int m = f.instructions.size();
+            SlotAllocator.allocate(f, ctx);
+            PeepholeOptimizer.optimize(f);
+            before += n;
+            middle += m;
+            after += f.instructions.size();
+            localsBefore += locals;
+            localsAfter += f.localCount;
+            if (report != null)
+                report.println(f.getName() + ": " + n + " -> " + m + " -> " + f.instructions.size()
+                        + " (locals " + locals + " -> " + f.localCount + ")");
+        }
+        if (report != null)
+            report.println("total: " + before + " -> " + middle + " -> " + after
+                    + " (locals " + localsBefore + " -> " + localsAfter + ")");
+    }
+
+    /**
+     * 优化一个函数，直接替换 f.instructions 和 f.localCount
+     * 生成的指令不比原来少时保留原来的
+     * 放到多个前驱上的复制常常是相同的尾部，先合并掉再比较
+     */
+    public static void optimize(Function f, CompileContext ctx) {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            SsaOptimizer opt = new SsaOptimizer(f, ctx);
+            ArrayList<Instruction> ssa = opt.run();
+            if (ssa == null)
+                break;
+            List<Instruction> code = PeepholeOptimizer.mergeTails(ssa);
+            if (code.size() >= f.instructions.size())
+                break;
+            f.instructions.clear();
+            f.instructions.addAll(code);
+            f.localCount = opt.slots;
+        }
+    }
+
+    private static boolean hasReturnSlot(Function f) {
+        return f.getReturnType() != null && f.getReturnType() != Ty.VOID;
+    }
+
+    /**
+     * @return 新的指令，不能处理时为 null
+     */
+    private ArrayList<Instruction> run() {
+        if (!buildBlocks())
+            return null;
+        computeDominators();
+        for (Block b : rpo) {
+            if (!simulate(b))
+                return null;
+        }
+        fillPhis();
+        boolean changed = true;
+        for (int round = 0; changed && round < 16; round++) {
+            changed = removeTrivialPhis();
+            changed |= numberValues();
+        }
+        markLive();
+        assignSlots();
+        for (Block b : rpo) {
+            while (!checkOrder(b)) {
+                // 每次至少多存一个值，总会停下来
+            }
+        }
+        coalesce();
+        return lower();
+    }
+
+    // ---------------------------------------------------------------- 控制流图
+
+    private static final class Block {
+        final int id;
+        final int start;
+        int end;
+        final ArrayList<Block> preds = new ArrayList<>();
+        // br、brtrue、brfalse 或 ret，顺序执行到下一块时为 br
+        Operation term;
+        // 跳转的目标，条件跳转不跳时到 next
+        Block taken;
+        Block next;
+        Node cond;
+        int rpo = -1;
+        Block idom;
+        // 变量编号 -> 这个块开头的 phi
+        Node[] phis;
+        final ArrayList<Node> phiList = new ArrayList<>();
+        // 块里按执行顺序产生的值
+        final ArrayList<Node> order = new ArrayList<>();
+        // 块结尾时各个变量的值
+        Node[] exitDefs;
+
+        Block(int id, int start) {
+            this.id = id;
+            this.start = start;
+        }
+
+        boolean isConditional() {
+            return term == Operation.brtrue || term == Operation.brfalse;
+        }
+    }
+
+    private static boolean isBranch(Operation op) {
+        return op == Operation.br || op == Operation.brtrue || op == Operation.brfalse;
+    }
+
+    private boolean buildBlocks() {
+        List<Instruction> code = f.instructions;
+        int n = code.size();
+        boolean[] leader = new boolean[n + 1];
+        leader[0] = true;
+        leader[n] = true;
+        for (int i = 0; i < n; i++) {
+            Operation op = code.get(i).getOpt();
+            if (isBranch(op)) {
+                long t = i + 1 + code.get(i).getOperand();
+                if (t < 0 || t > n)
+                    return false;
+                leader[(int) t] = true;
+                leader[i + 1] = true;
+            } else if (op == Operation.ret) {
+                leader[i + 1] = true;
+            }
+        }
+        Block[] at = new Block[n + 1];
+        for (int i = 0; i <= n; i++) {
+            if (leader[i]) {
+                at[i] = new Block(blocks.size(), i);
+                blocks.add(at[i]);
+            }
+        }
+        // 最后一块是空的出口，函数执行到最后没有 ret 时视为返回
+        for (int k = 0; k < blocks.size(); k++) {
+            Block b = blocks.get(k);
+            b.end = k + 1 < blocks.size() ? blocks.get(k + 1).start : n;
+            Operation last = b.end > b.start ? code.get(b.end - 1).getOpt() : null;
+            if (b.start == n) {
+                b.term = Operation.ret;
+            } else if (isBranch(last)) {
+                b.term = last;
+                b.taken = at[(int) (b.end + code.get(b.end - 1).getOperand())];
+                if (last != Operation.br)
+                    b.next = at[b.end];
+                b.end--;
+            } else if (last == Operation.ret) {
+                b.term = Operation.ret;
+                b.end--;
+            } else {
+                b.term = Operation.br;
+                b.taken = at[b.end];
+            }
+        }
+        // 逆后序，不可达的块扔掉
+        ArrayList<Block> post = new ArrayList<>();
+        boolean[] seen = new boolean[blocks.size()];
+        // 下一个要看的后继，0 是 taken，1 是 next
+        int[] succ = new int[blocks.size()];
+        ArrayList<Block> stack = new ArrayList<>();
+        stack.add(blocks.get(0));
+        seen[0] = true;
+        while (!stack.isEmpty()) {
+            Block b = stack.get(stack.size() - 1);
+            Block s = null;
+            while (s == null && succ[b.id] < 2) {
+                Block c = succ[b.id]++ == 0 ? b.taken : b.next;
+                if (c != null && !seen[c.id])
+                    s = c;
+            }
+            if (s == null) {
+                stack.remove(stack.size() - 1);
+                post.add(b);
+            } else {
+                seen[s.id] = true;
+                stack.add(s);
+            }
+        }
+        for (int i = post.size() - 1; i >= 0; i--) {
+            Block b = post.get(i);
+            b.rpo = rpo.size();
+            rpo.add(b);
+        }
+        for (Block b : rpo) {
+            if (b.taken != null)
+                b.taken.preds.add(b);
+            if (b.next != null)
+                b.next.preds.add(b);
+        }
+        // 入口块是循环头时要在它前面再放一块，不处理
+        return blocks.get(0).preds.isEmpty();
+    }
+
+    /**
+     * Cooper, Harvey, Kennedy 的迭代算法
+     */
+    private void computeDominators() {
+        Block entry = rpo.get(0);
+        entry.idom = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < rpo.size(); i++) {
+                Block b = rpo.get(i);
+                Block idom = null;
+                for (Block p : b.preds) {
+                    if (p.idom == null)
+                        continue;
+                    idom = idom == null ? p : intersect(p, idom);
+                }
+                if (idom != b.idom) {
+                    b.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.rpo > b.rpo)
+                a = a.idom;
+            while (b.rpo > a.rpo)
+                b = b.idom;
+        }
+        return a;
+    }
+
+    private static boolean dominates(Block a, Block b) {
+        while (b.rpo > a.rpo)
+            b = b.idom;
+        return a == b;
+    }
+
+    // ---------------------------------------------------------------- 值
+
+    private static final class Node {
+        final int id;
+        final int kind;
+        final Operation op;
+        final long value;
+        Node[] in;
+        // 产生它的块，常量和参数为 null
+        final Block block;
+        // 有没有结果压在栈上
+        final boolean result;
+        Node replacedBy;
+
+        boolean live;
+        int uses;
+        Block useBlock;
+        boolean crossBlock;
+        // 存放它的局部变量，-1 表示在用的地方直接算
+        int slot = -1;
+        // 只用一次的 PINNED 值，留到用它的地方再执行
+        boolean deferred;
+        // 直接算一次要生成的指令条数，以及嵌在一起的层数
+        int cost;
+        int depth;
+        // 直接算时里面有留到这里执行的 PINNED 值
+        boolean ordered;
+
+        Node(int id, int kind, Operation op, long value, Node[] in, Block block, boolean result) {
+            this.id = id;
+            this.kind = kind;
+            this.op = op;
+            this.value = value;
+            this.in = in;
+            this.block = block;
+            this.result = result;
+        }
+    }
+
+    private static Node find(Node n) {
+        while (n.replacedBy != null) {
+            if (n.replacedBy.replacedBy != null)
+                n.replacedBy = n.replacedBy.replacedBy;
+            n = n.replacedBy;
+        }
+        return n;
+    }
+
+    private Node constant(long value) {
+        Node c = constants.get(value);
+        if (c == null) {
+            c = new Node(nextId++, CONST, Operation.push, value, new Node[0], null, true);
+            constants.put(value, c);
+        }
+        return c;
+    }
+
+    private static boolean isConstant(Node n, long value) {
+        return n.kind == CONST && n.value == value;
+    }
+
+    private Node add(Block b, int kind, Operation op, long value, Node[] in, boolean result) {
+        Node x = new Node(nextId++, kind, op, value, in, b, result);
+        b.order.add(x);
+        return x;
+    }
+
+    private Node entryDef(int var) {
+        return var < argSlots ? params[var] : constant(0);
+    }
+
+    /**
+     * 块开头各个变量的值：只有一个前驱时沿用它的，多个前驱时放 phi，前驱都分析过且值相同的除外
+     * 按逆后序处理，前驱还没分析的只能是回边
+     */
+    private Node[] entryDefs(Block b) {
+        Node[] defs = new Node[vars];
+        if (b.preds.isEmpty()) {
+            if (params == null) {
+                params = new Node[argSlots];
+                for (int i = 0; i < argSlots; i++) {
+                    params[i] = new Node(nextId++, PARAM, Operation.arga, i, new Node[0], null, true);
+                }
+            }
+            for (int v = 0; v < vars; v++) {
+                defs[v] = entryDef(v);
+            }
+            return defs;
+        }
+        if (b.preds.size() == 1)
+            return b.preds.get(0).exitDefs.clone();
+        b.phis = new Node[vars];
+        for (int v = 0; v < vars; v++) {
+            Node same = null;
+            boolean needPhi = false;
+            for (Block p : b.preds) {
+                if (p.exitDefs == null || (same != null && p.exitDefs[v] != same)) {
+                    needPhi = true;
+                    break;
+                }
+                same = p.exitDefs[v];
+            }
+            if (needPhi) {
+                Node phi = new Node(nextId++, PHI, null, v, new Node[b.preds.size()], b, true);
+                b.phis[v] = phi;
+                b.phiList.add(phi);
+                defs[v] = phi;
+            } else {
+                defs[v] = same;
+            }
+        }
+        return defs;
+    }
+
+    private void fillPhis() {
+        for (Block b : rpo) {
+            for (Node phi : b.phiList) {
+                for (int k = 0; k < b.preds.size(); k++) {
+                    phi.in[k] = b.preds.get(k).exitDefs[(int) phi.value];
+                }
+            }
+        }
+    }
+
+    private static Node pop(ArrayList<Node> stack) {
+        if (stack.isEmpty())
+            return null;
+        Node x = stack.remove(stack.size() - 1);
+        // 地址只能被 load64 和 store64 用
+        return x.kind == ADDR ? null : x;
+    }
+
+    private Node[] popArgs(ArrayList<Node> stack, int n) {
+        Node[] in = new Node[n];
+        for (int i = n - 1; i >= 0; i--) {
+            in[i] = pop(stack);
+            if (in[i] == null)
+                return null;
+        }
+        return in;
+    }
+
+    private int variable(Node addr) {
+        return addr.op == Operation.arga ? (int) addr.value : argSlots + (int) addr.value;
+    }
+
+    /**
+     * 逐条模拟一个块，运算栈上放的是值
+     * 块结尾栈里剩下的值没有人用，不用生成
+     *
+     * @return 能不能处理
+     */
+    private boolean simulate(Block b) {
+        Node[] defs = entryDefs(b);
+        ArrayList<Node> stack = new ArrayList<>();
+        List<Instruction> code = f.instructions;
+        for (int i = b.start; i < b.end; i++) {
+            Instruction ins = code.get(i);
+            Operation op = ins.getOpt();
+            Node[] in;
+            switch (op) {
+                case nop:
+                    break;
+                case push:
+                    stack.add(constant(ins.getOperand()));
+                    break;
+                case pop:
+                case popn:
+                    for (long k = op == Operation.pop ? 1 : ins.getOperand(); k > 0; k--) {
+                        if (stack.isEmpty())
+                            return false;
+                        stack.remove(stack.size() - 1);
+                    }
+                    break;
+                case dup:
+                    if (stack.isEmpty())
+                        return false;
+                    stack.add(stack.get(stack.size() - 1));
+                    break;
+                case loca:
+                case arga:
+                case globa: {
+                    long k = ins.getOperand();
+                    long limit = op == Operation.loca ? f.localCount : op == Operation.arga ? argSlots : globals.size();
+                    if (k < 0 || k >= limit)
+                        return false;
+                    stack.add(new Node(-1, ADDR, op, k, null, null, true));
+                    break;
+                }
+                case load64: {
+                    if (stack.isEmpty() || stack.get(stack.size() - 1).kind != ADDR)
+                        return false;
+                    Node addr = stack.remove(stack.size() - 1);
+                    if (addr.op == Operation.globa)
+                        stack.add(add(b, PINNED, Operation.load64, addr.value, new Node[0], true));
+                    else
+                        stack.add(defs[variable(addr)]);
+                    break;
+                }
+                case store64: {
+                    Node v = pop(stack);
+                    if (v == null || stack.isEmpty() || stack.get(stack.size() - 1).kind != ADDR)
+                        return false;
+                    Node addr = stack.remove(stack.size() - 1);
+                    if (addr.op == Operation.globa)
+                        add(b, PINNED, Operation.store64, addr.value, new Node[]{v}, false);
+                    else
+                        defs[variable(addr)] = v;
+                    break;
+                }
+                case stackalloc:
+                    for (long k = ins.getOperand(); k > 0; k--) {
+                        stack.add(constant(0));
+                    }
+                    break;
+                case addi:
+                case subi:
+                case muli:
+                case addf:
+                case subf:
+                case mulf:
+                case divf:
+                case cmpi:
+                case cmpu:
+                case cmpf:
+                case shl:
+                case shr:
+                case shrl:
+                case and:
+                case or:
+                case xor:
+                    if ((in = popArgs(stack, 2)) == null)
+                        return false;
+                    stack.add(add(b, PURE, op, 0, in, true));
+                    break;
+                case divi:
+                case divu:
+                    if ((in = popArgs(stack, 2)) == null)
+                        return false;
+                    // 除数可能是 0 时要在原来的位置报错
+                    boolean safe = in[1].kind == CONST && in[1].value != 0;
+                    stack.add(add(b, safe ? PURE : PINNED, op, 0, in, true));
+                    break;
+                case negi:
+                case negf:
+                case itof:
+                case ftoi:
+                case not:
+                case setlt:
+                case setgt:
+                    if ((in = popArgs(stack, 1)) == null)
+                        return false;
+                    stack.add(add(b, PURE, op, 0, in, true));
+                    break;
+                case call: {
+                    long k = ins.getOperand();
+                    if (k < 0 || k >= functions.size())
+                        return false;
+                    Function callee = functions.get((int) k);
+                    // 返回值的位置在参数下面，调用之后换成返回值
+                    int ret = hasReturnSlot(callee) ? 1 : 0;
+                    if ((in = popArgs(stack, ret + callee.calParamSlot())) == null)
+                        return false;
+                    Node x = add(b, PINNED, op, k, in, ret == 1);
+                    if (ret == 1)
+                        stack.add(x);
+                    break;
+                }
+                case callname: {
+                    long g = ins.getOperand();
+                    if (g < 0 || g >= globals.size())
+                        return false;
+                    String name = globals.get((int) g).getValueString();
+                    boolean get = name.equals("getint") || name.equals("getdouble") || name.equals("getchar");
+                    boolean put = name.equals("putint") || name.equals("putdouble") || name.equals("putchar")
+                            || name.equals("putstr");
+                    if (!get && !put && !name.equals("putln"))
+                        return false;
+                    if ((in = popArgs(stack, get || put ? 1 : 0)) == null)
+                        return false;
+                    Node x = add(b, PINNED, op, g, in, get);
+                    if (get)
+                        stack.add(x);
+                    break;
+                }
+                default:
+                    return false;
+            }
+        }
+        if (b.isConditional() && (b.cond = pop(stack)) == null)
+            return false;
+        b.exitDefs = defs;
+        return true;
+    }
+
+    // ---------------------------------------------------------------- 值编号
+
+    /**
+     * 操作数除了自己只有一个值的 phi 换成那个值
+     */
+    private boolean removeTrivialPhis() {
+        boolean changed = false;
+        boolean again = true;
+        while (again) {
+            again = false;
+            for (Block b : rpo) {
+                for (Node phi : b.phiList) {
+                    if (phi.replacedBy != null)
+                        continue;
+                    Node same = null;
+                    boolean trivial = true;
+                    for (Node x : phi.in) {
+                        x = find(x);
+                        if (x == phi || x == same)
+                            continue;
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = x;
+                    }
+                    if (trivial) {
+                        // 只有自己时说明这个变量在进入循环前没有赋值，不会发生，保险起见当成 0
+                        phi.replacedBy = same == null ? entryDef((int) phi.value) : same;
+                        again = true;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static final class Key {
+        final int kind;
+        final Operation op;
+        final long value;
+        final int[] in;
+
+        Key(Node x) {
+            this.kind = x.kind;
+            this.op = x.op;
+            // phi 只和同一块的比
+            this.value = x.kind == PHI ? x.block.id : x.value;
+            this.in = new int[x.in.length];
+            for (int i = 0; i < in.length; i++) {
+                in[i] = find(x.in[i]).id;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return kind == k.kind && op == k.op && value == k.value && Arrays.equals(in, k.in);
+        }
+
+        @Override
+        public int hashCode() {
+            return (kind * 31 + (op == null ? 0 : op.ordinal())) * 31 + Long.hashCode(value) * 17 + Arrays.hashCode(in);
+        }
+    }
+
+    /**
+     * 按逆后序扫一遍：先折叠常量和化简，再找支配它的块里有没有相同的计算
+     *
+     * @return 有没有合并掉值
+     */
+    private boolean numberValues() {
+        boolean changed = false;
+        HashMap<Key, ArrayList<Node>> table = new HashMap<>();
+        for (Block b : rpo) {
+            for (Node phi : b.phiList) {
+                if (phi.replacedBy == null)
+                    changed |= lookup(table, phi);
+            }
+            for (Node x : b.order) {
+                if (x.kind != PURE || x.replacedBy != null)
+                    continue;
+                Node simple = simplify(x);
+                if (simple != null) {
+                    x.replacedBy = simple;
+                    changed = true;
+                } else {
+                    changed |= lookup(table, x);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static boolean lookup(HashMap<Key, ArrayList<Node>> table, Node x) {
+        Key key = new Key(x);
+        ArrayList<Node> same = table.get(key);
+        if (same == null) {
+            same = new ArrayList<>(1);
+            table.put(key, same);
+        }
+        for (Node y : same) {
+            if (y != x && y.replacedBy == null && dominates(y.block, x.block)) {
+                x.replacedBy = y;
+                return true;
+            }
+        }
+        same.add(x);
+        return false;
+    }
+
+    private static double d(long v) {
+        return Double.longBitsToDouble(v);
+    }
+
+    private static long l(double v) {
+        return Double.doubleToRawLongBits(v);
+    }
+
+    /**
+     * 和 MiniVm 的语义相同
+     *
+     * @return 化简后的值，不能化简时为 null
+     */
+    private Node simplify(Node x) {
+        Node a = find(x.in[0]);
+        Node b = x.in.length > 1 ? find(x.in[1]) : null;
+        if (a.kind == CONST && (b == null || b.kind == CONST)) {
+            long p = a.value;
+            long q = b == null ? 0 : b.value;
+            switch (x.op) {
+                case addi:
+                    return constant(p + q);
+                case subi:
+                    return constant(p - q);
+                case muli:
+                    return constant(p * q);
+                case divi:
+                    return q == 0 ? null : constant(p / q);
+                case divu:
+                    return q == 0 ? null : constant(Long.divideUnsigned(p, q));
+                case addf:
+                    return constant(l(d(p) + d(q)));
+                case subf:
+                    return constant(l(d(p) - d(q)));
+                case mulf:
+                    return constant(l(d(p) * d(q)));
+                case divf:
+                    return constant(l(d(p) / d(q)));
+                case cmpi:
+                    return constant(Long.compare(p, q));
+                case cmpu:
+                    return constant(Long.compareUnsigned(p, q) < 0 ? -1 : (p == q ? 0 : 1));
+                case cmpf:
+                    return constant(d(p) < d(q) ? -1 : (d(p) > d(q) ? 1 : 0));
+                case shl:
+                    return constant(p << q);
+                case shr:
+                    return constant(p >> q);
+                case shrl:
+                    return constant(p >>> q);
+                case and:
+                    return constant(p & q);
+                case or:
+                    return constant(p | q);
+                case xor:
+                    return constant(p ^ q);
+                case not:
+                    return constant(~p);
+                case negi:
+                    return constant(-p);
+                case negf:
+                    return constant(l(-d(p)));
+                case itof:
+                    return constant(l((double) p));
+                case ftoi:
+                    return constant((long) d(p));
+                case setlt:
+                    return constant(p < 0 ? 1 : 0);
+                case setgt:
+                    return constant(p > 0 ? 1 : 0);
+                default:
+                    return null;
+            }
+        }
+        // 整数的 x+0、x-0、x*1、x/1，浮点数有 -0.0 不能这样化简
+        if ((x.op == Operation.addi || x.op == Operation.subi) && isConstant(b, 0))
+            return a;
+        if (x.op == Operation.addi && isConstant(a, 0))
+            return b;
+        if ((x.op == Operation.muli || x.op == Operation.divi) && isConstant(b, 1))
+            return a;
+        if (x.op == Operation.muli && isConstant(a, 1))
+            return b;
+        return null;
+    }
+
+    // ---------------------------------------------------------------- 死代码和存放位置
+
+    private Node returnValue(Block b) {
+        if (retSlots == 0)
+            return null;
+        Node v = find(b.exitDefs[0]);
+        // 没有改过返回值的位置就不用写
+        return v == params[0] ? null : v;
+    }
+
+    /**
+     * 常量条件的跳转只剩下一条边
+     *
+     * @return 条件跳转时为 null
+     */
+    private Block onlySuccessor(Block b) {
+        if (b.term == Operation.br)
+            return b.taken;
+        if (!b.isConditional())
+            return null;
+        Node c = find(b.cond);
+        if (c.kind != CONST)
+            return null;
+        return (c.value != 0) == (b.term == Operation.brtrue) ? b.taken : b.next;
+    }
+
+    private void markLive() {
+        ArrayList<Node> work = new ArrayList<>();
+        for (Block b : rpo) {
+            for (Node x : b.order) {
+                if (x.kind == PINNED)
+                    work.add(x);
+            }
+            if (b.isConditional())
+                work.add(find(b.cond));
+            if (b.term == Operation.ret && returnValue(b) != null)
+                work.add(returnValue(b));
+        }
+        while (!work.isEmpty()) {
+            Node x = work.remove(work.size() - 1);
+            if (x.live)
+                continue;
+            x.live = true;
+            for (Node y : x.in) {
+                y = find(y);
+                if (!y.live)
+                    work.add(y);
+            }
+        }
+        for (Block b : rpo) {
+            for (Node x : b.order) {
+                if (x.live && x.replacedBy == null) {
+                    for (Node y : x.in) {
+                        use(find(y), b);
+                    }
+                }
+            }
+            for (Node phi : b.phiList) {
+                if (!phi.live || phi.replacedBy != null)
+                    continue;
+                for (int k = 0; k < phi.in.length; k++) {
+                    Node y = find(phi.in[k]);
+                    if (y != phi)
+                        use(y, b.preds.get(k));
+                }
+            }
+            if (b.isConditional() && onlySuccessor(b) == null)
+                use(find(b.cond), b);
+            if (b.term == Operation.ret && returnValue(b) != null)
+                use(returnValue(b), b);
+        }
+    }
+
+    private static void use(Node x, Block at) {
+        x.uses++;
+        if (x.useBlock == null)
+            x.useBlock = at;
+        if (x.useBlock != at || x.block != at)
+            x.crossBlock = true;
+    }
+
+    /**
+     * phi 和跨块用到的值放进局部变量；块内用多次的值，重新算比存起来慢时也放进去
+     * 只用一次的 PINNED 值先假定能留到使用的地方，checkOrder 再检查
+     */
+    private void assignSlots() {
+        for (Block b : rpo) {
+            for (Node phi : b.phiList) {
+                if (phi.live && phi.replacedBy == null)
+                    newSlot(phi);
+            }
+            for (Node x : b.order) {
+                if (!x.live || x.replacedBy != null)
+                    continue;
+                x.cost = 1;
+                x.depth = 1;
+                x.ordered = false;
+                for (Node y : x.in) {
+                    y = find(y);
+                    x.cost += emitCost(y);
+                    if (y.slot < 0 && (y.kind == PURE || y.kind == PINNED)) {
+                        x.depth = Math.max(x.depth, y.depth + 1);
+                        x.ordered |= y.deferred || y.ordered;
+                    }
+                }
+                boolean deep = x.depth > MAX_DEPTH;
+                if (x.kind == PINNED) {
+                    if (x.result && x.uses > 0) {
+                        if (x.uses == 1 && !x.crossBlock && !deep)
+                            x.deferred = true;
+                        else
+                            newSlot(x);
+                    }
+                } else if (x.crossBlock || deep || (x.uses > 1 && (x.ordered || x.cost + 2 + 2 * x.uses < x.uses * x.cost))) {
+                    // 里面有要按顺序执行的值时不能算两次
+                    newSlot(x);
+                }
+            }
+        }
+    }
+
+    private static int emitCost(Node y) {
+        if (y.kind == CONST)
+            return 1;
+        if (y.kind == PARAM || y.slot >= 0)
+            return 2;
+        return y.cost;
+    }
+
+    private void newSlot(Node x) {
+        x.slot = slots++;
+        slotted.add(x);
+    }
+
+    private void materialize(List<Node> nodes) {
+        for (Node x : nodes) {
+            x.deferred = false;
+            if (x.slot < 0)
+                newSlot(x);
+        }
+    }
+
+    /**
+     * 留到使用处执行的 PINNED 值，在生成的代码里必须还是原来的顺序，而且不能跨过中间别的 PINNED 值
+     * 不满足时把相关的值存进局部变量
+     *
+     * @return 这个块是否已经满足
+     */
+    private boolean checkOrder(Block b) {
+        ArrayList<Node> pending = new ArrayList<>();
+        ArrayList<Node> seen = new ArrayList<>();
+        for (Node x : b.order) {
+            if (!x.live || x.replacedBy != null)
+                continue;
+            if (x.deferred) {
+                pending.add(x);
+            } else if (x.kind == PINNED || x.slot >= 0) {
+                seen.clear();
+                for (Node y : x.in) {
+                    pinnedIn(y, seen);
+                }
+                if (!seen.equals(pending)) {
+                    materialize(pending);
+                    materialize(seen);
+                    return false;
+                }
+                pending.clear();
+            }
+        }
+        // 跳转之前用到的：返回值，无条件跳转时 phi 的复制，条件
+        seen.clear();
+        Block only = onlySuccessor(b);
+        if (b.term == Operation.ret && returnValue(b) != null)
+            pinnedIn(returnValue(b), seen);
+        if (only != null) {
+            for (Node v : copies(b, only, null)) {
+                pinnedIn(v, seen);
+            }
+        } else if (b.isConditional()) {
+            pinnedIn(b.cond, seen);
+        }
+        if (!seen.equals(pending)) {
+            materialize(pending);
+            materialize(seen);
+            return false;
+        }
+        // 跳转之后只在一条边上执行，不能再有 PINNED 值
+        seen.clear();
+        if (only == null && b.isConditional()) {
+            for (Node v : copies(b, b.taken, null)) {
+                pinnedIn(v, seen);
+            }
+            for (Node v : copies(b, b.next, null)) {
+                pinnedIn(v, seen);
+            }
+        }
+        if (!seen.isEmpty()) {
+            materialize(seen);
+            return false;
+        }
+        return true;
+    }
+
+    private static void pinnedIn(Node y, List<Node> seen) {
+        y = find(y);
+        if (y.slot >= 0 || (y.kind != PURE && !y.deferred))
+            return;
+        for (Node z : y.in) {
+            pinnedIn(z, seen);
+        }
+        if (y.deferred)
+            seen.add(y);
+    }
+
+    /**
+     * 从 p 到 s 这条边上 phi 要复制的值
+     *
+     * @param phis 不为 null 时放对应的 phi
+     */
+    private static List<Node> copies(Block p, Block s, List<Node> phis) {
+        ArrayList<Node> values = new ArrayList<>();
+        int k = s.preds.indexOf(p);
+        for (Node phi : s.phiList) {
+            if (!phi.live || phi.replacedBy != null)
+                continue;
+            Node v = find(phi.in[k]);
+            // 合并到同一个局部变量之后不用复制
+            if (v == phi || (v.slot >= 0 && v.slot == phi.slot))
+                continue;
+            values.add(v);
+            if (phis != null)
+                phis.add(phi);
+        }
+        return values;
+    }
+
+    // ---------------------------------------------------------------- 合并局部变量
+
+    // 超过这么多个值时不合并，冲突表是值个数的平方
+    private static final int MAX_COALESCE = 4096;
+    private static final int USE = 0;
+    private static final int DEF = 1;
+    // 一组并行的复制：{COPY, 目标, 来源, 目标, 来源...}，来源不在局部变量里时为 -1
+    private static final int COPY = 2;
+
+    /**
+     * 按生成的顺序读写局部变量的一段代码：一个块，或者一条边上 phi 的复制
+     */
+    private static final class Segment {
+        final ArrayList<int[]> events = new ArrayList<>();
+        final ArrayList<Segment> succs = new ArrayList<>();
+        BitSet liveOut = new BitSet();
+        BitSet liveIn = new BitSet();
+    }
+
+    /**
+     * phi 和它的操作数如果活跃区间不冲突就用同一个局部变量，边上的复制就省掉了
+     * 每个值只定义一次，在一个值定义的地方另一个还活跃就算冲突；并行复制里的目标两两冲突
+     */
+    private void coalesce() {
+        if (slots < 2 || slots > MAX_COALESCE)
+            return;
+        HashMap<Block, Segment> segments = new HashMap<>();
+        ArrayList<Segment> all = new ArrayList<>();
+        for (Block b : rpo) {
+            Segment seg = new Segment();
+            segments.put(b, seg);
+            all.add(seg);
+        }
+        ArrayList<int[]> pairs = new ArrayList<>();
+        for (Block b : rpo) {
+            Segment seg = segments.get(b);
+            for (Node x : b.order) {
+                if (!x.live || x.replacedBy != null || x.deferred || (x.kind != PINNED && x.slot < 0))
+                    continue;
+                for (Node y : x.in) {
+                    uses(y, seg);
+                }
+                if (x.slot >= 0)
+                    seg.events.add(new int[]{DEF, x.slot});
+            }
+            Block only = onlySuccessor(b);
+            if (b.term == Operation.ret && returnValue(b) != null) {
+                uses(returnValue(b), seg);
+            } else if (only != null) {
+                copyEvents(seg, b, only, pairs);
+                seg.succs.add(segments.get(only));
+            } else if (b.isConditional()) {
+                uses(b.cond, seg);
+                for (Block s : new Block[]{b.taken, b.next}) {
+                    Segment edge = new Segment();
+                    copyEvents(edge, b, s, pairs);
+                    edge.succs.add(segments.get(s));
+                    seg.succs.add(edge);
+                    all.add(edge);
+                }
+            }
+        }
+        // 活跃变量，倒着迭代到不动点
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = all.size() - 1; i >= 0; i--) {
+                Segment seg = all.get(i);
+                for (Segment s : seg.succs) {
+                    seg.liveOut.or(s.liveIn);
+                }
+                BitSet live = (BitSet) seg.liveOut.clone();
+                transfer(seg, live, null);
+                if (!live.equals(seg.liveIn)) {
+                    seg.liveIn = live;
+                    changed = true;
+                }
+            }
+        }
+        BitSet[] interfere = new BitSet[slots];
+        for (int i = 0; i < slots; i++) {
+            interfere[i] = new BitSet();
+        }
+        for (Segment seg : all) {
+            transfer(seg, (BitSet) seg.liveOut.clone(), interfere);
+        }
+        // 按块的顺序合并，先合并外层的
+        int[] parent = new int[slots];
+        BitSet[] members = new BitSet[slots];
+        for (int i = 0; i < slots; i++) {
+            parent[i] = i;
+            members[i] = new BitSet();
+            members[i].set(i);
+        }
+        for (int[] pair : pairs) {
+            int a = root(parent, pair[0]);
+            int b = root(parent, pair[1]);
+            if (a == b || interfere[a].intersects(members[b]))
+                continue;
+            parent[b] = a;
+            members[a].or(members[b]);
+            interfere[a].or(interfere[b]);
+        }
+        int[] renamed = new int[slots];
+        int n = 0;
+        for (int i = 0; i < slots; i++) {
+            if (parent[i] == i)
+                renamed[i] = n++;
+        }
+        for (Node x : slotted) {
+            x.slot = renamed[root(parent, x.slot)];
+        }
+        slots = n;
+    }
+
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * 生成 y 时读到的局部变量
+     */
+    private static void uses(Node y, Segment seg) {
+        y = find(y);
+        if (y.kind == CONST || y.kind == PARAM)
+            return;
+        if (y.slot >= 0) {
+            seg.events.add(new int[]{USE, y.slot});
+            return;
+        }
+        for (Node z : y.in) {
+            uses(z, seg);
+        }
+    }
+
+    private static void copyEvents(Segment seg, Block p, Block s, List<int[]> pairs) {
+        ArrayList<Node> phis = new ArrayList<>();
+        List<Node> values = copies(p, s, phis);
+        if (values.isEmpty())
+            return;
+        int[] copy = new int[1 + 2 * values.size()];
+        copy[0] = COPY;
+        for (int i = 0; i < values.size(); i++) {
+            Node v = values.get(i);
+            uses(v, seg);
+            copy[1 + 2 * i] = phis.get(i).slot;
+            copy[2 + 2 * i] = v.slot;
+            if (v.slot >= 0)
+                pairs.add(new int[]{phis.get(i).slot, v.slot});
+        }
+        seg.events.add(copy);
+    }
+
+    /**
+     * 从段的结尾倒着走到开头，live 变成段开头活跃的值
+     *
+     * @param interfere 不为 null 时记下定义处的冲突
+     */
+    private static void transfer(Segment seg, BitSet live, BitSet[] interfere) {
+        for (int k = seg.events.size() - 1; k >= 0; k--) {
+            int[] e = seg.events.get(k);
+            if (e[0] == USE) {
+                live.set(e[1]);
+            } else if (e[0] == DEF) {
+                live.clear(e[1]);
+                if (interfere != null)
+                    conflict(interfere, e[1], live);
+            } else {
+                for (int i = 1; i < e.length; i += 2) {
+                    live.clear(e[i]);
+                }
+                if (interfere == null)
+                    continue;
+                for (int i = 1; i < e.length; i += 2) {
+                    BitSet others = (BitSet) live.clone();
+                    // 复制之后目标和来源的值相同，不算冲突
+                    if (e[i + 1] >= 0)
+                        others.clear(e[i + 1]);
+                    for (int j = 1; j < e.length; j += 2) {
+                        if (j != i)
+                            others.set(e[j]);
+                    }
+                    conflict(interfere, e[i], others);
+                }
+            }
+        }
+    }
+
+    private static void conflict(BitSet[] interfere, int a, BitSet live) {
+        interfere[a].or(live);
+        for (int b = live.nextSetBit(0); b >= 0; b = live.nextSetBit(b + 1)) {
+            interfere[b].set(a);
+        }
+    }
+
+    // ---------------------------------------------------------------- 生成栈式代码
+
+    private ArrayList<Instruction> lower() {
+        out = new ArrayList<>();
+        jumps = new ArrayList<>();
+        // 原来的顺序，顺序执行的下一块一般就在后面
+        ArrayList<Block> layout = new ArrayList<>();
+        for (Block b : blocks) {
+            if (b.rpo >= 0)
+                layout.add(b);
+        }
+        int[] label = new int[blocks.size() + layout.size()];
+        // 条件跳转的那条边上有复制时，复制放在函数最后，再跳回去
+        ArrayList<Block[]> edges = new ArrayList<>();
+        for (int i = 0; i < layout.size(); i++) {
+            Block b = layout.get(i);
+            Block next = i + 1 < layout.size() ? layout.get(i + 1) : null;
+            label[b.id] = out.size();
+            for (Node x : b.order) {
+                if (!x.live || x.replacedBy != null || x.deferred)
+                    continue;
+                if (x.slot >= 0) {
+                    emit(Operation.loca, x.slot);
+                    emitNode(x);
+                    emit(Operation.store64);
+                } else if (x.kind == PINNED) {
+                    emitNode(x);
+                    if (x.result)
+                        emit(Operation.pop);
+                }
+            }
+            Block only = onlySuccessor(b);
+            if (b.term == Operation.ret) {
+                Node v = returnValue(b);
+                if (v != null) {
+                    emit(Operation.arga, 0);
+                    emitValue(v);
+                    emit(Operation.store64);
+                }
+                emit(Operation.ret);
+            } else if (only != null) {
+                emitCopies(b, only);
+                if (only != next)
+                    jump(Operation.br, only);
+            } else {
+                emitValue(b.cond);
+                if (copies(b, b.taken, null).isEmpty()) {
+                    jump(b.term, b.taken);
+                } else {
+                    Block edge = new Block(blocks.size() + edges.size(), -1);
+                    edges.add(new Block[]{edge, b, b.taken});
+                    jump(b.term, edge);
+                }
+                emitCopies(b, b.next);
+                if (b.next != next)
+                    jump(Operation.br, b.next);
+            }
+        }
+        for (Block[] e : edges) {
+            label[e[0].id] = out.size();
+            emitCopies(e[1], e[2]);
+            jump(Operation.br, e[2]);
+        }
+        for (int i = 0; i < out.size(); i++) {
+            Block t = jumps.get(i);
+            if (t != null)
+                out.set(i, new Instruction(out.get(i).getOpt(), label[t.id] - i - 1));
+        }
+        return out;
+    }
+
+    private void emit(Operation op) {
+        out.add(new Instruction(op));
+        jumps.add(null);
+    }
+
+    private void emit(Operation op, int operand) {
+        out.add(new Instruction(op, operand));
+        jumps.add(null);
+    }
+
+    private void jump(Operation op, Block target) {
+        out.add(new Instruction(op, 0));
+        jumps.add(target);
+    }
+
+    /**
+     * 先算出所有的值再依次写进去，phi 之间互相复制(比如交换)也不会读到写过的值
+     */
+    private void emitCopies(Block p, Block s) {
+        ArrayList<Node> phis = new ArrayList<>();
+        List<Node> values = copies(p, s, phis);
+        for (int i = 0; i < values.size(); i++) {
+            emit(Operation.loca, phis.get(i).slot);
+            emitValue(values.get(i));
+        }
+        for (int i = 0; i < values.size(); i++) {
+            emit(Operation.store64);
+        }
+    }
+
+    private void emitValue(Node x) {
+        x = find(x);
+        if (x.kind == CONST) {
+            out.add(new Instruction(Operation.push, x.value));
+            jumps.add(null);
+        } else if (x.kind == PARAM) {
+            emit(Operation.arga, (int) x.value);
+            emit(Operation.load64);
+        } else if (x.slot >= 0) {
+            emit(Operation.loca, x.slot);
+            emit(Operation.load64);
+        } else {
+            emitNode(x);
+        }
+    }
+
+    private void emitNode(Node x) {
+        switch (x.op) {
+            case load64:
+                emit(Operation.globa, (int) x.value);
+                emit(Operation.load64);
+                break;
+            case store64:
+                emit(Operation.globa, (int) x.value);
+                emitValue(x.in[0]);
+                emit(Operation.store64);
+                break;
+            case call:
+            case callname: {
+                // 返回值的位置和原来一样用 stackalloc 留出来
+                int i = 0;
+                if (x.result) {
+                    Node slot = find(x.in[0]);
+                    if (isConstant(slot, 0))
+                        emit(Operation.stackalloc, 1);
+                    else
+                        emitValue(slot);
+                    i = 1;
+                }
+                for (; i < x.in.length; i++) {
+                    emitValue(x.in[i]);
+                }
+                emit(x.op, (int) x.value);
+                break;
+            }
+            default:
+                for (Node y : x.in) {
+                    emitValue(y);
+                }
+                emit(x.op);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * 标识符驻留表，同一个名字只创建一个 String
+ * 直接拿源文件里的一段字符查找，已经出现过的名字不分配内存
+ * 名字按第一次出现的顺序从 0 开始编号
+ *
+ * 同一次编译里同名的标识符拿到的是同一个 String 对象，
+ * 它的 hashCode 只算一次，符号表 HashMap 查找时 == 比较就能命中
+ */
+public class IdentTable {
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int count = 0;
+    // 开放寻址，0 表示空位，否则是编号 + 1
+    private int[] slots = new int[128];
+
+    /**
+     * @return buf[start, end) 这个名字的编号，第一次出现时登记
+     */
+    public int intern(char[] buf, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buf[i];
+        }
+        int mask = slots.length - 1;
+        int i = mix(h) & mask;
+        while (slots[i] != 0) {
+            int id = slots[i] - 1;
+            if (hashes[id] == h && same(names[id], buf, start, end))
+                return id;
+            i = (i + 1) & mask;
+        }
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        int id = count++;
+        names[id] = new String(buf, start, end - start);
+        hashes[id] = h;
+        slots[i] = id + 1;
+        if (count * 2 > slots.length)
+            rehash();
+        return id;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(String name, char[] buf, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != buf[start + i])
+                return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < count; id++) {
+            int i = mix(hashes[id]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+    }
+}
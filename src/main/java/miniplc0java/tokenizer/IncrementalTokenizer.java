@@ -0,0 +1,142 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * 给编辑器用的增量切分
+ * 保存上一次的文本和 TokenBuffer，每次编辑之后只从编辑位置之前最后一个完整 token 的末尾开始重新切分，
+ * 直到切出的 token 和旧 token(移动 delta 之后)完全相同，后面的 token 只移动位置
+ *
+ * 切分器没有除了位置以外的状态，一个 token 之后的切分只取决于它的终点和后面的文本，
+ * 所以只要新 token 和一个完全位于编辑之后的旧 token 类型、起止都相同，之后的 token 就都不变
+ *
+ * 偏移直接对应编辑器里的文本，不替换换行，也不补末尾的 \n
+ *
+ * 编辑之间共用一张 IdentTable，标识符编号保持不变；删掉的名字不会从表里移除，
+ * 所以表比当前 token 数大出一倍时整个重新切分，换一张新表，编号会重新分配
+ */
+public class IncrementalTokenizer {
+    /**
+     * 一次编辑影响的 token 范围：旧的 [start, oldEnd) 被换成了新的 [start, newEnd)
+     */
+    public static class Change {
+        public final int start;
+        public final int oldEnd;
+        public final int newEnd;
+
+        Change(int start, int oldEnd, int newEnd) {
+            this.start = start;
+            this.oldEnd = oldEnd;
+            this.newEnd = newEnd;
+        }
+
+        @Override
+        public String toString() {
+            return "Change(" + start + ", " + oldEnd + " -> " + newEnd + ")";
+        }
+    }
+
+    private char[] text;
+    private int length;
+    private IdentTable idents = new IdentTable();
+    private TokenBuffer tokens;
+    // 上一次切分出错时为 true，下一次编辑整个重新切分
+    private boolean stale = false;
+
+    public IncrementalTokenizer(String source) throws TokenizeError {
+        this.text = source.toCharArray();
+        this.length = text.length;
+        this.tokens = new Tokenizer(new StringIter(text, length), idents).tokenizeAll();
+    }
+
+    /**
+     * @return 当前文本的 token，最后一项是 EOF
+     */
+    public TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    public String getText() {
+        return new String(text, 0, length);
+    }
+
+    /**
+     * 把 [offset, offset + removed) 换成 inserted，然后重新切分受影响的部分
+     *
+     * @return 变化的 token 范围
+     * @throws TokenizeError 编辑之后的文本有词法错误，下一次编辑时整个重新切分
+     */
+    public Change edit(int offset, int removed, String inserted) throws TokenizeError {
+        if (offset < 0 || removed < 0 || offset + removed > length)
+            throw new IndexOutOfBoundsException("edit " + offset + "+" + removed + " of " + length);
+        int delta = inserted.length() - removed;
+        int oldEditEnd = offset + removed;
+
+        char[] newText = new char[length + delta];
+        System.arraycopy(text, 0, newText, 0, offset);
+        inserted.getChars(0, inserted.length(), newText, offset);
+        System.arraycopy(text, oldEditEnd, newText, offset + inserted.length(), length - oldEditEnd);
+        text = newText;
+        length = newText.length;
+
+        StringIter it = new StringIter(text, length);
+        int oldSize = tokens.size();
+        if (stale || idents.size() > 2 * oldSize + 64) {
+            // 整个重新切分时顺便丢掉旧表里已经没人用的名字
+            idents = new IdentTable();
+            TokenBuffer all = new Tokenizer(it, idents).tokenizeAll();
+            tokens = all;
+            stale = false;
+            return new Change(0, oldSize, all.size());
+        }
+
+        Tokenizer tokenizer = new Tokenizer(it, idents);
+        // 第一个终点不在编辑位置之前的 token，紧贴着编辑位置的 token 也要重新切分
+        int first = firstEndingAtOrAfter(offset);
+        int restart = first == 0 ? 0 : tokens.end(first - 1);
+        it.seek(restart);
+
+        TokenBuffer relexed = new TokenBuffer(it, idents);
+        int j = first;
+        try {
+            while (true) {
+                TokenType type = tokenizer.scan();
+                // 跳过新位置已经在当前 token 之前的旧 token
+                while (j < oldSize && tokens.start(j) + delta < tokenizer.start) {
+                    j++;
+                }
+                if (j < oldSize && tokens.start(j) >= oldEditEnd
+                        && tokens.type(j) == type
+                        && tokens.start(j) + delta == tokenizer.start
+                        && tokens.end(j) + delta == tokenizer.end) {
+                    // 重新同步
+                    break;
+                }
+                relexed.add(tokenizer);
+                if (type == TokenType.EOF) {
+                    j = oldSize;
+                    break;
+                }
+            }
+        } catch (TokenizeError e) {
+            stale = true;
+            throw e;
+        }
+        tokens.replace(first, j, relexed, delta);
+        tokens.setSource(it);
+        return new Change(first, j, first + relexed.size());
+    }
+
+    private int firstEndingAtOrAfter(int offset) {
+        int lo = 0;
+        int hi = tokens.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokens.end(mid) >= offset)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+}
@@ -1,56 +1,111 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
 import java.util.Scanner;
 
-import miniplc0java.instruction.Instruction;
 import miniplc0java.util.Pos;
 
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
+ * 现在整个输入放在一个 char[] 里，用一个下标指向下一个要读取的字符
+ * 行列号只在需要 Pos 的时候才换算，换算用的行首表第一次用到时才建立
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个输入，换行统一为 \n，非空时最后一个字符一定是 \n
+    char[] buffer = new char[0];
+    int length = 0;
 
-    Scanner scanner;
     // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    int cursor = 0;
 
-    Pos ptr = new Pos(0, 0);
+    // lineStart[i] 是第 i 行第一个字符的偏移
+    int[] lineStart;
+    int lineCount;
+    // 上一次换算到的行，位置基本是递增的，先从这一行找
+    int lastRow = 0;
 
-    boolean initialized = false;
+    Scanner scanner;
+    Reader reader;
 
-    Optional<Character> peeked = Optional.empty();
+    boolean initialized = false;
 
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    public StringIter(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * 直接使用 buffer 的前 length 个字符，不替换换行，也不补末尾的 \n
+     * 偏移和编辑器里的文本一一对应，增量切分用
+     */
+    StringIter(char[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        this.initialized = true;
+    }
+
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
     // 1.缓冲区包括 \n
     // 2.指针始终指向下一个要读取的 char
     // 3.行号和列号从 0 开始
 
     // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
     public void readAll() {
         if (initialized) {
             return;
         }
-        while (scanner.hasNext()) {
-            String s = scanner.nextLine();
-            // hack 数据
-//            System.out.println(s);
-            linesBuffer.add(s + '\n');
+        if (scanner != null) {
+            // 按行读，和原来一样会去掉末尾的空行
+            StringBuilder sb = new StringBuilder();
+            while (scanner.hasNext()) {
+                sb.append(scanner.nextLine()).append('\n');
+            }
+            length = sb.length();
+            buffer = new char[length];
+            sb.getChars(0, length, buffer, 0);
+        } else {
+            readFrom(reader);
         }
-        // todo:check read \n?
         initialized = true;
     }
 
+    private void readFrom(Reader reader) {
+        char[] buf = new char[1 << 16];
+        int n = 0;
+        try {
+            int r;
+            while ((r = reader.read(buf, n, buf.length - n)) >= 0) {
+                n += r;
+                if (n == buf.length)
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        } catch (IOException e) {
+            throw new Error("read source failed", e);
+        }
+        // \r\n 和单独的 \r 都换成 \n
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            char c = buf[i];
+            if (c == '\r') {
+                c = '\n';
+                if (i + 1 < n && buf[i + 1] == '\n')
+                    i++;
+            }
+            buf[j++] = c;
+        }
+        if (j > 0 && buf[j - 1] != '\n') {
+            // 上面的读取保证 buf 没有满
+            buf[j++] = '\n';
+        }
+        buffer = buf;
+        length = j;
+    }
+
     // 一个简单的总结
     // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
     // | = | = | = | = | = | = | = | = | = | = |
@@ -67,80 +122,146 @@ public class StringIter {
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (cursor >= length) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return posAt(cursor + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return posAt(cursor);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (cursor == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posAt(cursor - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
+     * 到了末尾返回 0，指针不动
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
-        }
-    }
-
-    private char getNextChar() {
-        if (isEOF()) {
+        if (cursor >= length) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return buffer[cursor++];
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (cursor >= length) {
+            return 0;
         }
+        return buffer[cursor];
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    public boolean isEOF() {
+        return cursor >= length;
     }
 
-    // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        if (cursor == 0) {
+            throw new Error("previous position from beginning");
+        }
+        cursor--;
+    }
+
+    /**
+     * @return 下一个要读取的字符的偏移
+     */
+    public int offset() {
+        return cursor;
+    }
+
+    /**
+     * 把指针移到 offset
+     */
+    void seek(int offset) {
+        cursor = offset;
+    }
+
+    public char charAt(int offset) {
+        return buffer[offset];
     }
 
+    /**
+     * @return 偏移 [start, end) 之间的原文
+     */
+    public String substring(int start, int end) {
+        return new String(buffer, start, end - start);
+    }
+
+    /**
+     * 从 start 开始的原文是否以 s 开头
+     */
+    public boolean regionMatches(int start, String s) {
+        if (start + s.length() > length)
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer[start + i] != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 把偏移换算成行列号，偏移等于 length 时是最后一行的下一行第 0 列
+     */
+    public Pos posAt(int offset) {
+        if (lineStart == null) {
+            buildLineStart();
+        }
+        int row = lastRow;
+        if (!inRow(row, offset)) {
+            row++;
+            if (!inRow(row, offset)) {
+                row = findRow(offset);
+            }
+        }
+        lastRow = row;
+        return new Pos(row, offset - lineStart[row]);
+    }
+
+    private void buildLineStart() {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                if (count == starts.length)
+                    starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = i + 1;
+            }
+        }
+        lineStart = starts;
+        lineCount = count;
+    }
+
+    private boolean inRow(int row, int offset) {
+        return row < lineCount && lineStart[row] <= offset
+                && (row + 1 == lineCount || offset < lineStart[row + 1]);
+    }
+
+    private int findRow(int offset) {
+        int lo = 0;
+        int hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStart[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
 }
@@ -0,0 +1,198 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+import miniplc0java.util.Pos;
+
+/**
+ * Tokenizer.tokenizeAll() 的结果，整个输入的 token 按下标存在几个基本类型数组里
+ * 位置是源文件中的偏移，起点放在 span 的高 32 位、终点放在低 32 位，
+ * 报错或者需要 Token 对象时才换算成 Pos
+ * values 放数值字面量(double 存位模式)和标识符在 IdentTable 里的编号，
+ * strings 只有字符串字面量的位置不为 null
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private StringIter source;
+    private final IdentTable idents;
+
+    private byte[] types = new byte[256];
+    private long[] spans = new long[256];
+    private long[] values = new long[256];
+    private String[] strings = new String[256];
+    private int size = 0;
+
+    TokenBuffer(StringIter source, IdentTable idents) {
+        this.source = source;
+        this.idents = idents;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > types.length) {
+            int n = Math.max(capacity, types.length * 2);
+            types = Arrays.copyOf(types, n);
+            spans = Arrays.copyOf(spans, n);
+            values = Arrays.copyOf(values, n);
+            strings = Arrays.copyOf(strings, n);
+        }
+    }
+
+    /**
+     * 追加 tokenizer 刚读到的 token
+     */
+    void add(Tokenizer t) {
+        ensureCapacity(size + 1);
+        long value = 0;
+        String string = null;
+        switch (t.type) {
+            case UINT_LITERAL:
+            case DOUBLE_LITERAL:
+            case CHAR_LITERAL:
+                value = t.number;
+                break;
+            case STRING_LITERAL:
+                string = t.string;
+                break;
+            case IDENT:
+                value = t.ident;
+                break;
+            default:
+                break;
+        }
+        types[size] = (byte) t.type.ordinal();
+        spans[size] = ((long) t.start << 32) | t.end;
+        values[size] = value;
+        strings[size] = string;
+        size++;
+    }
+
+    /**
+     * 把 [from, to) 的 token 换成 with 里的全部 token，to 之后的 token 位置都移动 delta
+     * 用于增量切分，with 的位置已经是编辑之后的
+     */
+    void replace(int from, int to, TokenBuffer with, int delta) {
+        int tail = size - to;
+        int newSize = from + with.size + tail;
+        ensureCapacity(newSize);
+        int newTo = from + with.size;
+        System.arraycopy(types, to, types, newTo, tail);
+        System.arraycopy(spans, to, spans, newTo, tail);
+        System.arraycopy(values, to, values, newTo, tail);
+        System.arraycopy(strings, to, strings, newTo, tail);
+        System.arraycopy(with.types, 0, types, from, with.size);
+        System.arraycopy(with.spans, 0, spans, from, with.size);
+        System.arraycopy(with.values, 0, values, from, with.size);
+        System.arraycopy(with.strings, 0, strings, from, with.size);
+        // 起点和终点同时移动
+        long shift = ((long) delta << 32) + delta;
+        for (int i = newTo; i < newSize; i++) {
+            spans[i] += shift;
+        }
+        for (int i = newSize; i < size; i++) {
+            strings[i] = null;
+        }
+        size = newSize;
+    }
+
+    void setSource(StringIter source) {
+        this.source = source;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    /**
+     * @return 第 i 个 token 的起止偏移，起点在高 32 位
+     */
+    public long span(int i) {
+        return spans[i];
+    }
+
+    public int start(int i) {
+        return (int) (spans[i] >>> 32);
+    }
+
+    public int end(int i) {
+        return (int) spans[i];
+    }
+
+    /**
+     * UINT_LITERAL 和 CHAR_LITERAL 的值
+     */
+    public long longValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * DOUBLE_LITERAL 的值
+     */
+    public double doubleValue(int i) {
+        return Double.longBitsToDouble(values[i]);
+    }
+
+    /**
+     * STRING_LITERAL 转义之后的内容
+     */
+    public String stringValue(int i) {
+        return strings[i];
+    }
+
+    /**
+     * @return token 在源文件里的原文，标识符返回驻留的名字
+     */
+    public String text(int i) {
+        if (types[i] == TokenType.IDENT.ordinal())
+            return idents.name(identId(i));
+        return source.substring(start(i), end(i));
+    }
+
+    /**
+     * IDENT 在 IdentTable 里的编号，同名的标识符编号相同
+     */
+    public int identId(int i) {
+        return (int) values[i];
+    }
+
+    public Pos startPos(int i) {
+        return source.posAt(start(i));
+    }
+
+    public Pos endPos(int i) {
+        return source.posAt(end(i));
+    }
+
+    /**
+     * 换算成和 Tokenizer.nextToken() 相同的 Token
+     */
+    public Token token(int i) {
+        TokenType type = type(i);
+        Object value;
+        switch (type) {
+            case UINT_LITERAL:
+                value = longValue(i);
+                break;
+            case DOUBLE_LITERAL:
+                value = doubleValue(i);
+                break;
+            case CHAR_LITERAL:
+                value = (int) longValue(i);
+                break;
+            case STRING_LITERAL:
+                value = stringValue(i);
+                break;
+            case IDENT:
+                value = idents.name(identId(i));
+                break;
+            default:
+                value = Tokenizer.fixedValue(type);
+                break;
+        }
+        return new Token(type, value, startPos(i), endPos(i));
+    }
+}
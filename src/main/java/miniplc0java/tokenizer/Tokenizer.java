@@ -2,14 +2,54 @@ package miniplc0java.tokenizer;
 
 import miniplc0java.error.TokenizeError;
 import miniplc0java.error.ErrorCode;
-import miniplc0java.util.Pos;
 
 public class Tokenizer {
 
     private StringIter it;
 
+    private static final String[] KEYWORDS = {"fn", "let", "const", "as", "while", "if", "else", "return", "break", "continue"};
+    private static final TokenType[] KEYWORD_TYPES = {TokenType.FN_KW, TokenType.LET_KW, TokenType.CONST_KW,
+            TokenType.AS_KW, TokenType.WHILE_KW, TokenType.IF_KW, TokenType.ELSE_KW, TokenType.RETURN_KW,
+            TokenType.BREAK_KW, TokenType.CONTINUE_KW};
+
+    // 关键字的完美散列：(长度 * 2 + 首字符 + 尾字符 * 14) & 15，十个关键字各占一格
+    private static final String[] KEYWORD_SLOTS = new String[16];
+    private static final TokenType[] KEYWORD_SLOT_TYPES = new TokenType[16];
+
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            String kw = KEYWORDS[i];
+            int h = keywordHash(kw.length(), kw.charAt(0), kw.charAt(kw.length() - 1));
+            if (KEYWORD_SLOTS[h] != null)
+                throw new Error("keyword hash collision: " + kw);
+            KEYWORD_SLOTS[h] = kw;
+            KEYWORD_SLOT_TYPES[h] = KEYWORD_TYPES[i];
+        }
+    }
+
+    // scan() 读到的 token，下一次 scan() 时覆盖
+    TokenType type;
+    // 在源文件中的起止偏移
+    int start;
+    int end;
+    // UINT_LITERAL 和 CHAR_LITERAL 的值，DOUBLE_LITERAL 的位模式
+    long number;
+    // STRING_LITERAL 转义之后的内容
+    String string;
+    // IDENT 在 idents 里的编号
+    int ident;
+
+    final IdentTable idents;
+
+    private final StringBuilder strLiteral = new StringBuilder();
+
     public Tokenizer(StringIter it) {
+        this(it, new IdentTable());
+    }
+
+    Tokenizer(StringIter it, IdentTable idents) {
         this.it = it;
+        this.idents = idents;
     }
 
     /**
@@ -19,42 +59,151 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
-        it.readAll();
-
-        // 跳过之前的所有空白字符
-        skipSpaceCharacters();
+        scan();
+        return new Token(type, value(), it.posAt(start), it.posAt(end));
+    }
 
-        if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+    /**
+     * 一次切完整个输入，token 放进基本类型数组里，不为每个 token 创建对象
+     * 最后一项是 EOF
+     *
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public TokenBuffer tokenizeAll() throws TokenizeError {
+        TokenBuffer tokens = new TokenBuffer(it, idents);
+        while (scan() != TokenType.EOF) {
+            tokens.add(this);
         }
+        tokens.add(this);
+        return tokens;
+    }
 
-        char peek = it.peekChar();
-        // peek 是下一个字符
-        if (Character.isDigit(peek)) {
-            return lexNum();
-        } else if (Character.isAlphabetic(peek) || (peek == '_')) {
-            return lexIdentOrKeyword();
-        } else if (peek == '\"') {
-            return lexString();
-        } else if (peek == '\'') {
-            return lexChar();
-        } else if (peek == '/') {
-            it.nextChar();
-            if (it.peekChar() == '/') {
-                // 跳过单行注释
-                skipComment();
-                return nextToken();
+    /**
+     * 读下一个 token，结果放在 type、start、end、number、string 里
+     *
+     * @return token 的类型
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    TokenType scan() throws TokenizeError {
+        it.readAll();
+        while (true) {
+            // 跳过之前的所有空白字符
+            skipSpaceCharacters();
+            start = it.offset();
+
+            if (it.isEOF()) {
+                return finish(TokenType.EOF);
+            }
+
+            char peek = it.peekChar();
+            // peek 是下一个字符
+            if (Character.isDigit(peek)) {
+                return lexNum();
+            } else if (Character.isAlphabetic(peek) || (peek == '_')) {
+                return lexIdentOrKeyword();
+            } else if (peek == '\"') {
+                return lexString();
+            } else if (peek == '\'') {
+                return lexChar();
+            } else if (peek == '/') {
+                it.nextChar();
+                if (it.peekChar() == '/') {
+                    // 跳过单行注释
+                    skipComment();
+                } else {
+                    // 是除号诶！起止位置都记在 / 后面
+                    start = it.offset();
+                    return finish(TokenType.DIV);
+                }
             } else {
-                return new Token(TokenType.DIV, '/', it.currentPos(), it.currentPos());// 是除号诶！
+                return lexOperatorOrUnknown();
             }
-        } else {
-            return lexOperatorOrUnknown();
         }
     }
 
-    private Token lexNum() throws TokenizeError {
-        StringBuilder digitStr = new StringBuilder();
-        Pos startPos = it.currentPos();
+    private TokenType finish(TokenType type) {
+        this.type = type;
+        this.end = it.offset();
+        return type;
+    }
+
+    /**
+     * 当前 token 的值，和原来放在 Token 里的一样
+     */
+    private Object value() {
+        switch (type) {
+            case UINT_LITERAL:
+                return number;
+            case DOUBLE_LITERAL:
+                return Double.longBitsToDouble(number);
+            case CHAR_LITERAL:
+                return (int) number;
+            case STRING_LITERAL:
+                return string;
+            case IDENT:
+                return idents.name(ident);
+            default:
+                return fixedValue(type);
+        }
+    }
+
+    /**
+     * 关键字、运算符和 EOF 的值只取决于类型
+     */
+    static Object fixedValue(TokenType type) {
+        switch (type) {
+            case PLUS:
+                return '+';
+            case MINUS:
+                return '-';
+            case MUL:
+                return '*';
+            case DIV:
+                return '/';
+            case ASSIGN:
+                return '=';
+            case LT:
+                return '<';
+            case GT:
+                return '>';
+            case L_PAREN:
+                return '(';
+            case R_PAREN:
+                return ')';
+            case L_BRACE:
+                return '{';
+            case R_BRACE:
+                return '}';
+            case COMMA:
+                return ',';
+            case COLON:
+                return ':';
+            case SEMICOLON:
+                return ';';
+            case ARROW:
+                return "->";
+            case EQ:
+                return "==";
+            case NEQ:
+                return "!=";
+            case LE:
+                return "<=";
+            case GE:
+                return ">=";
+            case EOF:
+                return "";
+            default:
+                for (int i = 0; i < KEYWORD_TYPES.length; i++) {
+                    if (KEYWORD_TYPES[i] == type)
+                        return KEYWORDS[i];
+                }
+                throw new Error("no fixed value for " + type.name());
+        }
+    }
+
+    private TokenType lexNum() throws TokenizeError {
+        boolean isDouble = false;
+        boolean isDigits = true;
         while (!it.isEOF() &&
                 ( Character.isDigit(it.peekChar()) ||
                         it.peekChar() == '.' ||
@@ -62,109 +211,97 @@ public class Tokenizer {
                         it.peekChar() == 'E' ||
                         it.peekChar() == '-') )
         {
-            digitStr.append(it.nextChar());
+            char c = it.nextChar();
+            if (c == '.')
+                isDouble = true;
+            else if (!Character.isDigit(c))
+                isDigits = false;
         }
         // 解析成功则返回无符号整数类型的token，否则返回编译错误
-        try {
-            String s = digitStr.toString();
-            if (s.contains(".")) {
-                double digitD = Double.parseDouble(s);
-                return new Token(TokenType.DOUBLE_LITERAL, digitD, startPos, it.currentPos());
-            } else {
-                // 默认无符号整数，可能大于int范围，要用Long存
-//                System.out.println(s);
-//                Integer digitI = Integer.valueOf(s);// 范围不够
-                Long digitL = Long.valueOf(s);
-//                System.out.println(digitL);
-                return new Token(TokenType.UINT_LITERAL, digitL, startPos, it.currentPos());
+        if (isDouble) {
+            // 双精度浮点数
+            try {
+                number = Double.doubleToRawLongBits(Double.parseDouble(it.substring(start, it.offset())));
+            } catch (NumberFormatException e) {
+                throw new TokenizeError(ErrorCode.InvalidInput, it.posAt(start));
             }
-        } catch (ArithmeticException e) {
-            throw new TokenizeError(ErrorCode.IntegerOverflow, startPos);
-        } catch (NumberFormatException e) {
-            throw new TokenizeError(ErrorCode.InvalidInput, startPos);
+            return finish(TokenType.DOUBLE_LITERAL);
         }
-        // 双精度浮点数
+        // 默认无符号整数，可能大于int范围，要用Long存
+        if (!isDigits)
+            throw new TokenizeError(ErrorCode.InvalidInput, it.posAt(start));
+        long value = 0;
+        for (int i = start; i < it.offset(); i++) {
+            int d = Character.digit(it.charAt(i), 10);
+            if (value > (Long.MAX_VALUE - d) / 10)
+                throw new TokenizeError(ErrorCode.InvalidInput, it.posAt(start));
+            value = value * 10 + d;
+        }
+        number = value;
+        return finish(TokenType.UINT_LITERAL);
     }
 
-    private Token lexIdentOrKeyword() throws TokenizeError {
-        StringBuilder ident = new StringBuilder();
-        Pos startPos = it.currentPos();
+    private TokenType lexIdentOrKeyword() {
         // 假设Character.isAlphabetic()不能识别下划线
         while (!it.isEOF() &&
                 (Character.isDigit(it.peekChar()) || Character.isLetter(it.peekChar())
                         || it.peekChar() == '_')) {
-            ident.append(it.nextChar());
+            it.nextChar();
         }
-        String identStr = ident.toString();
         // -- 如果是关键字，则返回关键字类型的 token
-        if (identStr.equals("fn"))
-            return new Token(TokenType.FN_KW, "fn", startPos, it.currentPos());
-        else if (identStr.equals("let"))
-            return new Token(TokenType.LET_KW, "let", startPos, it.currentPos());
-        else if (identStr.equals("const"))
-            return new Token(TokenType.CONST_KW, "const", startPos, it.currentPos());
-        else if (identStr.equals("as"))
-            return new Token(TokenType.AS_KW, "as", startPos, it.currentPos());
-        else if (identStr.equals("while"))
-            return new Token(TokenType.WHILE_KW, "while", startPos, it.currentPos());
-        else if (identStr.equals("if"))
-            return new Token(TokenType.IF_KW, "if", startPos, it.currentPos());
-        else if (identStr.equals("else"))
-            return new Token(TokenType.ELSE_KW, "else", startPos, it.currentPos());
-        else if (identStr.equals("return"))
-            return new Token(TokenType.RETURN_KW, "return", startPos, it.currentPos());
-        else if (identStr.equals("break"))
-            return new Token(TokenType.BREAK_KW, "break", startPos, it.currentPos());
-        else if (identStr.equals("continue"))
-            return new Token(TokenType.CONTINUE_KW, "continue", startPos, it.currentPos());
-            // -- 否则，返回标识符，包括int, void, double
-        else
-            return new Token(TokenType.IDENT, identStr, startPos, it.currentPos());
+        int end = it.offset();
+        int length = end - start;
+        if (length >= 2 && length <= 8) {
+            int h = keywordHash(length, it.charAt(start), it.charAt(end - 1));
+            String kw = KEYWORD_SLOTS[h];
+            if (kw != null && kw.length() == length && it.regionMatches(start, kw))
+                return finish(KEYWORD_SLOT_TYPES[h]);
+        }
+        // -- 否则，返回标识符，包括int, void, double
+        ident = idents.intern(it.buffer, start, end);
+        return finish(TokenType.IDENT);
+    }
+
+    private static int keywordHash(int length, char first, char last) {
+        return (length * 2 + first + last * 14) & 15;
+    }
+
+    /**
+     * @return 标识符驻留表，同名的 IDENT token 的值是同一个 String
+     */
+    public IdentTable getIdentTable() {
+        return idents;
     }
 
-    private Token lexString() throws TokenizeError{
-        StringBuilder strLiteral = new StringBuilder();
-        Pos startPos = it.currentPos();
+    private TokenType lexString() throws TokenizeError {
+        strLiteral.setLength(0);
         it.nextChar();
         while (!it.isEOF() && (it.peekChar() != '\"')) {
             // 转移字符按俩字符原样输出即可,如\n仍输出\n
-//            System.out.println(Integer.valueOf(it.peekChar()).intValue());
             if (it.peekChar() == '\\') {
                 it.nextChar();
                 switch (it.peekChar()) {
-                    case '\\': {
-//                        strLiteral.append('\\');
+                    case '\\':
                         strLiteral.append('\\');
                         break;
-                    }
-                    case '\"': {
-//                        strLiteral.append('\\');
+                    case '\"':
                         strLiteral.append('\"');
                         break;
-                    }
-                    case '\'': {
-//                        strLiteral.append('\\');
+                    case '\'':
                         strLiteral.append('\'');
                         break;
-                    }
-                    case 'n': {
-//                        strLiteral.append('\\');
+                    case 'n':
                         strLiteral.append('\n');
                         break;
-                    }
-                    case 'r': {
-//                        strLiteral.append('\\');
+                    case 'r':
                         strLiteral.append('\r');
                         break;
-                    }
-                    case 't': {
-//                        strLiteral.append('\\');
+                    case 't':
                         strLiteral.append('\t');
                         break;
-                    }
                     default:
                         // 字符串里不允许 " 和 单独的\
-                        throw new TokenizeError(ErrorCode.InvalidInput, startPos);
+                        throw new TokenizeError(ErrorCode.InvalidInput, it.posAt(start));
                 }
                 it.nextChar();
             }
@@ -173,15 +310,15 @@ public class Tokenizer {
         }
         if (it.peekChar() == '\"') {
             it.nextChar();
-            return new Token(TokenType.STRING_LITERAL, strLiteral, startPos, it.currentPos());
+            string = strLiteral.toString();
+            return finish(TokenType.STRING_LITERAL);
         }
         else
-            throw new TokenizeError(ErrorCode.InvalidInput, startPos);
+            throw new TokenizeError(ErrorCode.InvalidInput, it.posAt(start));
     }
 
-    private Token lexChar() throws TokenizeError {
+    private TokenType lexChar() throws TokenizeError {
         // 注意：字符字面量的类型是int！
-        Pos startPos = it.currentPos();
         it.nextChar();
         if (it.peekChar() == '\\') {
             // 字符字面量必须为 '\[\"'nrt]'
@@ -192,89 +329,90 @@ public class Tokenizer {
             }
             switch (transformedChar) {
                 case '\\':
-                    return new Token(TokenType.CHAR_LITERAL, (int)('\\'), startPos, it.currentPos());
                 case '\"':
-                    return new Token(TokenType.CHAR_LITERAL, (int)('\"'), startPos, it.currentPos());
                 case '\'':
-                    return new Token(TokenType.CHAR_LITERAL, (int)('\''), startPos, it.currentPos());
+                    number = transformedChar;
+                    break;
                 case 'n':
-                    return new Token(TokenType.CHAR_LITERAL, (int)('\n'), startPos, it.currentPos());
+                    number = '\n';
+                    break;
                 case 'r':
-                    return new Token(TokenType.CHAR_LITERAL, (int)('\r'), startPos, it.currentPos());
+                    number = '\r';
+                    break;
                 case 't':
-                    return new Token(TokenType.CHAR_LITERAL, (int)('\t'), startPos, it.currentPos());
+                    number = '\t';
+                    break;
                 default:
                     throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
             }
         } else {
             // 字符字面量必须为 '[^'\\]
             // 字符字面量的类型是int
-            int charLiteral = it.nextChar();
+            number = it.nextChar();
             if (it.nextChar() != '\'') {
                 throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
             }
-            return new Token(TokenType.CHAR_LITERAL, charLiteral, startPos, it.currentPos());
         }
+        return finish(TokenType.CHAR_LITERAL);
     }
 
-    private Token lexOperatorOrUnknown() throws TokenizeError {
-        Pos startPos = it.currentPos();
+    private TokenType lexOperatorOrUnknown() throws TokenizeError {
         switch (it.nextChar()) {
             case '+':
-                return new Token(TokenType.PLUS, '+', startPos, it.currentPos());
+                return finish(TokenType.PLUS);
             case '-': {
                 if (it.peekChar() == '>') {
                     it.nextChar();
-                    return new Token(TokenType.ARROW, "->", startPos, it.currentPos());
+                    return finish(TokenType.ARROW);
                 }
-                return new Token(TokenType.MINUS, '-', startPos, it.currentPos());
+                return finish(TokenType.MINUS);
             }
             case '*':
-                return new Token(TokenType.MUL, '*', startPos, it.currentPos());
+                return finish(TokenType.MUL);
             case '/':
-                return new Token(TokenType.DIV, '/', startPos, it.currentPos());
+                return finish(TokenType.DIV);
             case '=': {
                 if (it.peekChar() == '=') {
                     it.nextChar();
-                    return new Token(TokenType.EQ, "==", startPos, it.currentPos());
+                    return finish(TokenType.EQ);
                 } else
-                    return new Token(TokenType.ASSIGN, '=', startPos, it.currentPos());
+                    return finish(TokenType.ASSIGN);
             }
             case '!': {
                 if (it.peekChar() == '=') {
                     it.nextChar();
-                    return new Token(TokenType.NEQ, "!=", startPos, it.currentPos());
+                    return finish(TokenType.NEQ);
                 } else
-                    throw new TokenizeError(ErrorCode.InvalidInput, startPos);
+                    throw new TokenizeError(ErrorCode.InvalidInput, it.posAt(start));
             }
             case '<': {
                 if (it.peekChar() == '=') {
                     it.nextChar();
-                    return new Token(TokenType.LE, "<=", startPos, it.currentPos());
+                    return finish(TokenType.LE);
                 } else
-                    return new Token(TokenType.LT, '<', startPos, it.currentPos());
+                    return finish(TokenType.LT);
             }
             case '>': {
                 if (it.peekChar() == '=') {
                     it.nextChar();
-                    return new Token(TokenType.GE, ">=", startPos, it.currentPos());
+                    return finish(TokenType.GE);
                 } else
-                    return new Token(TokenType.GT, '>', startPos, it.currentPos());
+                    return finish(TokenType.GT);
             }
             case '(':
-                return new Token(TokenType.L_PAREN, '(', startPos, it.currentPos());
+                return finish(TokenType.L_PAREN);
             case ')':
-                return new Token(TokenType.R_PAREN, ')', startPos, it.currentPos());
+                return finish(TokenType.R_PAREN);
             case '{':
-                return new Token(TokenType.L_BRACE, '{', startPos, it.currentPos());
+                return finish(TokenType.L_BRACE);
             case '}':
-                return new Token(TokenType.R_BRACE, '}', startPos, it.currentPos());
+                return finish(TokenType.R_BRACE);
             case ',':
-                return new Token(TokenType.COMMA, ',', startPos, it.currentPos());
+                return finish(TokenType.COMMA);
             case ':':
-                return new Token(TokenType.COLON, ':', startPos, it.currentPos());
+                return finish(TokenType.COLON);
             case ';':
-                return new Token(TokenType.SEMICOLON, ';', startPos, it.currentPos());
+                return finish(TokenType.SEMICOLON);
             default:
                 // 不认识这个输入
                 throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
@@ -288,7 +426,8 @@ public class Tokenizer {
     }
 
     private void skipComment() {
-        while (it.peekChar() != '\n') {
+        // 增量切分时输入末尾不一定有 \n
+        while (!it.isEOF() && it.peekChar() != '\n') {
             it.nextChar();
         }
     }
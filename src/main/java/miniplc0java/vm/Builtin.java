@@ -0,0 +1,39 @@
+package miniplc0java.vm;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 通过 callname 调用的库函数
+ * 编号就是在 NAMES 里的下标
+ */
+final class Builtin {
+    static final int GETINT = 0;
+    static final int GETDOUBLE = 1;
+    static final int GETCHAR = 2;
+    static final int PUTINT = 3;
+    static final int PUTDOUBLE = 4;
+    static final int PUTCHAR = 5;
+    static final int PUTSTR = 6;
+    static final int PUTLN = 7;
+
+    static final String[] NAMES = {
+            "getint", "getdouble", "getchar", "putint", "putdouble", "putchar", "putstr", "putln"
+    };
+
+    private Builtin() {
+    }
+
+    /**
+     * 全局表里的某一项是不是库函数名
+     *
+     * @return 库函数编号，不是库函数时返回 -1
+     */
+    static int indexOf(byte[] name) {
+        String s = new String(name, StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(s))
+                return i;
+        }
+        return -1;
+    }
+}
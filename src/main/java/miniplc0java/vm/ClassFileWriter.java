@@ -0,0 +1,338 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 生成 JVM class 文件的最小实现，只覆盖 Jit 用到的部分
+ * 版本号取 49(Java 5)，校验器使用类型推导，不需要生成 StackMapTable
+ */
+final class ClassFileWriter {
+    static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020;
+
+    // 用到的字节码
+    static final int NOP = 0x00, ACONST_NULL = 0x01, ICONST_0 = 0x03, LCONST_0 = 0x09, LCONST_1 = 0x0a,
+            BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14,
+            ILOAD = 0x15, LLOAD = 0x16, DLOAD = 0x18, ALOAD = 0x19, LALOAD = 0x2f,
+            LSTORE = 0x37, DSTORE = 0x39, LASTORE = 0x50,
+            POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c,
+            IADD = 0x60, LADD = 0x61, DADD = 0x63, LSUB = 0x65, DSUB = 0x67,
+            LMUL = 0x69, DMUL = 0x6b, LDIV = 0x6d, DDIV = 0x6f,
+            LNEG = 0x75, DNEG = 0x77, LSHL = 0x79, LSHR = 0x7b, LUSHR = 0x7d,
+            LAND = 0x7f, LOR = 0x81, LXOR = 0x83,
+            I2L = 0x85, L2I = 0x88, L2D = 0x8a, D2L = 0x8f,
+            LCMP = 0x94, IFEQ = 0x99, IFNE = 0x9a, GOTO = 0xa7, LOOKUPSWITCH = 0xab,
+            LRETURN = 0xad, RETURN = 0xb1,
+            GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4,
+            INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+            NEWARRAY = 0xbc, ATHROW = 0xbf, WIDE = 0xc4;
+
+    static final int T_LONG = 11;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+    private final DataOutputStream fieldOut = new DataOutputStream(fieldBytes);
+    private int fieldCount = 0;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    /**
+     * 常量池里已有相同的项就复用
+     */
+    private int entry(String key, int slots, PoolWriter writer) {
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        try {
+            writer.write(pool);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        int ret = poolCount;
+        poolCount += slots;
+        poolIndex.put(key, ret);
+        return ret;
+    }
+
+    private interface PoolWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    int utf8(String s) {
+        return entry("U" + s, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(s);
+        });
+    }
+
+    int cls(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int intConst(int v) {
+        return entry("I" + v, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(v);
+        });
+    }
+
+    int longConst(long v) {
+        // long 常量占两个下标
+        return entry("J" + v, 2, out -> {
+            out.writeByte(5);
+            out.writeLong(v);
+        });
+    }
+
+    private int nameAndType(String name, String desc) {
+        int n = utf8(name);
+        int d = utf8(desc);
+        return entry("N" + name + ":" + desc, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(n);
+            out.writeShort(d);
+        });
+    }
+
+    private int ref(int tag, String owner, String name, String desc) {
+        int c = cls(owner);
+        int nt = nameAndType(name, desc);
+        return entry("R" + tag + owner + "." + name + ":" + desc, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(c);
+            out.writeShort(nt);
+        });
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return ref(9, owner, name, desc);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return ref(10, owner, name, desc);
+    }
+
+    void field(int access, String name, String desc) {
+        try {
+            fieldOut.writeShort(access);
+            fieldOut.writeShort(utf8(name));
+            fieldOut.writeShort(utf8(desc));
+            fieldOut.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        fieldCount++;
+    }
+
+    void method(int access, String name, String desc, Code code, int maxStack, int maxLocals) {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > 65535)
+            throw new IllegalStateException("method too large");
+        try {
+            methods.writeShort(access);
+            methods.writeShort(utf8(name));
+            methods.writeShort(utf8(desc));
+            methods.writeShort(1);
+            methods.writeShort(utf8("Code"));
+            methods.writeInt(12 + bytes.length);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(bytes.length);
+            methods.write(bytes);
+            // 没有异常表和属性
+            methods.writeShort(0);
+            methods.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray(String thisName, String superName, String... interfaces) {
+        int thisIndex = cls(thisName);
+        int superIndex = cls(superName);
+        int[] interfaceIndex = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndex[i] = cls(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndex.length);
+            for (int i : interfaceIndex) {
+                out.writeShort(i);
+            }
+            out.writeShort(fieldCount);
+            fieldBytes.writeTo(out);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 一个方法的字节码
+     */
+    static final class Code {
+        private final ClassFileWriter cf;
+        private byte[] buf = new byte[256];
+        private int size = 0;
+
+        Code(ClassFileWriter cf) {
+            this.cf = cf;
+        }
+
+        int position() {
+            return size;
+        }
+
+        void u1(int v) {
+            if (size == buf.length)
+                buf = Arrays.copyOf(buf, size * 2);
+            buf[size++] = (byte) v;
+        }
+
+        void u2(int v) {
+            u1(v >>> 8);
+            u1(v);
+        }
+
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        void patchU2(int at, int v) {
+            buf[at] = (byte) (v >>> 8);
+            buf[at + 1] = (byte) v;
+        }
+
+        void patchU4(int at, int v) {
+            patchU2(at, v >>> 16);
+            patchU2(at + 2, v);
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        private void local(int opcode, int index) {
+            if (index < 256) {
+                u1(opcode);
+                u1(index);
+            } else {
+                u1(WIDE);
+                u1(opcode);
+                u2(index);
+            }
+        }
+
+        void iload(int index) {
+            local(ILOAD, index);
+        }
+
+        void aload(int index) {
+            local(ALOAD, index);
+        }
+
+        void lload(int index) {
+            local(LLOAD, index);
+        }
+
+        void lstore(int index) {
+            local(LSTORE, index);
+        }
+
+        void dload(int index) {
+            local(DLOAD, index);
+        }
+
+        void dstore(int index) {
+            local(DSTORE, index);
+        }
+
+        void iconst(int v) {
+            if (v >= -1 && v <= 5) {
+                u1(ICONST_0 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(v);
+            } else {
+                u1(LDC_W);
+                u2(cf.intConst(v));
+            }
+        }
+
+        void lconst(long v) {
+            if (v == 0) {
+                u1(LCONST_0);
+            } else if (v == 1) {
+                u1(LCONST_1);
+            } else {
+                u1(LDC2_W);
+                u2(cf.longConst(v));
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String desc) {
+            u1(opcode);
+            u2(cf.methodRef(owner, name, desc));
+        }
+
+        void field(int opcode, String owner, String name, String desc) {
+            u1(opcode);
+            u2(cf.fieldRef(owner, name, desc));
+        }
+
+        /**
+         * 写一条 16 位偏移的跳转，返回偏移所在的位置，之后用 patchJump 回填
+         */
+        int jump(int opcode) {
+            int at = size;
+            u1(opcode);
+            u2(0);
+            return at;
+        }
+
+        void patchJump(int at, int target) {
+            int offset = target - at;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                throw new IllegalStateException("jump too far");
+            patchU2(at + 1, offset);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+
+/**
+ * alloc 分配的堆空间，按 slot 分配，free 不回收
+ * 堆上的地址带 HEAP_BIT 标记，和栈上的地址(slot 下标)区分开
+ */
+final class Heap {
+    static final long HEAP_BIT = 1L << 40;
+
+    private long[] slots = new long[16];
+    private int top = 0;
+
+    static boolean isHeap(long addr) {
+        return (addr & HEAP_BIT) != 0;
+    }
+
+    long alloc(long bytes) {
+        int n = (int) ((bytes + 7) / 8);
+        if (top + n > slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, top + n));
+        }
+        long addr = HEAP_BIT | top;
+        top += n;
+        return addr;
+    }
+
+    private int index(long addr) {
+        long i = addr & ~HEAP_BIT;
+        if (i < 0 || i >= top)
+            throw new Error("invalid address " + addr);
+        return (int) i;
+    }
+
+    long load(long addr) {
+        return slots[index(addr)];
+    }
+
+    void store(long addr, long v) {
+        slots[index(addr)] = v;
+    }
+}
@@ -0,0 +1,162 @@
+package miniplc0java.vm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import miniplc0java.instruction.O0Module;
+
+/**
+ * ThreadedVm 的编译层
+ * 每个函数有一个热度计数，被调用和执行回边都会加一，达到阈值时用 JitCompiler 编译成 JVM 类
+ * 之后调用这个函数直接执行编译后的代码；正在循环里的函数在下一次回边时从循环头进入编译后的代码
+ * 编译失败的函数一直留在解释器里
+ *
+ * 编译后的代码也通过这个类访问全局变量、输入输出，以及回到解释器执行没有编译的函数
+ */
+final class Jit {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    // JDK 15 以上用 Lookup.defineHiddenClass，否则退回 Lookup.defineClass
+    private static final Method DEFINE_HIDDEN;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method define = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            define = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            define = null;
+        }
+        DEFINE_HIDDEN = define;
+        NO_OPTIONS = options;
+    }
+
+    // 同时运行的多个虚拟机(--batch、--server)共用，类名不能重复
+    private static final AtomicInteger unitCount = new AtomicInteger();
+
+    // 虚拟机的栈，全局变量在最前面
+    final long[] mem;
+    final JitCode[] code;
+    final int threshold;
+
+    // 编译后的代码回到解释器时，解释器从这里开始使用栈
+    int sp;
+
+    private final ThreadedVm vm;
+    private final VmIo io;
+    private final byte[][] globals;
+    private final JitCompiler compiler;
+    private final int[] hotness;
+    private final boolean[] failed;
+    private final boolean[][] entries;
+    private int compiled = 0;
+
+    Jit(ThreadedVm vm, O0Module module, int[] builtinOf, long[] mem, VmIo io, int threshold) {
+        this.vm = vm;
+        this.mem = mem;
+        this.io = io;
+        this.globals = module.globals;
+        this.threshold = threshold;
+        this.compiler = new JitCompiler(module, builtinOf);
+        int n = module.functionCount();
+        this.code = new JitCode[n];
+        this.hotness = new int[n];
+        this.failed = new boolean[n];
+        this.entries = new boolean[n][];
+    }
+
+    /**
+     * @return 编译成功的函数个数
+     */
+    int compiledCount() {
+        return compiled;
+    }
+
+    /**
+     * 函数被调用了一次
+     *
+     * @return 编译好的代码，还没有时返回 null
+     */
+    JitCode onCall(int fn) {
+        if (code[fn] == null && ++hotness[fn] >= threshold)
+            compile(fn);
+        return code[fn];
+    }
+
+    /**
+     * 函数执行了一次跳回 index 的回边
+     *
+     * @return 是否可以从 index 进入编译好的代码
+     */
+    boolean onBackEdge(int fn, int index) {
+        if (code[fn] == null && ++hotness[fn] >= threshold)
+            compile(fn);
+        return code[fn] != null && entries[fn][index];
+    }
+
+    private void compile(int fn) {
+        if (failed[fn])
+            return;
+        try {
+            String name = "miniplc0java/vm/JitUnit" + unitCount.getAndIncrement();
+            JitCompiler.Unit unit = compiler.compile(fn, name);
+            Class<?> cls = define(unit.bytes);
+            code[fn] = (JitCode) cls.getDeclaredConstructor(Jit.class).newInstance(this);
+            entries[fn] = unit.entries;
+            compiled++;
+        } catch (JitCompiler.Bailout | IllegalStateException | LinkageError | ReflectiveOperationException e) {
+            failed[fn] = true;
+        }
+    }
+
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        if (DEFINE_HIDDEN != null) {
+            MethodHandles.Lookup hidden = (MethodHandles.Lookup) DEFINE_HIDDEN.invoke(lookup, bytes, true, NO_OPTIONS);
+            return hidden.lookupClass();
+        }
+        return lookup.defineClass(bytes);
+    }
+
+    // 以下由编译后的代码调用
+
+    long scan(int builtin) {
+        return io.scan(builtin);
+    }
+
+    void print(int builtin, long v) {
+        io.print(builtin, v);
+    }
+
+    void printString(long index) {
+        io.printString(globals, index);
+    }
+
+    void println() {
+        io.println();
+    }
+
+    long interpret(int fn, long[] args) {
+        return vm.interpret(fn, args);
+    }
+
+    static long cmpf(long a, long b) {
+        double x = Double.longBitsToDouble(a);
+        double y = Double.longBitsToDouble(b);
+        return x < y ? -1 : (x > y ? 1 : 0);
+    }
+
+    static long setgt(long v) {
+        return v > 0 ? 1 : 0;
+    }
+
+    static Error panic() {
+        return new Error("panic");
+    }
+}
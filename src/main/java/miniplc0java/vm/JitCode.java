@@ -0,0 +1,14 @@
+package miniplc0java.vm;
+
+/**
+ * Jit 编译出来的一个函数
+ */
+interface JitCode {
+    /**
+     * 从第 pc 条指令开始执行函数，直到函数返回
+     * 参数在 mem[argBase...]，局部变量在 mem[locBase...]，pc 必须是 0 或者 Jit.onBackEdge 允许的位置
+     *
+     * @return 返回值，没有返回值时为 0
+     */
+    long enter(long[] mem, int argBase, int locBase, int pc);
+}
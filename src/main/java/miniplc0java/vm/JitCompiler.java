@@ -0,0 +1,821 @@
+package miniplc0java.vm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.O0Module;
+import miniplc0java.instruction.Operation;
+
+import static miniplc0java.vm.ClassFileWriter.*;
+
+/**
+ * 把 o0 函数翻译成 JVM 字节码
+ *
+ * 先对每个函数做一遍抽象解释，记录每条指令执行前虚拟机栈上每一项是什么：
+ * 普通的值，或者 loca/arga/globa 压入的地址
+ * 地址只能紧接着被 load64/store64 使用，这样局部变量和参数就能直接放进 JVM 的局部变量，
+ * 值留在 JVM 的操作数栈上，o0 的运算对应到 ladd、dmul、lcmp 这些字节码
+ * 不满足条件的函数(取地址后另作他用、alloc、不同路径上栈的形状不一致等)抛出 Bailout，留给解释器执行
+ */
+final class JitCompiler {
+    // 抽象栈上每一项的种类，放在高 4 位，低 28 位是下标
+    private static final int VAL = 0, LOC = 1, ARG = 2, GLOB = 3, RETSLOT = 4;
+    private static final int KIND_SHIFT = 28;
+    private static final int INDEX_MASK = (1 << KIND_SHIFT) - 1;
+    private static final int MAX_DEPTH = 1024;
+
+    static final String JIT = "miniplc0java/vm/Jit";
+    private static final String JIT_DESC = "L" + JIT + ";";
+
+    /**
+     * 遇到不能编译的代码
+     */
+    static final class Bailout extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Bailout(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * 一个函数的分析结果
+     */
+    private static final class Analysis {
+        // 每条指令执行前的抽象栈，null 表示不可达；下标 n 是函数末尾隐含的 ret
+        int[][] states;
+        // 可以从解释器中途进入的位置(回边的目标且栈为空)
+        boolean[] entries;
+        int maxValues;
+        int maxArgs;
+    }
+
+    /**
+     * 编译结果
+     */
+    static final class Unit {
+        byte[] bytes;
+        // 根函数可以进入的位置
+        boolean[] entries;
+    }
+
+    private final O0Module module;
+    private final int[] builtinOf;
+    private final Analysis[] analyses;
+    private final String[] failures;
+
+    JitCompiler(O0Module module, int[] builtinOf) {
+        this.module = module;
+        this.builtinOf = builtinOf;
+        this.analyses = new Analysis[module.functionCount()];
+        this.failures = new String[module.functionCount()];
+    }
+
+    private static int entry(int kind, long index) {
+        if (index < 0 || index > INDEX_MASK)
+            throw new Bailout("operand out of range");
+        return (kind << KIND_SHIFT) | (int) index;
+    }
+
+    private static int kindOf(int e) {
+        return e >>> KIND_SHIFT;
+    }
+
+    private static int indexOf(int e) {
+        return e & INDEX_MASK;
+    }
+
+    /**
+     * 分析一个函数，结果会缓存，失败时抛出 Bailout
+     */
+    private Analysis analyse(int fn) {
+        if (failures[fn] != null)
+            throw new Bailout(failures[fn]);
+        if (analyses[fn] != null)
+            return analyses[fn];
+        try {
+            Analysis a = doAnalyse(fn);
+            analyses[fn] = a;
+            return a;
+        } catch (Bailout e) {
+            failures[fn] = e.getMessage();
+            throw e;
+        }
+    }
+
+    private int[] push(int[] s, int e) {
+        if (s.length >= MAX_DEPTH)
+            throw new Bailout("stack too deep");
+        int[] ret = Arrays.copyOf(s, s.length + 1);
+        ret[s.length] = e;
+        return ret;
+    }
+
+    private int[] pop(int[] s, int n) {
+        if (n > s.length)
+            throw new Bailout("stack underflow");
+        return Arrays.copyOf(s, s.length - n);
+    }
+
+    private void expectValues(int[] s, int n) {
+        if (n > s.length)
+            throw new Bailout("stack underflow");
+        for (int i = s.length - n; i < s.length; i++) {
+            if (kindOf(s[i]) != VAL)
+                throw new Bailout("address used as value");
+        }
+    }
+
+    private void expectRetSlot(int[] s, int fromTop) {
+        int i = s.length - 1 - fromTop;
+        if (i < 0 || kindOf(s[i]) != RETSLOT)
+            throw new Bailout("missing return slot");
+    }
+
+    private Analysis doAnalyse(int fn) {
+        int begin = module.funcStart[fn];
+        int n = module.funcStart[fn + 1] - begin;
+        int args = module.retSlots[fn] + module.paramSlots[fn];
+        if (module.retSlots[fn] > 1)
+            throw new Bailout("multiple return slots");
+
+        Analysis a = new Analysis();
+        a.states = new int[n + 1][];
+        a.entries = new boolean[n + 1];
+        a.states[0] = new int[0];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            int[] s = a.states[i];
+            if (i == n)
+                continue;
+            Operation opt = O0Module.operationOf(module.opcodes[begin + i]);
+            long x = module.operands[begin + i];
+            int next = i + 1;
+            int target = -1;
+            switch (opt) {
+                case nop:
+                    break;
+                case push:
+                case scani:
+                case scanc:
+                case scanf:
+                    s = push(s, VAL);
+                    break;
+                case pop:
+                    s = pop(s, 1);
+                    break;
+                case popn:
+                    if (x < 0)
+                        throw new Bailout("invalid popn");
+                    s = pop(s, (int) Math.min(x, Integer.MAX_VALUE));
+                    break;
+                case dup:
+                    if (s.length == 0 || kindOf(s[s.length - 1]) == RETSLOT)
+                        throw new Bailout("invalid dup");
+                    s = push(s, s[s.length - 1]);
+                    break;
+                case loca:
+                    if (x >= module.locSlots[fn])
+                        throw new Bailout("local out of range");
+                    s = push(s, entry(LOC, x));
+                    break;
+                case arga:
+                    if (x >= args)
+                        throw new Bailout("argument out of range");
+                    s = push(s, entry(ARG, x));
+                    break;
+                case globa:
+                    if (x >= module.globals.length)
+                        throw new Bailout("global out of range");
+                    s = push(s, entry(GLOB, x));
+                    break;
+                case load64: {
+                    if (s.length == 0)
+                        throw new Bailout("stack underflow");
+                    int k = kindOf(s[s.length - 1]);
+                    if (k != LOC && k != ARG && k != GLOB)
+                        throw new Bailout("load from computed address");
+                    s = push(pop(s, 1), VAL);
+                    break;
+                }
+                case store64: {
+                    expectValues(s, 1);
+                    if (s.length < 2)
+                        throw new Bailout("stack underflow");
+                    int k = kindOf(s[s.length - 2]);
+                    if (k != LOC && k != ARG && k != GLOB)
+                        throw new Bailout("store to computed address");
+                    s = pop(s, 2);
+                    break;
+                }
+                case stackalloc:
+                    if (x == 1)
+                        s = push(s, entry(RETSLOT, 0));
+                    else if (x != 0)
+                        throw new Bailout("stackalloc " + x);
+                    break;
+                case addi:
+                case subi:
+                case muli:
+                case divi:
+                case divu:
+                case addf:
+                case subf:
+                case mulf:
+                case divf:
+                case shl:
+                case shr:
+                case shrl:
+                case and:
+                case or:
+                case xor:
+                case cmpi:
+                case cmpu:
+                case cmpf:
+                    expectValues(s, 2);
+                    s = pop(s, 1);
+                    break;
+                case not:
+                case negi:
+                case negf:
+                case itof:
+                case ftoi:
+                case setlt:
+                case setgt:
+                    expectValues(s, 1);
+                    break;
+                case br:
+                case brtrue:
+                case brfalse:
+                    if (opt != Operation.br) {
+                        expectValues(s, 1);
+                        s = pop(s, 1);
+                    }
+                    if (x < -(i + 1) || x > n - i - 1)
+                        throw new Bailout("branch out of range");
+                    target = (int) (i + 1 + x);
+                    if (target <= i && s.length == 0)
+                        a.entries[target] = true;
+                    if (opt == Operation.br)
+                        next = -1;
+                    break;
+                case call: {
+                    if (x < 0 || x >= module.functionCount())
+                        throw new Bailout("invalid function");
+                    int k = (int) x;
+                    int r = module.retSlots[k];
+                    int p = module.paramSlots[k];
+                    if (r > 1)
+                        throw new Bailout("multiple return slots");
+                    expectValues(s, p);
+                    if (r == 1)
+                        expectRetSlot(s, p);
+                    s = pop(s, p + r);
+                    if (r == 1)
+                        s = push(s, VAL);
+                    a.maxArgs = Math.max(a.maxArgs, p);
+                    break;
+                }
+                case callname: {
+                    if (x < 0 || x >= builtinOf.length || builtinOf[(int) x] < 0)
+                        throw new Bailout("unknown function");
+                    int b = builtinOf[(int) x];
+                    if (b == Builtin.GETINT || b == Builtin.GETCHAR || b == Builtin.GETDOUBLE) {
+                        expectRetSlot(s, 0);
+                        s = push(pop(s, 1), VAL);
+                    } else if (b != Builtin.PUTLN) {
+                        expectValues(s, 1);
+                        s = pop(s, 1);
+                    }
+                    break;
+                }
+                case printi:
+                case printc:
+                case printf:
+                case prints:
+                    expectValues(s, 1);
+                    s = pop(s, 1);
+                    break;
+                case println:
+                    break;
+                case ret:
+                case panic:
+                    next = -1;
+                    break;
+                default:
+                    throw new Bailout("unsupported " + opt);
+            }
+            int values = 0;
+            for (int e : s) {
+                if (kindOf(e) == VAL)
+                    values++;
+            }
+            a.maxValues = Math.max(a.maxValues, values);
+            if (next >= 0)
+                merge(a, next, s, work);
+            if (target >= 0)
+                merge(a, target, s, work);
+        }
+        return a;
+    }
+
+    private void merge(Analysis a, int to, int[] s, ArrayDeque<Integer> work) {
+        if (a.states[to] == null) {
+            a.states[to] = s;
+            work.push(to);
+        } else if (!Arrays.equals(a.states[to], s)) {
+            throw new Bailout("stack shape mismatch");
+        }
+    }
+
+    /**
+     * 编译以 root 为入口的一组函数：root 以及它能直接或间接调用到的、可以编译的函数
+     * 调用不能编译的函数时回到解释器
+     */
+    Unit compile(int root, String className) {
+        Analysis rootAnalysis = analyse(root);
+        boolean[] inUnit = new boolean[module.functionCount()];
+        List<Integer> members = new ArrayList<>();
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        inUnit[root] = true;
+        work.push(root);
+        while (!work.isEmpty()) {
+            int fn = work.pop();
+            members.add(fn);
+            Analysis a = analyse(fn);
+            int begin = module.funcStart[fn];
+            for (int i = 0; i < a.states.length - 1; i++) {
+                if (a.states[i] == null || module.opcodes[begin + i] != Operation.call.getCode())
+                    continue;
+                int k = (int) module.operands[begin + i];
+                if (inUnit[k])
+                    continue;
+                try {
+                    analyse(k);
+                } catch (Bailout e) {
+                    continue;
+                }
+                inUnit[k] = true;
+                work.push(k);
+            }
+        }
+
+        ClassFileWriter cf = new ClassFileWriter();
+        cf.field(ACC_STATIC, "jit", JIT_DESC);
+
+        ClassFileWriter.Code init = new ClassFileWriter.Code(cf);
+        init.aload(0);
+        init.invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.aload(1);
+        init.field(PUTSTATIC, className, "jit", JIT_DESC);
+        init.op(RETURN);
+        cf.method(0, "<init>", "(" + JIT_DESC + ")V", init, 2, 2);
+
+        Emitter enter = new Emitter(cf, className, inUnit, root, analyses[root], 5);
+        enter.enterPrologue();
+        enter.body();
+        cf.method(ACC_PUBLIC, "enter", "([JIII)J", enter.code, enter.maxStack(), enter.maxLocals());
+
+        for (int fn : members) {
+            Emitter e = new Emitter(cf, className, inUnit, fn, analyses[fn], 0);
+            e.callPrologue();
+            e.body();
+            cf.method(ACC_STATIC, "f" + fn, descriptor(module.paramSlots[fn]), e.code, e.maxStack(), e.maxLocals());
+        }
+
+        Unit unit = new Unit();
+        unit.bytes = cf.toByteArray(className, "java/lang/Object", "miniplc0java/vm/JitCode");
+        unit.entries = rootAnalysis.entries;
+        return unit;
+    }
+
+    private static String descriptor(int params) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < params; i++) {
+            sb.append('J');
+        }
+        return sb.append(")J").toString();
+    }
+
+    /**
+     * 生成一个方法，局部变量从 base 开始依次是参数、返回值、局部变量、临时变量
+     */
+    private final class Emitter {
+        final ClassFileWriter.Code code;
+        final String className;
+        final boolean[] inUnit;
+        final int fn;
+        final Analysis a;
+        final int base;
+        final int begin;
+        final int n;
+        final int r;
+        final int p;
+        final int locs;
+        final int temp;
+        final int[] offsets;
+        final List<int[]> jumps = new ArrayList<>();
+
+        Emitter(ClassFileWriter cf, String className, boolean[] inUnit, int fn, Analysis a, int base) {
+            this.code = new ClassFileWriter.Code(cf);
+            this.className = className;
+            this.inUnit = inUnit;
+            this.fn = fn;
+            this.a = a;
+            this.base = base;
+            this.begin = module.funcStart[fn];
+            this.n = module.funcStart[fn + 1] - begin;
+            this.r = module.retSlots[fn];
+            this.p = module.paramSlots[fn];
+            this.locs = module.locSlots[fn];
+            this.temp = base + 2 * (p + r + locs);
+            this.offsets = new int[n + 1];
+        }
+
+        int maxStack() {
+            return 2 * a.maxValues + 8;
+        }
+
+        int maxLocals() {
+            return temp + 2 * Math.max(a.maxArgs, 1);
+        }
+
+        /**
+         * arga 的下标：返回值在前，参数在后
+         */
+        int argLocal(int index) {
+            return index < r ? base + 2 * p : base + 2 * (index - r);
+        }
+
+        int locLocal(int index) {
+            return base + 2 * (p + r + index);
+        }
+
+        int localOf(int e) {
+            return kindOf(e) == LOC ? locLocal(indexOf(e)) : argLocal(indexOf(e));
+        }
+
+        /**
+         * 被直接调用时参数已经在 JVM 局部变量里，返回值和局部变量清零
+         */
+        void callPrologue() {
+            for (int i = 0; i < r; i++) {
+                code.op(LCONST_0);
+                code.lstore(argLocal(i));
+            }
+            for (int i = 0; i < locs; i++) {
+                code.op(LCONST_0);
+                code.lstore(locLocal(i));
+            }
+        }
+
+        /**
+         * 从解释器进入：从 mem 读出参数和局部变量，再按 pc 跳到对应位置
+         */
+        void enterPrologue() {
+            for (int i = 0; i < r + p; i++) {
+                code.aload(1);
+                code.iload(2);
+                code.iconst(i);
+                code.op(IADD);
+                code.op(LALOAD);
+                code.lstore(argLocal(i));
+            }
+            for (int i = 0; i < locs; i++) {
+                code.aload(1);
+                code.iload(3);
+                code.iconst(i);
+                code.op(IADD);
+                code.op(LALOAD);
+                code.lstore(locLocal(i));
+            }
+            List<Integer> keys = new ArrayList<>();
+            for (int i = 1; i <= n; i++) {
+                if (a.entries[i])
+                    keys.add(i);
+            }
+            code.iload(4);
+            int at = code.position();
+            code.op(LOOKUPSWITCH);
+            while (code.position() % 4 != 0) {
+                code.u1(0);
+            }
+            // default 和 0 都从头开始
+            jumps.add(new int[]{at, code.position(), 0, 4});
+            code.u4(0);
+            code.u4(keys.size());
+            for (int k : keys) {
+                code.u4(k);
+                jumps.add(new int[]{at, code.position(), k, 4});
+                code.u4(0);
+            }
+        }
+
+        private void jump(int opcode, int target) {
+            int at = code.jump(opcode);
+            jumps.add(new int[]{at, at + 1, target, 2});
+        }
+
+        private void toDouble() {
+            code.invoke(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D");
+        }
+
+        private void fromDouble() {
+            code.invoke(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J");
+        }
+
+        private void floatOp(int opcode) {
+            toDouble();
+            code.dstore(temp);
+            toDouble();
+            code.dload(temp);
+            code.op(opcode);
+            fromDouble();
+        }
+
+        private void jit() {
+            code.field(GETSTATIC, className, "jit", JIT_DESC);
+        }
+
+        private void globalArray(int index) {
+            jit();
+            code.field(GETFIELD, JIT, "mem", "[J");
+            code.iconst(index);
+        }
+
+        private void emitReturn() {
+            if (r > 0)
+                code.lload(argLocal(0));
+            else
+                code.op(LCONST_0);
+            code.op(LRETURN);
+        }
+
+        private void print(int builtin) {
+            code.lstore(temp);
+            jit();
+            if (builtin == Builtin.PUTSTR) {
+                code.lload(temp);
+                code.invoke(INVOKEVIRTUAL, JIT, "printString", "(J)V");
+            } else {
+                code.iconst(builtin);
+                code.lload(temp);
+                code.invoke(INVOKEVIRTUAL, JIT, "print", "(IJ)V");
+            }
+        }
+
+        private void scan(int builtin) {
+            jit();
+            code.iconst(builtin);
+            code.invoke(INVOKEVIRTUAL, JIT, "scan", "(I)J");
+        }
+
+        private void call(int k) {
+            int kp = module.paramSlots[k];
+            if (inUnit[k]) {
+                code.invoke(INVOKESTATIC, className, "f" + k, descriptor(kp));
+            } else {
+                // 参数装进数组，交给解释器
+                for (int j = kp - 1; j >= 0; j--) {
+                    code.lstore(temp + 2 * j);
+                }
+                jit();
+                code.iconst(k);
+                code.iconst(kp);
+                code.op(NEWARRAY);
+                code.u1(T_LONG);
+                for (int j = 0; j < kp; j++) {
+                    code.op(DUP);
+                    code.iconst(j);
+                    code.lload(temp + 2 * j);
+                    code.op(LASTORE);
+                }
+                code.invoke(INVOKEVIRTUAL, JIT, "interpret", "(I[J)J");
+            }
+            if (module.retSlots[k] == 0)
+                code.op(POP2);
+        }
+
+        void body() {
+            for (int i = 0; i <= n; i++) {
+                int[] s = a.states[i];
+                if (s == null)
+                    continue;
+                offsets[i] = code.position();
+                if (i == n) {
+                    emitReturn();
+                    continue;
+                }
+                Operation opt = O0Module.operationOf(module.opcodes[begin + i]);
+                long x = module.operands[begin + i];
+                int top = s.length > 0 ? s[s.length - 1] : -1;
+                switch (opt) {
+                    case nop:
+                    case loca:
+                    case arga:
+                    case globa:
+                    case stackalloc:
+                        break;
+                    case push:
+                        code.lconst(x);
+                        break;
+                    case pop:
+                        if (kindOf(top) == VAL)
+                            code.op(POP2);
+                        break;
+                    case popn:
+                        for (int j = 0; j < x; j++) {
+                            if (kindOf(s[s.length - 1 - j]) == VAL)
+                                code.op(POP2);
+                        }
+                        break;
+                    case dup:
+                        if (kindOf(top) == VAL)
+                            code.op(DUP2);
+                        break;
+                    case load64:
+                        if (kindOf(top) == GLOB) {
+                            globalArray(indexOf(top));
+                            code.op(LALOAD);
+                        } else {
+                            code.lload(localOf(top));
+                        }
+                        break;
+                    case store64: {
+                        int addr = s[s.length - 2];
+                        if (kindOf(addr) == GLOB) {
+                            code.lstore(temp);
+                            globalArray(indexOf(addr));
+                            code.lload(temp);
+                            code.op(LASTORE);
+                        } else {
+                            code.lstore(localOf(addr));
+                        }
+                        break;
+                    }
+                    case addi:
+                        code.op(LADD);
+                        break;
+                    case subi:
+                        code.op(LSUB);
+                        break;
+                    case muli:
+                        code.op(LMUL);
+                        break;
+                    case divi:
+                        code.op(LDIV);
+                        break;
+                    case divu:
+                        code.invoke(INVOKESTATIC, "java/lang/Long", "divideUnsigned", "(JJ)J");
+                        break;
+                    case and:
+                        code.op(LAND);
+                        break;
+                    case or:
+                        code.op(LOR);
+                        break;
+                    case xor:
+                        code.op(LXOR);
+                        break;
+                    case not:
+                        code.lconst(-1);
+                        code.op(LXOR);
+                        break;
+                    case shl:
+                        code.op(L2I);
+                        code.op(LSHL);
+                        break;
+                    case shr:
+                        code.op(L2I);
+                        code.op(LSHR);
+                        break;
+                    case shrl:
+                        code.op(L2I);
+                        code.op(LUSHR);
+                        break;
+                    case addf:
+                        floatOp(DADD);
+                        break;
+                    case subf:
+                        floatOp(DSUB);
+                        break;
+                    case mulf:
+                        floatOp(DMUL);
+                        break;
+                    case divf:
+                        floatOp(DDIV);
+                        break;
+                    case negi:
+                        code.op(LNEG);
+                        break;
+                    case negf:
+                        toDouble();
+                        code.op(DNEG);
+                        fromDouble();
+                        break;
+                    case itof:
+                        code.op(L2D);
+                        fromDouble();
+                        break;
+                    case ftoi:
+                        toDouble();
+                        code.op(D2L);
+                        break;
+                    case cmpi:
+                        code.op(LCMP);
+                        code.op(I2L);
+                        break;
+                    case cmpu:
+                        code.invoke(INVOKESTATIC, "java/lang/Long", "compareUnsigned", "(JJ)I");
+                        code.op(I2L);
+                        break;
+                    case cmpf:
+                        code.invoke(INVOKESTATIC, JIT, "cmpf", "(JJ)J");
+                        break;
+                    case setlt:
+                        code.iconst(63);
+                        code.op(LUSHR);
+                        break;
+                    case setgt:
+                        code.invoke(INVOKESTATIC, JIT, "setgt", "(J)J");
+                        break;
+                    case br:
+                        jump(GOTO, (int) (i + 1 + x));
+                        break;
+                    case brtrue:
+                        code.op(LCONST_0);
+                        code.op(LCMP);
+                        jump(IFNE, (int) (i + 1 + x));
+                        break;
+                    case brfalse:
+                        code.op(LCONST_0);
+                        code.op(LCMP);
+                        jump(IFEQ, (int) (i + 1 + x));
+                        break;
+                    case call:
+                        call((int) x);
+                        break;
+                    case callname: {
+                        int b = builtinOf[(int) x];
+                        if (b == Builtin.GETINT || b == Builtin.GETCHAR || b == Builtin.GETDOUBLE) {
+                            scan(b);
+                        } else if (b == Builtin.PUTLN) {
+                            jit();
+                            code.invoke(INVOKEVIRTUAL, JIT, "println", "()V");
+                        } else {
+                            print(b);
+                        }
+                        break;
+                    }
+                    case scani:
+                        scan(Builtin.GETINT);
+                        break;
+                    case scanc:
+                        scan(Builtin.GETCHAR);
+                        break;
+                    case scanf:
+                        scan(Builtin.GETDOUBLE);
+                        break;
+                    case printi:
+                        print(Builtin.PUTINT);
+                        break;
+                    case printc:
+                        print(Builtin.PUTCHAR);
+                        break;
+                    case printf:
+                        print(Builtin.PUTDOUBLE);
+                        break;
+                    case prints:
+                        print(Builtin.PUTSTR);
+                        break;
+                    case println:
+                        jit();
+                        code.invoke(INVOKEVIRTUAL, JIT, "println", "()V");
+                        break;
+                    case ret:
+                        emitReturn();
+                        break;
+                    case panic:
+                        code.invoke(INVOKESTATIC, JIT, "panic", "()Ljava/lang/Error;");
+                        code.op(ATHROW);
+                        break;
+                    default:
+                        throw new Bailout("unsupported " + opt);
+                }
+            }
+            // 回填跳转
+            for (int[] j : jumps) {
+                int offset = offsets[j[2]] - j[0];
+                if (j[3] == 4) {
+                    code.patchU4(j[1], offset);
+                } else {
+                    code.patchJump(j[0], offsets[j[2]]);
+                }
+            }
+        }
+    }
+}
@@ -1,103 +1,486 @@
 package miniplc0java.vm;
 
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import miniplc0java.analyser.Function;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.util.Ty;
 
+/**
+ * o0 模块的解释器
+ * 所有值都是64位的 slot，放在一个 long[] 里：
+ * | 全局变量 | 调用者的栈 | 返回值 | 参数 | 局部变量 | 运算栈 ...
+ * 地址就是 slot 在数组里的下标，globa/arga/loca 分别相对 0、参数基址、局部变量基址
+ * 堆上的地址带 Heap.HEAP_BIT 标记，和栈上的地址区分开
+ */
 public class MiniVm {
-    private List<Instruction> instructions;
+    static final int DEFAULT_STACK_SLOTS = 1 << 20;
+
+    private List<Function> functions;
     private PrintStream out;
+    private VmIo io;
+
+    // 每个函数的 ret_slots, param_slots, loc_slots
+    private int[] retSlots;
+    private int[] paramSlots;
+    private int[] locSlots;
+
+    // 全局表，字符串用来 putstr，库函数名用来 callname
+    private byte[][] globals;
+    private int[] builtinOf;
+
+    private long[] stack;
+    private int sp;
+
+    private Heap heap = new Heap();
+
+    // 当前函数的状态
+    private int fn;
+    private List<Instruction> instructions;
+    private int ip;
+    private int argBase;
+    private int locBase;
+
+    // 调用栈，每一帧存调用者的 fn, ip, argBase, locBase
+    private int[] frames = new int[64];
+    private int depth = 0;
+
+    private boolean halted;
+
+    // 已经执行的指令条数
+    private long steps;
+
+    /**
+     * @param functions 函数表，下标就是 call 的操作数
+     * @param globals   全局表每一项的初始值
+     * @param in        getint 等库函数的输入
+     * @param out       putint 等库函数的输出
+     */
+    public MiniVm(List<Function> functions, List<byte[]> globals, InputStream in, PrintStream out) {
+        this.functions = functions;
+        this.out = out;
+        this.io = new VmIo(in, out);
+        this.globals = globals.toArray(new byte[0][]);
+        this.builtinOf = new int[this.globals.length];
+        for (int i = 0; i < this.globals.length; i++) {
+            this.builtinOf[i] = Builtin.indexOf(this.globals[i]);
+        }
+        int n = functions.size();
+        this.retSlots = new int[n];
+        this.paramSlots = new int[n];
+        this.locSlots = new int[n];
+        for (int i = 0; i < n; i++) {
+            Function f = functions.get(i);
+            this.retSlots[i] = (f.getReturnType() == null || f.getReturnType() == Ty.VOID) ? 0 : 1;
+            this.paramSlots[i] = f.calParamSlot();
+            this.locSlots[i] = f.localCount;
+        }
+        this.stack = new long[DEFAULT_STACK_SLOTS];
+    }
 
     /**
+     * 把一段指令当成没有参数和局部变量的入口函数执行
+     *
      * @param instructions
      * @param out
      */
     public MiniVm(List<Instruction> instructions, PrintStream out) {
-        this.instructions = instructions;
-        this.out = out;
+        this(entryOf(instructions), new ArrayList<>(), System.in, out);
     }
 
     public MiniVm(List<Instruction> instructions) {
-        this.instructions = instructions;
-        this.out = System.out;
+        this(instructions, System.out);
     }
 
-    private ArrayList<Integer> stack = new ArrayList<>();
+    private static List<Function> entryOf(List<Instruction> instructions) {
+        Function start = new Function("_start", 0, 0);
+        start.setReturnType(Ty.VOID);
+        start.instructions.addAll(instructions);
+        List<Function> ret = new ArrayList<>();
+        ret.add(start);
+        return ret;
+    }
 
-    private int ip;
+    /**
+     * 全局变量槽的初值：8 字节的值按大端序解释，其它(字符串、函数名)为 0
+     */
+    static long initialValue(byte[] value) {
+        if (value.length != 8)
+            return 0;
+        long v = 0;
+        for (byte b : value) {
+            v = (v << 8) | (b & 0xff);
+        }
+        return v;
+    }
 
+    /**
+     * 从 _start 开始执行，直到 _start 返回
+     */
     public void Run() {
-        ip = 0;
-        while (ip < instructions.size()) {
-            var inst = instructions.get(ip);
-            RunStep(inst);
-            ip++;
+        sp = globals.length;
+        for (int i = 0; i < sp; i++) {
+            stack[i] = initialValue(globals[i]);
+        }
+        depth = 0;
+        halted = false;
+        enter(entryIndex());
+        try {
+            while (!halted) {
+                if (ip >= instructions.size()) {
+                    // 函数体执行完了但没有 ret，视为返回
+                    doReturn();
+                    continue;
+                }
+                steps++;
+                RunStep(instructions.get(ip++));
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new Error("stack overflow", e);
+        } finally {
+            out.flush();
         }
     }
 
-    private Integer pop() {
-        var val = this.stack.get(this.stack.size() - 1);
-        this.stack.remove(this.stack.size() - 1);
-        return val;
+    /**
+     * @return 从构造以来执行过的指令条数(不含隐式返回)
+     */
+    public long getSteps() {
+        return steps;
     }
 
-    private void push(Integer i) {
-        this.stack.add(i);
+    private int entryIndex() {
+        for (int i = 0; i < functions.size(); i++) {
+            if (functions.get(i).getName().equals("_start"))
+                return i;
+        }
+        return 0;
+    }
+
+    private long pop() {
+        return stack[--sp];
+    }
+
+    private void push(long v) {
+        stack[sp++] = v;
+    }
+
+    private static double d(long v) {
+        return Double.longBitsToDouble(v);
+    }
+
+    private static long l(double v) {
+        return Double.doubleToRawLongBits(v);
+    }
+
+    private long load(long addr) {
+        if (Heap.isHeap(addr))
+            return heap.load(addr);
+        if (addr < 0 || addr >= sp)
+            throw new Error("invalid address " + addr);
+        return stack[(int) addr];
+    }
+
+    private void store(long addr, long v) {
+        if (Heap.isHeap(addr)) {
+            heap.store(addr, v);
+            return;
+        }
+        if (addr < 0 || addr >= sp)
+            throw new Error("invalid address " + addr);
+        stack[(int) addr] = v;
+    }
+
+    /**
+     * 进入函数：参数和返回值已经在栈上，分配局部变量
+     */
+    private void enter(int callee) {
+        if (callee < 0 || callee >= functions.size())
+            throw new Error("invalid function " + callee);
+        if (depth * 4 + 4 > frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        frames[depth * 4] = fn;
+        frames[depth * 4 + 1] = ip;
+        frames[depth * 4 + 2] = argBase;
+        frames[depth * 4 + 3] = locBase;
+        depth++;
+        fn = callee;
+        instructions = functions.get(callee).instructions;
+        ip = 0;
+        argBase = sp - paramSlots[callee] - retSlots[callee];
+        locBase = sp;
+        int locs = locSlots[callee];
+        Arrays.fill(stack, sp, sp + locs, 0L);
+        sp += locs;
+    }
+
+    /**
+     * 弹出参数和局部变量，只留下返回值
+     */
+    private void doReturn() {
+        sp = argBase + retSlots[fn];
+        depth--;
+        if (depth == 0) {
+            halted = true;
+            return;
+        }
+        fn = frames[depth * 4];
+        ip = frames[depth * 4 + 1];
+        argBase = frames[depth * 4 + 2];
+        locBase = frames[depth * 4 + 3];
+        instructions = functions.get(fn).instructions;
+    }
+
+    private void callName(int global) {
+        int builtin = global >= 0 && global < builtinOf.length ? builtinOf[global] : -1;
+        switch (builtin) {
+            case Builtin.GETINT:
+            case Builtin.GETCHAR:
+            case Builtin.GETDOUBLE:
+                // 返回值的位置已经由 stackalloc 1 留好了
+                stack[sp - 1] = io.scan(builtin);
+                break;
+            case Builtin.PUTSTR:
+                io.printString(globals, pop());
+                break;
+            case Builtin.PUTLN:
+                io.println();
+                break;
+            case Builtin.PUTINT:
+            case Builtin.PUTCHAR:
+            case Builtin.PUTDOUBLE:
+                io.print(builtin, pop());
+                break;
+            default:
+                throw new Error("unknown function " + global);
+        }
     }
 
     private void RunStep(Instruction inst) {
+        long a, b;
         switch (inst.getOpt()) {
-//            case ADD: {
-//                var a = pop();
-//                var b = pop();
-//                push(a + b);
-//            }
-//                break;
-//            case DIV: {
-//                var b = pop();
-//                var a = pop();
-//                push(a / b);
-//            }
-//                break;
-//            case ILL: {
-//                throw new Error("Illegal instruction");
-//            }
-//            case LIT: {
-//                push(inst.getX());
-//            }
-//                break;
-//            case LOD: {
-//                var x = stack.get(inst.getX());
-//                push(x);
-//            }
-//                break;
-//            case MUL: {
-//                var b = pop();
-//                var a = pop();
-//                push(a * b);
-//            }
-//                break;
-//            case STO: {
-//                var x = pop();
-//                stack.set(inst.getX(), x);
-//            }
-//                break;
-//            case SUB: {
-//                var b = pop();
-//                var a = pop();
-//                push(a - b);
-//            }
-//                break;
-//            case WRT: {
-//                var b = pop();
-//                out.printf("%d\n", b);
-//            }
-//                break;
-            default:
+            case nop:
                 break;
-
+            case push:
+                push(inst.getOperand());
+                break;
+            case pop:
+                sp--;
+                break;
+            case popn:
+                sp -= (int) inst.getOperand();
+                break;
+            case dup:
+                push(stack[sp - 1]);
+                break;
+            case loca:
+                push(locBase + inst.getOperand());
+                break;
+            case arga:
+                push(argBase + inst.getOperand());
+                break;
+            case globa:
+                push(inst.getOperand());
+                break;
+            case load8:
+                stack[sp - 1] = load(stack[sp - 1]) & 0xffL;
+                break;
+            case load16:
+                stack[sp - 1] = load(stack[sp - 1]) & 0xffffL;
+                break;
+            case load32:
+                stack[sp - 1] = load(stack[sp - 1]) & 0xffffffffL;
+                break;
+            case load64:
+                stack[sp - 1] = load(stack[sp - 1]);
+                break;
+            case store8:
+                b = pop();
+                a = pop();
+                store(a, (load(a) & ~0xffL) | (b & 0xffL));
+                break;
+            case store16:
+                b = pop();
+                a = pop();
+                store(a, (load(a) & ~0xffffL) | (b & 0xffffL));
+                break;
+            case store32:
+                b = pop();
+                a = pop();
+                store(a, (load(a) & ~0xffffffffL) | (b & 0xffffffffL));
+                break;
+            case store64:
+                b = pop();
+                a = pop();
+                store(a, b);
+                break;
+            case alloc:
+                stack[sp - 1] = heap.alloc(stack[sp - 1]);
+                break;
+            case free:
+                sp--;
+                break;
+            case stackalloc: {
+                int n = (int) inst.getOperand();
+                Arrays.fill(stack, sp, sp + n, 0L);
+                sp += n;
+                break;
+            }
+            case addi:
+                b = pop();
+                stack[sp - 1] += b;
+                break;
+            case subi:
+                b = pop();
+                stack[sp - 1] -= b;
+                break;
+            case muli:
+                b = pop();
+                stack[sp - 1] *= b;
+                break;
+            case divi:
+                b = pop();
+                if (b == 0)
+                    throw new Error("divide by zero");
+                stack[sp - 1] /= b;
+                break;
+            case divu:
+                b = pop();
+                if (b == 0)
+                    throw new Error("divide by zero");
+                stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                break;
+            case addf:
+                b = pop();
+                stack[sp - 1] = l(d(stack[sp - 1]) + d(b));
+                break;
+            case subf:
+                b = pop();
+                stack[sp - 1] = l(d(stack[sp - 1]) - d(b));
+                break;
+            case mulf:
+                b = pop();
+                stack[sp - 1] = l(d(stack[sp - 1]) * d(b));
+                break;
+            case divf:
+                b = pop();
+                stack[sp - 1] = l(d(stack[sp - 1]) / d(b));
+                break;
+            case shl:
+                b = pop();
+                stack[sp - 1] <<= b;
+                break;
+            case shr:
+                b = pop();
+                stack[sp - 1] >>= b;
+                break;
+            case shrl:
+                b = pop();
+                stack[sp - 1] >>>= b;
+                break;
+            case and:
+                b = pop();
+                stack[sp - 1] &= b;
+                break;
+            case or:
+                b = pop();
+                stack[sp - 1] |= b;
+                break;
+            case xor:
+                b = pop();
+                stack[sp - 1] ^= b;
+                break;
+            case not:
+                stack[sp - 1] = ~stack[sp - 1];
+                break;
+            // 指令会在 lhs < rhs 时压入 -1, lhs > rhs 时压入 1,
+            // lhs == rhs 时压入 0。
+            // 浮点数无法比较时压入 0。
+            case cmpi:
+                b = pop();
+                stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                break;
+            case cmpu:
+                b = pop();
+                stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], b);
+                break;
+            case cmpf: {
+                double y = d(pop());
+                double x = d(stack[sp - 1]);
+                stack[sp - 1] = x < y ? -1 : (x > y ? 1 : 0);
+                break;
+            }
+            case negi:
+                stack[sp - 1] = -stack[sp - 1];
+                break;
+            case negf:
+                stack[sp - 1] = l(-d(stack[sp - 1]));
+                break;
+            case itof:
+                stack[sp - 1] = l((double) stack[sp - 1]);
+                break;
+            case ftoi:
+                stack[sp - 1] = (long) d(stack[sp - 1]);
+                break;
+            case setlt:
+                stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                break;
+            case setgt:
+                stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                break;
+            case br:
+                ip += (int) inst.getOperand();
+                break;
+            case brfalse:
+                if (pop() == 0)
+                    ip += (int) inst.getOperand();
+                break;
+            case brtrue:
+                if (pop() != 0)
+                    ip += (int) inst.getOperand();
+                break;
+            case call:
+                enter((int) inst.getOperand());
+                break;
+            case ret:
+                doReturn();
+                break;
+            case callname:
+                callName((int) inst.getOperand());
+                break;
+            case scani:
+                push(io.scan(Builtin.GETINT));
+                break;
+            case scanc:
+                push(io.scan(Builtin.GETCHAR));
+                break;
+            case scanf:
+                push(io.scan(Builtin.GETDOUBLE));
+                break;
+            case printi:
+                io.print(Builtin.PUTINT, pop());
+                break;
+            case printc:
+                io.print(Builtin.PUTCHAR, pop());
+                break;
+            case printf:
+                io.print(Builtin.PUTDOUBLE, pop());
+                break;
+            case prints:
+                io.printString(globals, pop());
+                break;
+            case println:
+                io.println();
+                break;
+            case panic:
+                throw new Error("panic");
+            default:
+                throw new Error("Illegal instruction " + inst.getOpt());
         }
     }
 }
@@ -0,0 +1,827 @@
+package miniplc0java.vm;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import miniplc0java.instruction.O0Module;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 预解码执行的虚拟机
+ * 装载时把每个函数翻译成紧凑的 int 指令流：每条指令占两个 int，操作码和操作数
+ * - 操作码是连续的小整数，主循环里的 switch 会编译成 tableswitch
+ * - 跳转的目标已经换算成指令流里的绝对位置，callname 已经换算成库函数编号
+ * - push 的 64 位操作数放进常量池，操作数是常量池下标
+ * - 每个函数末尾补一条 RET，函数体执行完不需要再判断越界
+ * Java 没有 computed goto，这已经是最接近直接线索化的做法了
+ * 内存布局和 MiniVm 相同，见 MiniVm 的注释
+ */
+public class ThreadedVm {
+    // 预解码后的操作码
+    static final int NOP = 0, PUSH = 1, POP = 2, POPN = 3, DUP = 4,
+            LOCA = 5, ARGA = 6, GLOBA = 7,
+            LOAD8 = 8, LOAD16 = 9, LOAD32 = 10, LOAD64 = 11,
+            STORE8 = 12, STORE16 = 13, STORE32 = 14, STORE64 = 15,
+            ALLOC = 16, FREE = 17, STACKALLOC = 18,
+            ADDI = 19, SUBI = 20, MULI = 21, DIVI = 22,
+            ADDF = 23, SUBF = 24, MULF = 25, DIVF = 26, DIVU = 27,
+            SHL = 28, SHR = 29, AND = 30, OR = 31, XOR = 32, NOT = 33,
+            CMPI = 34, CMPU = 35, CMPF = 36,
+            NEGI = 37, NEGF = 38,
+            ITOF = 39, FTOI = 40, SHRL = 41,
+            SETLT = 42, SETGT = 43,
+            BR = 44, BRFALSE = 45, BRTRUE = 46,
+            CALL = 47, RET = 48, CALLNAME = 49,
+            SCANI = 50, SCANC = 51, SCANF = 52,
+            PRINTI = 53, PRINTC = 54, PRINTF = 55, PRINTS = 56, PRINTLN = 57,
+            PANIC = 58;
+
+    // 超级指令，由 fuse 把 Analyser 固定生成的几条指令合成一条
+    // 需要第二个操作数时放在被合并掉的下一条指令的操作数位置，即 code[pc + 1]
+    static final int LOAD_LOCAL = 59, LOAD_ARG = 60, LOAD_GLOBAL = 61,
+            SET_LOCAL = 62, INC_LOCAL = 63,
+            JEQ = 64, JNE = 65, JLT = 66, JGE = 67, JGT = 68, JLE = 69;
+    static final int OP_COUNT = 70;
+
+    private static final String[] FUSED_NAMES = {
+            "LOAD_LOCAL", "LOAD_ARG", "LOAD_GLOBAL", "SET_LOCAL", "INC_LOCAL",
+            "JEQ", "JNE", "JLT", "JGE", "JGT", "JLE"
+    };
+
+    private static final int[] OP_OF = new int[Operation.values().length];
+
+    static {
+        int i = 0;
+        for (Operation op : Operation.values()) {
+            // Operation 的声明顺序和上面的编号一致
+            OP_OF[op.ordinal()] = i++;
+        }
+    }
+
+    private final O0Module module;
+    private final PrintStream out;
+    private final VmIo io;
+
+    private int[] code;
+    private long[] consts;
+    private int[] funcEntry;
+    private int[] retPc;
+    private int[] builtinOf;
+    private int[] retSlots;
+    private int[] paramSlots;
+    private int[] locSlots;
+    private int entry;
+
+    private long[] stack;
+    private Heap heap = new Heap();
+
+    // 调用栈，每一帧存调用者的 fn, pc, argBase, locBase
+    private int[] frames = new int[256];
+    // 外层 execute 已经占用的帧数，编译后的代码回到解释器时从这里继续
+    private int frameTop = 0;
+
+    // 编译层，null 表示只解释执行
+    private Jit jit;
+
+    // 每种操作码分派的次数
+    private long[] counts = new long[OP_COUNT];
+    // 每种超级指令在代码中出现的次数
+    private int[] fusedSites = new int[OP_COUNT];
+
+    public ThreadedVm(O0Module module, InputStream in, PrintStream out) {
+        this(module, in, out, 0);
+    }
+
+    /**
+     * @param jitThreshold 函数的调用次数加回边次数达到这个值时编译成 JVM 字节码，不大于 0 时不编译
+     */
+    public ThreadedVm(O0Module module, InputStream in, PrintStream out, int jitThreshold) {
+        this.module = module;
+        this.out = out;
+        this.io = new VmIo(in, out);
+        this.stack = new long[MiniVm.DEFAULT_STACK_SLOTS];
+        this.retSlots = module.retSlots;
+        this.paramSlots = module.paramSlots;
+        this.locSlots = module.locSlots;
+        predecode();
+        if (jitThreshold > 0)
+            this.jit = new Jit(this, module, builtinOf, stack, io, jitThreshold);
+    }
+
+    /**
+     * 把模块翻译成 int 指令流
+     */
+    private void predecode() {
+        int funcCount = module.functionCount();
+        builtinOf = new int[module.globals.length];
+        for (int i = 0; i < builtinOf.length; i++) {
+            builtinOf[i] = Builtin.indexOf(module.globals[i]);
+        }
+        // 每个函数多一条 RET
+        code = new int[(module.instructionCount() + funcCount) * 2];
+        funcEntry = new int[funcCount];
+        retPc = new int[funcCount];
+        long[] pool = new long[16];
+        int poolSize = 0;
+        entry = 0;
+        for (int f = 0; f < funcCount; f++) {
+            int begin = module.funcStart[f];
+            int end = module.funcStart[f + 1];
+            // 第 i 条 o0 指令在指令流中的位置是 base + 2 * (i - begin)
+            int base = (begin + f) * 2;
+            funcEntry[f] = base;
+            int name = module.funcName[f];
+            if (name >= 0 && name < module.globals.length
+                    && Arrays.equals(module.globals[name], "_start".getBytes())) {
+                entry = f;
+            }
+            for (int i = begin; i < end; i++) {
+                Operation opt = O0Module.operationOf(module.opcodes[i]);
+                long operand = module.operands[i];
+                int pc = base + 2 * (i - begin);
+                int op = OP_OF[opt.ordinal()];
+                int x;
+                switch (opt) {
+                    case push:
+                        if (poolSize == pool.length)
+                            pool = Arrays.copyOf(pool, poolSize * 2);
+                        pool[poolSize] = operand;
+                        x = poolSize++;
+                        break;
+                    case br:
+                    case brfalse:
+                    case brtrue: {
+                        long target = i + 1 + operand;
+                        // 可以跳到函数末尾补上的 RET
+                        if (target < begin || target > end)
+                            throw new Error("branch out of range in function " + f);
+                        x = base + 2 * (int) (target - begin);
+                        break;
+                    }
+                    case call:
+                        if (operand < 0 || operand >= funcCount)
+                            throw new Error("invalid function " + operand);
+                        x = (int) operand;
+                        break;
+                    case callname:
+                        if (operand < 0 || operand >= builtinOf.length || builtinOf[(int) operand] < 0)
+                            throw new Error("unknown function " + operand);
+                        x = builtinOf[(int) operand];
+                        break;
+                    default:
+                        x = (int) operand;
+                        break;
+                }
+                code[pc] = op;
+                code[pc + 1] = x;
+            }
+            retPc[f] = base + 2 * (end - begin);
+            code[retPc[f]] = RET;
+            fuse(f, base, pool);
+        }
+        consts = Arrays.copyOf(pool, poolSize);
+    }
+
+    private Operation opAt(int i, int end) {
+        return i < end ? O0Module.operationOf(module.opcodes[i]) : null;
+    }
+
+    /**
+     * 合并函数 f 中的常见指令序列
+     * 合并后的指令放在序列第一条的位置，执行完跳过其余几条；
+     * 序列中除了第一条以外都不能是跳转目标，否则跳进来时会执行到被合并的一半
+     */
+    private void fuse(int f, int base, long[] pool) {
+        int begin = module.funcStart[f];
+        int end = module.funcStart[f + 1];
+        boolean[] target = new boolean[end - begin + 1];
+        for (int i = begin; i < end; i++) {
+            Operation opt = O0Module.operationOf(module.opcodes[i]);
+            if (opt == Operation.br || opt == Operation.brtrue || opt == Operation.brfalse)
+                target[(int) (i + 1 - begin + module.operands[i])] = true;
+        }
+        for (int i = begin; i < end; i++) {
+            Operation a = opAt(i, end);
+            Operation b = opAt(i + 1, end);
+            Operation c = opAt(i + 2, end);
+            int pc = base + 2 * (i - begin);
+            int len = 0;
+            int op = 0;
+            // 合并后的两个操作数
+            int x = code[pc + 1];
+            int y = 0;
+            if (a == Operation.loca && b == Operation.loca && c == Operation.load64
+                    && opAt(i + 3, end) == Operation.push && opAt(i + 4, end) == Operation.addi
+                    && opAt(i + 5, end) == Operation.store64
+                    && module.operands[i] == module.operands[i + 1]
+                    && module.operands[i + 3] == (int) module.operands[i + 3]) {
+                // loca n; loca n; load64; push c; addi; store64
+                len = 6;
+                op = INC_LOCAL;
+                y = (int) module.operands[i + 3];
+            } else if (a == Operation.loca && b == Operation.push && c == Operation.store64) {
+                // loca n; push c; store64
+                len = 3;
+                op = SET_LOCAL;
+                y = code[pc + 3];
+            } else if (b == Operation.load64 && (a == Operation.loca || a == Operation.arga || a == Operation.globa)) {
+                len = 2;
+                op = a == Operation.loca ? LOAD_LOCAL : (a == Operation.arga ? LOAD_ARG : LOAD_GLOBAL);
+            } else if (a == Operation.cmpi) {
+                // cmpi; [setlt|setgt]; brtrue/brfalse t; [br k]
+                int set = (b == Operation.setlt || b == Operation.setgt) ? 1 : 0;
+                Operation setOp = set == 1 ? b : null;
+                Operation branch = opAt(i + 1 + set, end);
+                if (branch == Operation.brtrue || branch == Operation.brfalse) {
+                    int j = i + 1 + set;
+                    boolean onTrue = branch == Operation.brtrue;
+                    if (setOp == Operation.setlt)
+                        op = onTrue ? JLT : JGE;
+                    else if (setOp == Operation.setgt)
+                        op = onTrue ? JGT : JLE;
+                    else
+                        op = onTrue ? JNE : JEQ;
+                    len = 2 + set;
+                    x = code[base + 2 * (j - begin) + 1];
+                    y = base + 2 * (j + 1 - begin);
+                    // 条件成立时跳过紧跟的 br k，等价于条件不成立时跳到 k
+                    if (module.operands[j] == 1 && opAt(j + 1, end) == Operation.br
+                            && module.operands[j + 1] > 0 && !target[j + 1 - begin]) {
+                        op = invert(op);
+                        len++;
+                        x = code[base + 2 * (j + 1 - begin) + 1];
+                        y = base + 2 * (j + 2 - begin);
+                    }
+                }
+            }
+            if (len == 0)
+                continue;
+            boolean crosses = false;
+            for (int k = 1; k < len; k++) {
+                crosses |= target[i + k - begin];
+            }
+            if (crosses)
+                continue;
+            code[pc] = op;
+            code[pc + 1] = x;
+            if (op >= SET_LOCAL)
+                code[pc + 3] = y;
+            fusedSites[op]++;
+            i += len - 1;
+        }
+    }
+
+    private static int invert(int op) {
+        switch (op) {
+            case JEQ:
+                return JNE;
+            case JNE:
+                return JEQ;
+            case JLT:
+                return JGE;
+            case JGE:
+                return JLT;
+            case JGT:
+                return JLE;
+            default:
+                return JGT;
+        }
+    }
+
+    /**
+     * @return 从构造以来分派的次数(含函数末尾补上的 RET)，一条超级指令算一次
+     */
+    public long getSteps() {
+        long ret = 0;
+        for (long c : counts) {
+            ret += c;
+        }
+        return ret;
+    }
+
+    /**
+     * 输出每种超级指令在代码中合并了几处、执行了多少次
+     */
+    public void dumpFusionStats(PrintStream out) {
+        for (int i = 0; i < FUSED_NAMES.length; i++) {
+            int op = LOAD_LOCAL + i;
+            out.printf("%-12s sites %6d  executed %12d%n", FUSED_NAMES[i], fusedSites[op], counts[op]);
+        }
+    }
+
+    private static double d(long v) {
+        return Double.longBitsToDouble(v);
+    }
+
+    private static long l(double v) {
+        return Double.doubleToRawLongBits(v);
+    }
+
+    private long load(long addr, int sp) {
+        if (Heap.isHeap(addr))
+            return heap.load(addr);
+        if (addr < 0 || addr >= sp)
+            throw new Error("invalid address " + addr);
+        return stack[(int) addr];
+    }
+
+    private void store(long addr, long v, int sp) {
+        if (Heap.isHeap(addr)) {
+            heap.store(addr, v);
+            return;
+        }
+        if (addr < 0 || addr >= sp)
+            throw new Error("invalid address " + addr);
+        stack[(int) addr] = v;
+    }
+
+    /**
+     * 从 _start 开始执行，直到 _start 返回
+     */
+    public void Run() {
+        int sp = module.globals.length;
+        for (int i = 0; i < sp; i++) {
+            stack[i] = MiniVm.initialValue(module.globals[i]);
+        }
+        frameTop = 0;
+        try {
+            execute(entry, sp);
+        } catch (ArrayIndexOutOfBoundsException | StackOverflowError e) {
+            throw new Error("stack overflow", e);
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * @return 被编译成 JVM 字节码的函数个数
+     */
+    public int getJitCompiledCount() {
+        return jit == null ? 0 : jit.compiledCount();
+    }
+
+    /**
+     * 编译后的代码调用没有编译的函数
+     */
+    long interpret(int fn, long[] args) {
+        int base = jit.sp;
+        int r = retSlots[fn];
+        if (r > 0)
+            Arrays.fill(stack, base, base + r, 0L);
+        System.arraycopy(args, 0, stack, base + r, args.length);
+        execute(fn, base + r + args.length);
+        return r > 0 ? stack[base] : 0;
+    }
+
+    /**
+     * 执行编译后的代码，返回值写回 mem[argBase]
+     *
+     * @param sp    当前的栈顶，编译后的代码回到解释器时从这里继续使用栈
+     * @param depth 当前的调用深度
+     */
+    private void enterCompiled(JitCode c, int fn, int argBase, int locBase, int index, int sp, int depth) {
+        int savedSp = jit.sp;
+        int savedTop = frameTop;
+        jit.sp = sp;
+        frameTop = depth;
+        long v;
+        try {
+            v = c.enter(stack, argBase, locBase, index);
+        } catch (ArithmeticException e) {
+            throw new Error("divide by zero", e);
+        } finally {
+            jit.sp = savedSp;
+            frameTop = savedTop;
+        }
+        if (retSlots[fn] > 0)
+            stack[argBase] = v;
+    }
+
+    /**
+     * 执行了一次跳回 target 的回边(br 或条件跳转)，可以的话转到编译后的代码执行完函数 fn
+     *
+     * @return 是否已经在编译后的代码里执行完了 fn
+     */
+    private boolean enterLoop(int fn, int target, int argBase, int locBase, int sp, int depth) {
+        if (jit == null)
+            return false;
+        int index = (target - funcEntry[fn]) >> 1;
+        if (!jit.onBackEdge(fn, index))
+            return false;
+        enterCompiled(jit.code[fn], fn, argBase, locBase, index, sp, depth);
+        return true;
+    }
+
+    /**
+     * 调用函数 fn，参数已经在栈顶，直到 fn 返回
+     */
+    private void execute(int fn, int sp) {
+        final int[] code = this.code;
+        final long[] consts = this.consts;
+        final long[] stack = this.stack;
+        final Jit jit = this.jit;
+        int[] frames = this.frames;
+        final long[] counts = this.counts;
+
+        final int base = frameTop;
+        int depth = base;
+        int argBase = sp - paramSlots[fn] - retSlots[fn];
+        int locBase = sp;
+        Arrays.fill(stack, sp, sp + locSlots[fn], 0L);
+        sp += locSlots[fn];
+        int pc = funcEntry[fn];
+        long a, b;
+
+        loop:
+        while (true) {
+            int op = code[pc];
+            int x = code[pc + 1];
+            pc += 2;
+            counts[op]++;
+            switch (op) {
+                case NOP:
+                    break;
+                case PUSH:
+                    stack[sp++] = consts[x];
+                    break;
+                case POP:
+                    sp--;
+                    break;
+                case POPN:
+                    sp -= x;
+                    break;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case LOCA:
+                    stack[sp++] = locBase + x;
+                    break;
+                case ARGA:
+                    stack[sp++] = argBase + x;
+                    break;
+                case GLOBA:
+                    stack[sp++] = x;
+                    break;
+                case LOAD8:
+                    stack[sp - 1] = load(stack[sp - 1], sp) & 0xffL;
+                    break;
+                case LOAD16:
+                    stack[sp - 1] = load(stack[sp - 1], sp) & 0xffffL;
+                    break;
+                case LOAD32:
+                    stack[sp - 1] = load(stack[sp - 1], sp) & 0xffffffffL;
+                    break;
+                case LOAD64:
+                    a = stack[sp - 1];
+                    stack[sp - 1] = (a >= 0 && a < sp) ? stack[(int) a] : load(a, sp);
+                    break;
+                case STORE8:
+                    b = stack[--sp];
+                    a = stack[--sp];
+                    store(a, (load(a, sp) & ~0xffL) | (b & 0xffL), sp);
+                    break;
+                case STORE16:
+                    b = stack[--sp];
+                    a = stack[--sp];
+                    store(a, (load(a, sp) & ~0xffffL) | (b & 0xffffL), sp);
+                    break;
+                case STORE32:
+                    b = stack[--sp];
+                    a = stack[--sp];
+                    store(a, (load(a, sp) & ~0xffffffffL) | (b & 0xffffffffL), sp);
+                    break;
+                case STORE64:
+                    b = stack[--sp];
+                    a = stack[--sp];
+                    if (a >= 0 && a < sp)
+                        stack[(int) a] = b;
+                    else
+                        store(a, b, sp);
+                    break;
+                case ALLOC:
+                    stack[sp - 1] = heap.alloc(stack[sp - 1]);
+                    break;
+                case FREE:
+                    sp--;
+                    break;
+                case STACKALLOC:
+                    Arrays.fill(stack, sp, sp + x, 0L);
+                    sp += x;
+                    break;
+                case ADDI:
+                    b = stack[--sp];
+                    stack[sp - 1] += b;
+                    break;
+                case SUBI:
+                    b = stack[--sp];
+                    stack[sp - 1] -= b;
+                    break;
+                case MULI:
+                    b = stack[--sp];
+                    stack[sp - 1] *= b;
+                    break;
+                case DIVI:
+                    b = stack[--sp];
+                    if (b == 0)
+                        throw new Error("divide by zero");
+                    stack[sp - 1] /= b;
+                    break;
+                case DIVU:
+                    b = stack[--sp];
+                    if (b == 0)
+                        throw new Error("divide by zero");
+                    stack[sp - 1] = Long.divideUnsigned(stack[sp - 1], b);
+                    break;
+                case ADDF:
+                    b = stack[--sp];
+                    stack[sp - 1] = l(d(stack[sp - 1]) + d(b));
+                    break;
+                case SUBF:
+                    b = stack[--sp];
+                    stack[sp - 1] = l(d(stack[sp - 1]) - d(b));
+                    break;
+                case MULF:
+                    b = stack[--sp];
+                    stack[sp - 1] = l(d(stack[sp - 1]) * d(b));
+                    break;
+                case DIVF:
+                    b = stack[--sp];
+                    stack[sp - 1] = l(d(stack[sp - 1]) / d(b));
+                    break;
+                case SHL:
+                    b = stack[--sp];
+                    stack[sp - 1] <<= b;
+                    break;
+                case SHR:
+                    b = stack[--sp];
+                    stack[sp - 1] >>= b;
+                    break;
+                case SHRL:
+                    b = stack[--sp];
+                    stack[sp - 1] >>>= b;
+                    break;
+                case AND:
+                    b = stack[--sp];
+                    stack[sp - 1] &= b;
+                    break;
+                case OR:
+                    b = stack[--sp];
+                    stack[sp - 1] |= b;
+                    break;
+                case XOR:
+                    b = stack[--sp];
+                    stack[sp - 1] ^= b;
+                    break;
+                case NOT:
+                    stack[sp - 1] = ~stack[sp - 1];
+                    break;
+                case CMPI:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                    break;
+                case CMPU:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compareUnsigned(stack[sp - 1], b);
+                    break;
+                case CMPF: {
+                    double y = d(stack[--sp]);
+                    double z = d(stack[sp - 1]);
+                    stack[sp - 1] = z < y ? -1 : (z > y ? 1 : 0);
+                    break;
+                }
+                case NEGI:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case NEGF:
+                    stack[sp - 1] = l(-d(stack[sp - 1]));
+                    break;
+                case ITOF:
+                    stack[sp - 1] = l((double) stack[sp - 1]);
+                    break;
+                case FTOI:
+                    stack[sp - 1] = (long) d(stack[sp - 1]);
+                    break;
+                case SETLT:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case SETGT:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case BR:
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case BRFALSE:
+                    if (stack[--sp] != 0)
+                        break;
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case BRTRUE:
+                    if (stack[--sp] == 0)
+                        break;
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case CALL: {
+                    if (jit != null) {
+                        JitCode c = jit.onCall(x);
+                        if (c != null) {
+                            int callee = sp - paramSlots[x] - retSlots[x];
+                            Arrays.fill(stack, sp, sp + locSlots[x], 0L);
+                            enterCompiled(c, x, callee, sp, 0, sp + locSlots[x], depth);
+                            frames = this.frames;
+                            sp = callee + retSlots[x];
+                            break;
+                        }
+                    }
+                    if (depth * 4 + 4 > frames.length) {
+                        frames = Arrays.copyOf(frames, frames.length * 2);
+                        this.frames = frames;
+                    }
+                    frames[depth * 4] = fn;
+                    frames[depth * 4 + 1] = pc;
+                    frames[depth * 4 + 2] = argBase;
+                    frames[depth * 4 + 3] = locBase;
+                    depth++;
+                    fn = x;
+                    argBase = sp - paramSlots[fn] - retSlots[fn];
+                    locBase = sp;
+                    int locs = locSlots[fn];
+                    Arrays.fill(stack, sp, sp + locs, 0L);
+                    sp += locs;
+                    pc = funcEntry[fn];
+                    break;
+                }
+                case RET:
+                    sp = argBase + retSlots[fn];
+                    if (depth == base)
+                        break loop;
+                    depth--;
+                    fn = frames[depth * 4];
+                    pc = frames[depth * 4 + 1];
+                    argBase = frames[depth * 4 + 2];
+                    locBase = frames[depth * 4 + 3];
+                    break;
+                case CALLNAME:
+                    switch (x) {
+                        case Builtin.GETINT:
+                        case Builtin.GETCHAR:
+                        case Builtin.GETDOUBLE:
+                            stack[sp - 1] = io.scan(x);
+                            break;
+                        case Builtin.PUTSTR:
+                            io.printString(module.globals, stack[--sp]);
+                            break;
+                        case Builtin.PUTLN:
+                            io.println();
+                            break;
+                        default:
+                            io.print(x, stack[--sp]);
+                            break;
+                    }
+                    break;
+                case SCANI:
+                    stack[sp++] = io.scan(Builtin.GETINT);
+                    break;
+                case SCANC:
+                    stack[sp++] = io.scan(Builtin.GETCHAR);
+                    break;
+                case SCANF:
+                    stack[sp++] = io.scan(Builtin.GETDOUBLE);
+                    break;
+                case PRINTI:
+                    io.print(Builtin.PUTINT, stack[--sp]);
+                    break;
+                case PRINTC:
+                    io.print(Builtin.PUTCHAR, stack[--sp]);
+                    break;
+                case PRINTF:
+                    io.print(Builtin.PUTDOUBLE, stack[--sp]);
+                    break;
+                case PRINTS:
+                    io.printString(module.globals, stack[--sp]);
+                    break;
+                case PRINTLN:
+                    io.println();
+                    break;
+                case PANIC:
+                    throw new Error("panic");
+                case LOAD_LOCAL:
+                    stack[sp++] = stack[locBase + x];
+                    pc += 2;
+                    break;
+                case LOAD_ARG:
+                    stack[sp++] = stack[argBase + x];
+                    pc += 2;
+                    break;
+                case LOAD_GLOBAL:
+                    stack[sp++] = stack[x];
+                    pc += 2;
+                    break;
+                case SET_LOCAL:
+                    stack[locBase + x] = consts[code[pc + 1]];
+                    pc += 4;
+                    break;
+                case INC_LOCAL:
+                    stack[locBase + x] += code[pc + 1];
+                    pc += 10;
+                    break;
+                case JEQ:
+                    sp -= 2;
+                    if (!(stack[sp] == stack[sp + 1])) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case JNE:
+                    sp -= 2;
+                    if (!(stack[sp] != stack[sp + 1])) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case JLT:
+                    sp -= 2;
+                    if (!(stack[sp] < stack[sp + 1])) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case JGE:
+                    sp -= 2;
+                    if (!(stack[sp] >= stack[sp + 1])) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case JGT:
+                    sp -= 2;
+                    if (!(stack[sp] > stack[sp + 1])) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                case JLE:
+                    sp -= 2;
+                    if (!(stack[sp] <= stack[sp + 1])) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (x < pc && enterLoop(fn, x, argBase, locBase, sp, depth)) {
+                        frames = this.frames;
+                        pc = retPc[fn];
+                        break;
+                    }
+                    pc = x;
+                    break;
+                default:
+                    throw new Error("Illegal instruction " + op);
+            }
+        }
+    }
+}
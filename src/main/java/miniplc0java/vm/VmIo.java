@@ -0,0 +1,114 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * 虚拟机的输入输出，也就是 scan/print 系列指令和对应的库函数
+ * 输入按字节读，getchar 不跳过空白，getint 和 getdouble 跳过前导空白
+ */
+final class VmIo {
+    private final InputStream in;
+    private final PrintStream out;
+    private int peeked = -2;
+
+    VmIo(InputStream in, PrintStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    private int peek() {
+        if (peeked == -2) {
+            try {
+                peeked = in.read();
+            } catch (IOException e) {
+                throw new Error("read input failed", e);
+            }
+        }
+        return peeked;
+    }
+
+    private int read() {
+        int c = peek();
+        peeked = -2;
+        return c;
+    }
+
+    private void skipSpace() {
+        while (peek() != -1 && Character.isWhitespace(peek())) {
+            read();
+        }
+    }
+
+    private String readWord() {
+        skipSpace();
+        StringBuilder sb = new StringBuilder();
+        while (peek() != -1 && !Character.isWhitespace(peek())) {
+            sb.append((char) read());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param builtin Builtin.GETINT / GETCHAR / GETDOUBLE
+     * @return 读到的值，double 以位模式返回
+     */
+    long scan(int builtin) {
+        switch (builtin) {
+            case Builtin.GETCHAR: {
+                int c = read();
+                return c == -1 ? 0 : c;
+            }
+            case Builtin.GETDOUBLE: {
+                String s = readWord();
+                try {
+                    return Double.doubleToRawLongBits(Double.parseDouble(s));
+                } catch (NumberFormatException e) {
+                    throw new Error("invalid double input: " + s);
+                }
+            }
+            default: {
+                String s = readWord();
+                try {
+                    return Long.parseLong(s);
+                } catch (NumberFormatException e) {
+                    throw new Error("invalid int input: " + s);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param builtin Builtin.PUTINT / PUTCHAR / PUTDOUBLE
+     * @param v       要输出的值，double 是位模式
+     */
+    void print(int builtin, long v) {
+        switch (builtin) {
+            case Builtin.PUTCHAR:
+                out.print((char) v);
+                break;
+            case Builtin.PUTDOUBLE:
+                out.print(Double.longBitsToDouble(v));
+                break;
+            default:
+                out.print(v);
+                break;
+        }
+    }
+
+    /**
+     * 输出全局表中的字符串
+     */
+    void printString(byte[][] globals, long index) {
+        if (index < 0 || index >= globals.length)
+            throw new Error("invalid string " + index);
+        for (byte b : globals[(int) index]) {
+            out.print((char) (b & 0xff));
+        }
+    }
+
+    void println() {
+        out.print('\n');
+    }
+}
@@ -3,6 +3,322 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.util.concurrent.ForkJoinPool;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.FunctionCache;
+import miniplc0java.error.AnalyzeError;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
 public class AnalyserTest {
 
+    private static Function compile(String source, String funcName) throws Exception {
+        for (Function f : MiniVmTest.CompileC0(source).funcTable) {
+            if (f.getName().equals(funcName))
+                return f;
+        }
+        throw new AssertionError("no function " + funcName);
+    }
+
+    private static int count(Function f, Operation op) {
+        int ret = 0;
+        for (Instruction i : f.instructions) {
+            if (i.getOpt() == op)
+                ret++;
+        }
+        return ret;
+    }
+
+    @Test
+    public void testConstantFolding() throws Exception {
+        String source = "const N: int = 100;\n"
+                + "const H: double = 0.5;\n"
+                + "fn main() -> void {\n"
+                + "    putint(N * 4 + 1);\n"
+                + "    putdouble(-H * (2 as double));\n"
+                + "    putint(7 / 0);\n"
+                + "}\n";
+        Function main = compile(source, "main");
+
+        assertEquals(0, count(main, Operation.globa));
+        assertEquals(0, count(main, Operation.muli));
+        assertEquals(0, count(main, Operation.mulf));
+        assertEquals(0, count(main, Operation.negf));
+        // 除以 0 留到运行时
+        assertEquals(1, count(main, Operation.divi));
+        assertEquals("401-1.0", MiniVmTest.RunC0(source.replace("    putint(7 / 0);\n", ""), ""));
+    }
+
+    @Test
+    public void testScopedSymbols() throws Exception {
+        String source = "let x: int = 1;\n"
+                + "let y: int = getint();\n"
+                + "let z: int = 3;\n"
+                + "fn f(x: int) -> int {\n"
+                + "    let y: int = x + 10;\n"
+                + "    {\n"
+                + "        let x: int = y * 2;\n"
+                + "        putint(x);\n"
+                + "    }\n"
+                + "    {\n"
+                + "        let w: int = x;\n"
+                + "        putint(w);\n"
+                + "    }\n"
+                + "    return x + y;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let r: int = f(x);\n"
+                + "    putint(r + z);\n"
+                + "    putint(y);\n"
+                + "}\n";
+        // y 的初值里登记了库函数名 getint(全局表第 2 项)，z 应该是第 3 项
+        StringBuilder globas = new StringBuilder();
+        for (Instruction i : compile(source, "_start").instructions) {
+            if (i.getOpt() == Operation.globa)
+                globas.append(i.getOperand());
+        }
+        assertEquals("013", globas.toString());
+        // 内层覆盖外层，退出代码块后恢复
+        assertEquals("221157", MiniVmTest.RunC0(source, "7"));
+    }
+
+    @Test
+    public void testStringPool() throws Exception {
+        String source = "let hi: int = 1;\n"
+                + "fn main() -> void {\n"
+                + "    putstr(\"hi\");\n"
+                + "    putint(hi);\n"
+                + "    putstr(\"hi\");\n"
+                + "    putint(hi + 1);\n"
+                + "    putln();\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        Function main = ctx.funcTable.get(1);
+        assertEquals("main", main.getName());
+        // hi, main, "hi", putstr, putint, putln, _start
+        assertEquals(7, ctx.globalVarTable.size());
+        StringBuilder callnames = new StringBuilder();
+        for (Instruction i : main.instructions) {
+            if (i.getOpt() == Operation.callname)
+                callnames.append(i.getOperand()).append(' ');
+        }
+        assertEquals("3 4 3 4 5 ", callnames.toString());
+        // 和变量同名的字符串仍然按字符串输出
+        assertEquals("hi1hi2\n", MiniVmTest.RunC0(source, ""));
+    }
+
+    @Test
+    public void testIncrementalCompile() throws Exception {
+        String source = "const K: int = 3;\n"
+                + "let g: int;\n"
+                + "fn show(x: int) -> void {\n"
+                + "    putstr(\"x=\");\n"
+                + "    putint(x);\n"
+                + "}\n"
+                + "fn scale(x: int) -> int {\n"
+                + "    return x * K;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    g = scale(getint());\n"
+                + "    show(g);\n"
+                + "    putstr(\"done\");\n"
+                + "}\n";
+        var functions = new FunctionCache();
+        assertArrayEquals(CompileServer.compile(source.getBytes(), false),
+                CompileServer.compile(source.getBytes(), false, functions));
+        assertEquals(0, functions.reused());
+        assertEquals(3, functions.analysed());
+
+        // 什么都没改，全部复用
+        assertIncremental(functions, source, 3, 0);
+        // 常量的值变了，只有用到它的 scale 重新分析
+        assertIncremental(functions, source.replace("K: int = 3", "K: int = 4"), 2, 1);
+        // 前面的函数多了一个字符串，后面函数里字符串和全局变量的位置都变了
+        String shifted = source.replace("K: int = 3", "K: int = 4").replace("putint(x);", "putint(x);\n    putstr(\"!\");");
+        assertIncremental(functions, shifted, 2, 1);
+        // 被调用的函数签名变了，调用它的 main 也要重新分析；函数编号变了的 scale 直接复用
+        String resigned = shifted.replace("fn show(x: int)", "fn show(x: double)").replace("putint(x)", "putdouble(x)")
+                .replace("show(g)", "show(g as double)");
+        assertIncremental(functions, "fn unused() -> void {\n}\n" + resigned, 1, 3);
+
+        // 编译失败时保留上一次的记录
+        try {
+            CompileServer.compile(("fn unused() -> void {\n    1 $ 2;\n}\n" + resigned).getBytes(), false, functions);
+            fail();
+        } catch (CompileError e) {
+            // 预期
+        }
+        assertIncremental(functions, "fn unused() -> void {\n}\n" + resigned, 4, 0);
+    }
+
+    // 增量编译的结果和从头编译完全相同
+    private static void assertIncremental(FunctionCache functions, String source, int reused, int analysed)
+            throws Exception {
+        byte[] fresh = CompileServer.compile(source.getBytes(), true);
+        assertArrayEquals(fresh, CompileServer.compile(source.getBytes(), true, functions));
+        assertEquals(reused, functions.reused());
+        assertEquals(analysed, functions.analysed());
+    }
+
+    @Test
+    public void testParallelFunctions() throws Exception {
+        // main 调用后面的函数、读后面的全局变量，只有两遍模式能编译
+        String forward = "fn main() -> void {\n"
+                + "    putint(twice(base));\n"
+                + "    putstr(\" ok\");\n"
+                + "}\n"
+                + "let base: int = 21;\n"
+                + "fn twice(x: int) -> int {\n"
+                + "    putstr(\"twice \");\n"
+                + "    return x * 2;\n"
+                + "}\n";
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            assertEquals("twice 42 ok", MiniVmTest.RunC0(compileParallel(forward, pool), ""));
+            try {
+                MiniVmTest.CompileC0(forward);
+                fail();
+            } catch (CompileError e) {
+                // 一遍分析时 twice 还没有声明
+            }
+
+            // 两种模式的运行结果相同，两遍模式的输出和线程数无关
+            StringBuilder sb = new StringBuilder("let total: int = 0;\n");
+            for (int i = 0; i < 30; i++) {
+                sb.append("fn f").append(i).append("(x: int) -> int {\n");
+                sb.append("    putstr(\"f").append(i % 4).append(" \");\n");
+                sb.append("    total = total + x;\n");
+                sb.append("    return x + ").append(i == 0 ? "1" : "f" + (i - 1) + "(x)").append(";\n}\n");
+            }
+            sb.append("fn main() -> void {\n    putint(f29(getint()));\n    putint(total);\n}\n");
+            String chain = sb.toString();
+            assertEquals(MiniVmTest.RunC0(chain, "3"), MiniVmTest.RunC0(compileParallel(chain, pool), "3"));
+            var expected = new ByteArrayOutputStream();
+            Instruction.writeModule(Channels.newChannel(expected), compileParallel(chain, single));
+            var actual = new ByteArrayOutputStream();
+            Instruction.writeModule(Channels.newChannel(actual), compileParallel(chain, pool));
+            assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+            // 报的是源文件里的第一个错误：前面函数体里的错误先于后面函数头里的
+            String bad = "fn f() -> void {\n    x = 1;\n}\nfn g(a: void) -> void {\n}\nfn main() -> void {\n}\n";
+            String sequential = null;
+            try {
+                MiniVmTest.CompileC0(bad);
+            } catch (CompileError e) {
+                sequential = e.toString();
+            }
+            try {
+                compileParallel(bad, pool);
+                fail();
+            } catch (CompileError e) {
+                assertEquals(sequential, e.toString());
+            }
+        } finally {
+            pool.shutdown();
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoopJumps() throws Exception {
+        // 每层循环的 break、continue 各自回填到自己的循环
+        String source = "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 4 {\n"
+                + "        let j: int = 0;\n"
+                + "        i = i + 1;\n"
+                + "        if i == 2 {\n"
+                + "            continue;\n"
+                + "        }\n"
+                + "        while 1 {\n"
+                + "            j = j + 1;\n"
+                + "            if j > i {\n"
+                + "                break;\n"
+                + "            }\n"
+                + "            if j == 2 {\n"
+                + "                continue;\n"
+                + "            }\n"
+                + "            putint(j);\n"
+                + "        }\n"
+                + "        if i == 3 {\n"
+                + "            break;\n"
+                + "        }\n"
+                + "        putchar(32);\n"
+                + "    }\n"
+                + "    putint(i);\n"
+                + "}\n";
+        assertEquals("1 133", MiniVmTest.RunC0(source, ""));
+        Function main = compile(source, "main");
+        for (int k = 0; k < main.instructions.size(); k++) {
+            Instruction ins = main.instructions.get(k);
+            if (ins.getOpt() == Operation.br) {
+                long target = k + 1 + ins.getOperand();
+                assertTrue(target >= 0 && target <= main.instructions.size());
+            }
+        }
+
+        // 不能开始一条语句的 token 直接报错
+        try {
+            MiniVmTest.CompileC0("fn main() -> void {\n    )\n}\n");
+            fail();
+        } catch (AnalyzeError e) {
+            assertEquals(ErrorCode.InvalidInput, e.getErr());
+        }
+    }
+
+    @Test
+    public void testConditionBranch() throws Exception {
+        String source = "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let x: double = 0.5;\n"
+                + "    while i < 5 {\n"
+                + "        if (i >= 3) {\n"
+                + "            putint(i);\n"
+                + "        }\n"
+                + "        if x != 0.5 {\n"
+                + "            putint(9);\n"
+                + "        }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    if i {\n"
+                + "        putint(i);\n"
+                + "    }\n"
+                + "}\n";
+        assertEquals("345", MiniVmTest.RunC0(source, ""));
+        Function main = compile(source, "main");
+        // 每个判断条件只有一条条件跳转，循环只在进入时多一条 br
+        assertEquals(4, count(main, Operation.brtrue) + count(main, Operation.brfalse));
+        assertEquals(1, count(main, Operation.br));
+        for (int k = 0; k < main.instructions.size(); k++) {
+            Instruction ins = main.instructions.get(k);
+            if (ins.getOpt() == Operation.brtrue || ins.getOpt() == Operation.brfalse)
+                assertNotEquals(1, ins.getOperand());
+        }
+
+        // 判断条件生成在循环体后面，报错仍然按源码的顺序
+        try {
+            MiniVmTest.CompileC0("fn main() -> void {\n    while f() < 3 {\n        y = 1;\n    }\n}\n");
+            fail();
+        } catch (AnalyzeError e) {
+            assertEquals(ErrorCode.NotDeclared, e.getErr());
+            assertEquals(1, e.getPos().row);
+        }
+    }
+
+    private static CompileContext compileParallel(String source, ForkJoinPool pool) throws Exception {
+        var analyser = new Analyser(new Tokenizer(new StringIter(new StringReader(source))), pool);
+        analyser.analyse();
+        return analyser.getContext();
+    }
 }
@@ -0,0 +1,66 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import miniplc0java.instruction.Instruction;
+
+public class BatchCompilerTest {
+
+    @Test
+    public void testBatchMatchesSequential() throws Exception {
+        Path dir = Files.createTempDirectory("batch");
+        try {
+            List<String> sources = new ArrayList<>();
+            for (int n = 0; n < 40; n++) {
+                // 每个文件的全局变量、字符串、函数个数都不同，共享状态的话输出会串
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < n % 7; i++) {
+                    sb.append("let g").append(i).append(": int = ").append(i).append(";\n");
+                }
+                for (int i = 0; i < n % 5; i++) {
+                    sb.append("fn f").append(i).append("(x: int) -> int { return x * ").append(i).append("; }\n");
+                }
+                sb.append("fn main() -> void {\n    putstr(\"s").append(n).append("\");\n");
+                sb.append("    putint(").append(n).append(" + ").append(n % 5 == 0 ? "0" : "f0(1)").append(");\n}\n");
+                sources.add(sb.toString());
+                Files.writeString(dir.resolve("p" + n + ".c0"), sb.toString());
+            }
+            Files.writeString(dir.resolve("bad.c0"), "fn main() -> void { x = 1; }\n");
+
+            var err = new ByteArrayOutputStream();
+            var batch = new BatchCompiler(dir, null, false, new PrintStream(err, true), null);
+            List<Path> inputs = BatchCompiler.listInputs(dir);
+            assertEquals(41, inputs.size());
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                assertEquals(1, batch.run(inputs, pool));
+            } finally {
+                pool.shutdown();
+            }
+            assertTrue(err.toString().contains("bad.c0"));
+            assertFalse(Files.exists(dir.resolve("bad.o0")));
+
+            for (int n = 0; n < sources.size(); n++) {
+                var expected = new ByteArrayOutputStream();
+                Instruction.writeModule(Channels.newChannel(expected), MiniVmTest.CompileC0(sources.get(n)));
+                assertArrayEquals(expected.toByteArray(), Files.readAllBytes(dir.resolve("p" + n + ".o0")));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+}
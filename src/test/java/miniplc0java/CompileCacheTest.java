@@ -0,0 +1,65 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import miniplc0java.error.CompileError;
+
+public class CompileCacheTest {
+
+    @Test
+    public void testCompileCache() throws Exception {
+        Path dir = Files.createTempDirectory("cache");
+        try {
+            byte[] a = "fn main() -> void {\n    putint(1);\n}\n".getBytes();
+            byte[] b = "fn main() -> void {\n    putint(2);\n}\n".getBytes();
+            var cache = new CompileCache(dir, 1 << 20);
+            byte[] first = cache.compile(a, false);
+            assertArrayEquals(CompileServer.compile(a, false), first);
+            assertArrayEquals(first, cache.compile(a, false));
+            // 选项不同键就不同
+            cache.compile(a, true);
+            assertEquals(1, cache.hits());
+            assertEquals(2, cache.misses());
+
+            // 别的进程打开同一个目录也能命中
+            var other = new CompileCache(dir, 1 << 20);
+            assertArrayEquals(first, other.compile(a, false));
+            assertEquals(1, other.hits());
+
+            // 编译错误不缓存
+            byte[] bad = "fn main() -> void { x = 1; }".getBytes();
+            for (int i = 0; i < 2; i++) {
+                try {
+                    cache.compile(bad, false);
+                    fail();
+                } catch (CompileError e) {
+                    // 预期
+                }
+            }
+            assertEquals(4, cache.misses());
+
+            // 上限只够放一个，最久没用的先被淘汰
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path p : files.filter(Files::isRegularFile).toArray(Path[]::new)) {
+                    Files.setLastModifiedTime(p, FileTime.fromMillis(0));
+                }
+            }
+            var small = new CompileCache(dir, first.length * 2);
+            assertNull(small.get(small.key(b, false)));
+            small.compile(b, false);
+            assertNotNull(small.get(small.key(b, false)));
+            assertNull(small.get(small.key(a, false)));
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+}
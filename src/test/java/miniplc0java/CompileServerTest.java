@@ -0,0 +1,66 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import miniplc0java.instruction.Instruction;
+
+public class CompileServerTest {
+
+    @Test
+    public void testCompileServer() throws Exception {
+        // TCP，Java 14 上也能跑
+        var server = new CompileServer("127.0.0.1:0");
+        var serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        serving.start();
+        try (var client = new CompileClient("127.0.0.1:" + ((InetSocketAddress) server.getLocalAddress()).getPort())) {
+            String source = "fn main() -> void {\n    putint(6 * 7);\n}\n";
+            var expected = new ByteArrayOutputStream();
+            Instruction.writeModule(Channels.newChannel(expected), MiniVmTest.CompileC0(source));
+            // 同一个连接上连续编译
+            for (int i = 0; i < 3; i++) {
+                CompileClient.Reply reply = client.compile(source.getBytes(), false);
+                assertTrue(reply.isOk());
+                assertArrayEquals(expected.toByteArray(), reply.data);
+            }
+            CompileClient.Reply bad = client.compile("fn main() -> void { x = 1; }".getBytes(), false);
+            assertFalse(bad.isOk());
+            assertTrue(bad.error.contains("NotDeclared"));
+        } finally {
+            server.close();
+            serving.join();
+        }
+    }
+
+    @Test
+    public void testSocketPathIsNotSocket() throws Exception {
+        // 路径上已经有普通文件时报错，不能把它删掉
+        Path file = Files.createTempFile("victim", ".c0");
+        try {
+            Files.writeString(file, "fn main() -> void {\n}\n");
+            try {
+                new CompileServer(file.toString()).close();
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("not a socket"));
+            }
+            assertEquals("fn main() -> void {\n}\n", Files.readString(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.analyser.SymbolTable;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.O0Module;
+import miniplc0java.instruction.O0Reader;
+import miniplc0java.instruction.O0Writer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.util.Ty;
+
+public class InstructionTest {
+
+    private static byte[] legacyBytes(Instruction i) {
+        List<Byte> list = new ArrayList<>();
+        i.toString(list);
+        return Instruction.listTobyte(list);
+    }
+
+    private static byte[] writerBytes(Instruction i) {
+        O0Writer out = new O0Writer();
+        i.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testWriterMatchesLegacy() {
+        for (Operation op : Operation.values()) {
+            Instruction[] cases = {
+                    new Instruction(op),
+                    new Instruction(op, 7),
+                    new Instruction(op, -3),
+                    new Instruction(op, 1234567890123L),
+                    new Instruction(op, -2.5),
+            };
+            for (Instruction i : cases) {
+                assertArrayEquals(op.name(), legacyBytes(i), writerBytes(i));
+            }
+        }
+    }
+
+    /**
+     * 一个只有 _start 和 main 的小模块
+     */
+    private static CompileContext setupModule() {
+        var globals = new ArrayList<Token>();
+        globals.add(new Token(TokenType.STRING_LITERAL, "main"));
+        globals.add(new Token(TokenType.STRING_LITERAL, "_start"));
+        var funcs = new ArrayList<Function>();
+        var start = new Function("_start", 1, 0);
+        start.setReturnType(Ty.VOID);
+        start.addInstruction(new Instruction(Operation.stackalloc, 0));
+        start.addInstruction(new Instruction(Operation.call, 1));
+        var main = new Function("main", 0, 1);
+        main.setReturnType(Ty.VOID);
+        main.addInstruction(new Instruction(Operation.push, 42L));
+        main.addInstruction(new Instruction(Operation.pop));
+        main.addInstruction(new Instruction(Operation.br, -3));
+        main.addInstruction(new Instruction(Operation.ret));
+        funcs.add(start);
+        funcs.add(main);
+        return new CompileContext(new SymbolTable(), globals, funcs);
+    }
+
+    @Test
+    public void testStreamedModuleMatchesInMemory() throws Exception {
+        CompileContext ctx = setupModule();
+
+        var expected = new ByteArrayOutputStream();
+        expected.write(Instruction.addHead());
+        expected.write(Instruction.addGlob(ctx));
+        expected.write(Instruction.addFunc(ctx));
+
+        var actual = new ByteArrayOutputStream();
+        Instruction.writeModule(Channels.newChannel(actual), ctx);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testReadBack() throws Exception {
+        CompileContext ctx = setupModule();
+        Path file = Files.createTempFile("module", ".o0");
+        try {
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                Instruction.writeModule(out, ctx);
+            }
+            O0Module m = O0Reader.read(file);
+            assertEquals(2, m.globals.length);
+            assertEquals("_start", new String(m.globals[1], StandardCharsets.US_ASCII));
+            assertEquals(2, m.functionCount());
+            assertEquals(6, m.instructionCount());
+            assertEquals(1, m.funcName[0]);
+            assertEquals(0, m.retSlots[1]);
+            for (int f = 0; f < 2; f++) {
+                List<Instruction> body = ctx.funcTable.get(f).instructions;
+                assertEquals(body.size(), m.funcStart[f + 1] - m.funcStart[f]);
+                for (int i = 0; i < body.size(); i++) {
+                    int at = m.funcStart[f] + i;
+                    assertEquals(body.get(i).getOpt(), O0Module.operationOf(m.opcodes[at]));
+                    assertEquals(body.get(i).getOperand(), m.operands[at]);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncated() throws Exception {
+        byte[] bytes = Instruction.addHead();
+        O0Reader.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length + 2)));
+    }
+
+    @Test
+    public void testWriterGrows() {
+        O0Writer out = new O0Writer(1);
+        for (int i = 0; i < 1000; i++) {
+            out.putU64(0x0102030405060708L);
+        }
+        byte[] bytes = out.toByteArray();
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, Arrays.copyOfRange(bytes, 8 * 999, 8 * 1000));
+    }
+}
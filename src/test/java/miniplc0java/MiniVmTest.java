@@ -1,17 +1,28 @@
 package miniplc0java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Scanner;
 
 import org.junit.Test;
 
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.O0Module;
 import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.Ty;
 import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.ThreadedVm;
 
 public class MiniVmTest {
 
@@ -28,13 +39,45 @@ public class MiniVmTest {
         return outString;
     }
 
+    /**
+     * 编译一段 c0 源码
+     */
+    static CompileContext CompileC0(String source) throws Exception {
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(source))));
+        analyser.analyse();
+        return analyser.getContext();
+    }
+
+    /**
+     * 编译一段 c0 源码，再用虚拟机执行
+     */
+    static String RunC0(String source, String input) throws Exception {
+        return RunC0(CompileC0(source), input);
+    }
+
+    /**
+     * 用虚拟机执行编译好的程序
+     */
+    static String RunC0(CompileContext ctx, String input) throws Exception {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        var vm = new MiniVm(ctx.funcTable, Instruction.globalValues(ctx),
+                new ByteArrayInputStream(input.getBytes(utf8)), output);
+        vm.Run();
+        output.close();
+        return ostream.toString(utf8);
+    }
+
     @Test
     public void testPlus() {
         var instructions = new ArrayList<Instruction>();
-        instructions.add(new Instruction(Operation.LIT, 1));
-        instructions.add(new Instruction(Operation.LIT, 2));
-        instructions.add(new Instruction(Operation.ADD));
-        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.push, 1));
+        instructions.add(new Instruction(Operation.push, 2));
+        instructions.add(new Instruction(Operation.addi));
+        instructions.add(new Instruction(Operation.printi));
+        instructions.add(new Instruction(Operation.println));
 
         var outString = RunVm(instructions);
 
@@ -44,10 +87,11 @@ public class MiniVmTest {
     @Test
     public void testMinus() {
         var instructions = new ArrayList<Instruction>();
-        instructions.add(new Instruction(Operation.LIT, 1));
-        instructions.add(new Instruction(Operation.LIT, 2));
-        instructions.add(new Instruction(Operation.SUB));
-        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.push, 1));
+        instructions.add(new Instruction(Operation.push, 2));
+        instructions.add(new Instruction(Operation.subi));
+        instructions.add(new Instruction(Operation.printi));
+        instructions.add(new Instruction(Operation.println));
 
         var outString = RunVm(instructions);
 
@@ -57,10 +101,11 @@ public class MiniVmTest {
     @Test
     public void testMult() {
         var instructions = new ArrayList<Instruction>();
-        instructions.add(new Instruction(Operation.LIT, 3));
-        instructions.add(new Instruction(Operation.LIT, 4));
-        instructions.add(new Instruction(Operation.MUL));
-        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.push, 3));
+        instructions.add(new Instruction(Operation.push, 4));
+        instructions.add(new Instruction(Operation.muli));
+        instructions.add(new Instruction(Operation.printi));
+        instructions.add(new Instruction(Operation.println));
 
         var outString = RunVm(instructions);
 
@@ -70,10 +115,11 @@ public class MiniVmTest {
     @Test
     public void testDiv() {
         var instructions = new ArrayList<Instruction>();
-        instructions.add(new Instruction(Operation.LIT, 60));
-        instructions.add(new Instruction(Operation.LIT, 4));
-        instructions.add(new Instruction(Operation.DIV));
-        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.push, 60));
+        instructions.add(new Instruction(Operation.push, 4));
+        instructions.add(new Instruction(Operation.divi));
+        instructions.add(new Instruction(Operation.printi));
+        instructions.add(new Instruction(Operation.println));
 
         var outString = RunVm(instructions);
 
@@ -81,36 +127,279 @@ public class MiniVmTest {
     }
 
     @Test
-    public void testStore() {
+    public void testDouble() {
         var instructions = new ArrayList<Instruction>();
-        instructions.add(new Instruction(Operation.LIT, 1));
-        instructions.add(new Instruction(Operation.LIT, 2));
-        instructions.add(new Instruction(Operation.LIT, 3));
-        instructions.add(new Instruction(Operation.LIT, 4));
-        instructions.add(new Instruction(Operation.LIT, 5)); // 1 2 3 4 5
-        instructions.add(new Instruction(Operation.STO, 0)); // 5 2 3 4
-        instructions.add(new Instruction(Operation.STO, 1)); // 5 4 3
-        instructions.add(new Instruction(Operation.WRT));
-        instructions.add(new Instruction(Operation.WRT));
-        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.push, 1.5));
+        instructions.add(new Instruction(Operation.push, 3));
+        instructions.add(new Instruction(Operation.itof));
+        instructions.add(new Instruction(Operation.mulf));
+        instructions.add(new Instruction(Operation.printf));
+        instructions.add(new Instruction(Operation.println));
 
         var outString = RunVm(instructions);
 
-        assertEquals(String.format("Stack top should be 3, 4, 5", outString), "3\n4\n5\n", outString);
+        assertEquals(String.format("1.5 * 3.0 should equal to 4.5", outString), "4.5\n", outString);
+    }
+
+    @Test
+    public void testStoreLoad() {
+        // 一个有两个局部变量的函数：a = 5; b = a * 2; 输出 b, a
+        var body = new ArrayList<Instruction>();
+        body.add(new Instruction(Operation.loca, 0));
+        body.add(new Instruction(Operation.push, 5));
+        body.add(new Instruction(Operation.store64));
+        body.add(new Instruction(Operation.loca, 1));
+        body.add(new Instruction(Operation.loca, 0));
+        body.add(new Instruction(Operation.load64));
+        body.add(new Instruction(Operation.push, 2));
+        body.add(new Instruction(Operation.muli));
+        body.add(new Instruction(Operation.store64));
+        body.add(new Instruction(Operation.loca, 1));
+        body.add(new Instruction(Operation.load64));
+        body.add(new Instruction(Operation.printi));
+        body.add(new Instruction(Operation.loca, 0));
+        body.add(new Instruction(Operation.load64));
+        body.add(new Instruction(Operation.printi));
+        body.add(new Instruction(Operation.ret));
+        var f = new Function("_start", 0, 0);
+        f.setReturnType(Ty.VOID);
+        f.localCount = 2;
+        f.instructions.addAll(body);
+        var functions = new ArrayList<Function>();
+        functions.add(f);
+
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true);
+        new MiniVm(functions, new ArrayList<>(), System.in, output).Run();
+
+        assertEquals("Locals should be 10, 5", "105", ostream.toString());
     }
 
     @Test
-    public void testLoad() {
+    public void testBranch() {
+        // 从 3 倒数到 1
         var instructions = new ArrayList<Instruction>();
-        instructions.add(new Instruction(Operation.LIT, 1));
-        instructions.add(new Instruction(Operation.LIT, 2)); // 1 2
-        instructions.add(new Instruction(Operation.LOD, 1)); // 1 2 2
-        instructions.add(new Instruction(Operation.LOD, 0)); // 1 2 2 1
-        instructions.add(new Instruction(Operation.WRT));
-        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.push, 3));
+        instructions.add(new Instruction(Operation.dup));// 0
+        instructions.add(new Instruction(Operation.printi));
+        instructions.add(new Instruction(Operation.push, 1));
+        instructions.add(new Instruction(Operation.subi));
+        instructions.add(new Instruction(Operation.dup));
+        instructions.add(new Instruction(Operation.brtrue, -6));
+        instructions.add(new Instruction(Operation.println));
 
         var outString = RunVm(instructions);
 
-        assertEquals(String.format("Stack top should be 1, 2", outString), "1\n2\n", outString);
+        assertEquals("Loop should print 3, 2, 1", "321\n", outString);
+    }
+
+    @Test
+    public void testCompiledProgram() throws Exception {
+        String source = "fn fib(n: int) -> int {\n"
+                + "    if n < 2 {\n"
+                + "        return n;\n"
+                + "    }\n"
+                + "    return fib(n - 1) + fib(n - 2);\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 10 {\n"
+                + "        putint(fib(i));\n"
+                + "        putchar(' ');\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putln();\n"
+                + "}\n";
+
+        assertEquals("0 1 1 2 3 5 8 13 21 34 \n", RunC0(source, ""));
+    }
+
+    @Test
+    public void testCompiledIo() throws Exception {
+        String source = "let total: int = 0;\n"
+                + "fn main() -> void {\n"
+                + "    let n: int = getint();\n"
+                + "    let x: double = getdouble();\n"
+                + "    while n > 0 {\n"
+                + "        total = total + getint();\n"
+                + "        n = n - 1;\n"
+                + "    }\n"
+                + "    putstr(\"sum=\");\n"
+                + "    putint(total);\n"
+                + "    putln();\n"
+                + "    putdouble(x * 2.0);\n"
+                + "    putln();\n"
+                + "}\n";
+
+        assertEquals("sum=60\n5.0\n", RunC0(source, "3 2.5\n10 20 30\n"));
+    }
+
+    @Test
+    public void testCompareValue() throws Exception {
+        // 比较当值用时只能是 0 或 1，两边大小三种情况都要对
+        StringBuilder sb = new StringBuilder("fn show(x: int, y: int) -> void {\n"
+                + "    let b: int;\n");
+        for (String op : new String[]{"==", "!=", "<", ">", "<=", ">="}) {
+            sb.append("    b = x ").append(op).append(" y;\n")
+                    .append("    putint(b);\n");
+        }
+        sb.append("    putln();\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    show(3, 2);\n"
+                + "    show(2, 2);\n"
+                + "    show(2, 3);\n"
+                + "}\n");
+
+        assertEquals("010101\n100011\n011010\n", RunC0(sb.toString(), ""));
+    }
+
+    @Test
+    public void testThreadedVmMatches() throws Exception {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        String source = "fn sq(x: double) -> double {\n"
+                + "    return x * x;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 100 {\n"
+                + "        if i / 3 * 3 == i {\n"
+                + "            s = s + i;\n"
+                + "        } else {\n"
+                + "            s = s - 1;\n"
+                + "        }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s);\n"
+                + "    putln();\n"
+                + "    putdouble(sq(1.5));\n"
+                + "    putln();\n"
+                + "    putint(getint() * -2);\n"
+                + "    putln();\n"
+                + "}\n";
+        String expected = RunC0(source, "21\n");
+
+        CompileContext ctx = CompileC0(source);
+        var module = O0Module.of(ctx.funcTable, Instruction.globalValues(ctx));
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new ThreadedVm(module, new ByteArrayInputStream("21\n".getBytes(utf8)), output).Run();
+        output.close();
+
+        assertEquals("1617\n2.25\n-42\n", expected);
+        assertEquals(expected, ostream.toString(utf8));
+
+        // 阈值为 1 时 main 第一次调用就被编译
+        ostream = new ByteArrayOutputStream();
+        output = new PrintStream(ostream, true, utf8);
+        var vm = new ThreadedVm(module, new ByteArrayInputStream("21\n".getBytes(utf8)), output, 1);
+        vm.Run();
+        output.close();
+
+        assertEquals(1, vm.getJitCompiledCount());
+        assertEquals(expected, ostream.toString(utf8));
+    }
+
+    @Test
+    public void testJitFallback() {
+        // main 在循环里调用 g，g 对参数的地址做了运算，不能编译，要回到解释器执行
+        long[][] code = {
+                // _start
+                {Operation.stackalloc.getCode(), 0}, {Operation.call.getCode(), 1},
+                // main: while i < 5 { printi(g(i)); i = i + 1; }
+                {Operation.loca.getCode(), 0}, {Operation.load64.getCode(), 0},
+                {Operation.push.getCode(), 5}, {Operation.cmpi.getCode(), 0},
+                {Operation.setlt.getCode(), 0}, {Operation.brfalse.getCode(), 12},
+                {Operation.stackalloc.getCode(), 1}, {Operation.loca.getCode(), 0},
+                {Operation.load64.getCode(), 0}, {Operation.call.getCode(), 2},
+                {Operation.printi.getCode(), 0},
+                {Operation.loca.getCode(), 0}, {Operation.loca.getCode(), 0},
+                {Operation.load64.getCode(), 0}, {Operation.push.getCode(), 1},
+                {Operation.addi.getCode(), 0}, {Operation.store64.getCode(), 0},
+                {Operation.br.getCode(), -18}, {Operation.ret.getCode(), 0},
+                // g(x) = x * 10
+                {Operation.arga.getCode(), 0}, {Operation.arga.getCode(), 1},
+                {Operation.push.getCode(), 0}, {Operation.addi.getCode(), 0},
+                {Operation.load64.getCode(), 0}, {Operation.push.getCode(), 10},
+                {Operation.muli.getCode(), 0}, {Operation.store64.getCode(), 0},
+                {Operation.ret.getCode(), 0},
+        };
+        var module = new O0Module();
+        module.globals = new byte[0][];
+        module.globalIsConst = new boolean[0];
+        module.funcName = new int[]{-1, -1, -1};
+        module.retSlots = new int[]{0, 0, 1};
+        module.paramSlots = new int[]{0, 0, 1};
+        module.locSlots = new int[]{0, 1, 0};
+        module.funcStart = new int[]{0, 2, 21, code.length};
+        module.opcodes = new byte[code.length];
+        module.operands = new long[code.length];
+        for (int i = 0; i < code.length; i++) {
+            module.opcodes[i] = (byte) code[i][0];
+            module.operands[i] = code[i][1];
+        }
+
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true);
+        var vm = new ThreadedVm(module, System.in, output, 2);
+        vm.Run();
+
+        assertEquals("010203040", ostream.toString());
+        assertEquals(1, vm.getJitCompiledCount());
+    }
+
+    @Test
+    public void testJitLoopInMain() throws Exception {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        // main 只调用一次，循环的回边是条件跳转，也要能从循环头进入编译后的代码
+        String source = "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 100000 {\n"
+                + "        s = s + i;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s);\n"
+                + "}\n";
+        CompileContext ctx = CompileC0(source);
+        var module = O0Module.of(ctx.funcTable, Instruction.globalValues(ctx));
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        var vm = new ThreadedVm(module, System.in, output, 100);
+        vm.Run();
+
+        assertEquals("4999950000", ostream.toString(utf8));
+        assertEquals(1, vm.getJitCompiledCount());
+        // 编译之后的循环不再由解释器分派
+        assertTrue(vm.getSteps() < 10000);
+    }
+
+    @Test
+    public void testFusionStats() throws Exception {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        String source = "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 3 {\n"
+                + "        putint(i);\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "}\n";
+        assertEquals("012", RunC0(source, ""));
+
+        CompileContext ctx = CompileC0(source);
+        var module = O0Module.of(ctx.funcTable, Instruction.globalValues(ctx));
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        var vm = new ThreadedVm(module, System.in, output);
+        vm.Run();
+        assertEquals("012", ostream.toString(utf8));
+
+        ostream.reset();
+        vm.dumpFusionStats(output);
+        String stats = ostream.toString(utf8);
+        // i = i + 1 合并成一条，执行 3 次；循环条件在循环体后面，i < 3 成立时跳回，执行 4 次
+        assertTrue(stats, stats.matches("(?s).*INC_LOCAL +sites +1 +executed +3\n.*"));
+        assertTrue(stats, stats.matches("(?s).*JLT +sites +1 +executed +4\n.*"));
     }
 }
@@ -0,0 +1,134 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.PeepholeOptimizer;
+import miniplc0java.util.Ty;
+import miniplc0java.vm.MiniVm;
+
+public class PeepholeOptimizerTest {
+
+    private static String dump(Function f) {
+        StringBuilder sb = new StringBuilder();
+        for (Instruction i : f.instructions) {
+            sb.append(i.getOpt());
+            if (i.getOpt().getOperandSize() > 0)
+                sb.append(' ').append(i.getOperand());
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testBranchRewrite() {
+        var f = new Function("f", 0, 0);
+        f.setReturnType(Ty.VOID);
+        f.localCount = 1;
+        f.addInstruction(new Instruction(Operation.loca, 0));// 0
+        f.addInstruction(new Instruction(Operation.load64));
+        f.addInstruction(new Instruction(Operation.push, 0L));
+        f.addInstruction(new Instruction(Operation.addi));
+        f.addInstruction(new Instruction(Operation.brtrue, 1));
+        f.addInstruction(new Instruction(Operation.br, 4));// 跳到 ret
+        f.addInstruction(new Instruction(Operation.br, 0));
+        f.addInstruction(new Instruction(Operation.loca, 0));
+        f.addInstruction(new Instruction(Operation.load64));
+        f.addInstruction(new Instruction(Operation.printi));
+        f.addInstruction(new Instruction(Operation.ret));
+        f.addInstruction(new Instruction(Operation.br, -11));// 不可达
+
+        PeepholeOptimizer.optimize(f);
+
+        assertEquals("loca 0\n"
+                + "load64\n"
+                + "brfalse 3\n"
+                + "loca 0\n"
+                + "load64\n"
+                + "printi\n"
+                + "ret\n", dump(f));
+    }
+
+    @Test
+    public void testMergeTails() {
+        var f = new Function("f", 0, 0);
+        f.setReturnType(Ty.VOID);
+        f.localCount = 1;
+        f.addInstruction(new Instruction(Operation.loca, 0));// 0
+        f.addInstruction(new Instruction(Operation.load64));
+        f.addInstruction(new Instruction(Operation.brfalse, 5));
+        // 和 8 开始的块相同
+        f.addInstruction(new Instruction(Operation.loca, 0));// 3
+        f.addInstruction(new Instruction(Operation.load64));
+        f.addInstruction(new Instruction(Operation.printi));
+        f.addInstruction(new Instruction(Operation.push, 1L));
+        f.addInstruction(new Instruction(Operation.br, 4));
+        f.addInstruction(new Instruction(Operation.loca, 0));// 8
+        f.addInstruction(new Instruction(Operation.load64));
+        f.addInstruction(new Instruction(Operation.printi));
+        f.addInstruction(new Instruction(Operation.push, 1L));
+        f.addInstruction(new Instruction(Operation.printi));// 12
+        f.addInstruction(new Instruction(Operation.ret));
+
+        PeepholeOptimizer.optimize(f);
+
+        // 两个分支做的事情一样，条件跳转变成跳到下一条，换成 pop
+        assertEquals("loca 0\n"
+                + "load64\n"
+                + "pop\n"
+                + "loca 0\n"
+                + "load64\n"
+                + "printi\n"
+                + "push 1\n"
+                + "printi\n"
+                + "ret\n", dump(f));
+    }
+
+    @Test
+    public void testCompiledProgram() throws Exception {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        String source = "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 10 {\n"
+                + "        if i > 4 {\n"
+                + "            s = s + i * i;\n"
+                + "        } else {\n"
+                + "            s = s - 1;\n"
+                + "        }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s);\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        int before = 0;
+        for (Function f : ctx.funcTable) {
+            before += f.instructions.size();
+        }
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        PeepholeOptimizer.optimize(ctx.funcTable, new PrintStream(report, true, utf8));
+        int after = 0;
+        for (Function f : ctx.funcTable) {
+            after += f.instructions.size();
+        }
+
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new MiniVm(ctx.funcTable, Instruction.globalValues(ctx),
+                new ByteArrayInputStream(new byte[0]), output).Run();
+
+        assertEquals("250", ostream.toString(utf8));
+        assertEquals(true, after < before);
+        assertEquals(true, report.toString(utf8).endsWith("total: " + before + " -> " + after + "\n"));
+    }
+}
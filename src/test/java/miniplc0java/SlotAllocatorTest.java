@@ -0,0 +1,67 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.optimizer.SlotAllocator;
+
+public class SlotAllocatorTest {
+
+    private static Function find(CompileContext ctx, String name) {
+        for (Function f : ctx.funcTable) {
+            if (f.getName().equals(name))
+                return f;
+        }
+        throw new Error(name);
+    }
+
+    @Test
+    public void testDisjointScopes() throws Exception {
+        String source = "fn f(n: int) -> int {\n"
+                + "    let r: int = 0;\n"
+                + "    {\n"
+                + "        let a: int = n * 2;\n"
+                + "        let b: int = a + 1;\n"
+                + "        r = r + b;\n"
+                + "    }\n"
+                + "    {\n"
+                + "        let c: int = n * 3;\n"
+                + "        let d: int = c + 1;\n"
+                + "        r = r + d;\n"
+                + "    }\n"
+                + "    if n > 0 {\n"
+                + "        return r + f(n - 1);\n"
+                + "    }\n"
+                + "    return r;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let z: int;\n"
+                + "    let i: int = 0;\n"
+                + "    while i < 3 {\n"
+                + "        let t: int = i * i;\n"
+                + "        putint(t + z);\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(f(4));\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        String expected = MiniVmTest.RunC0(ctx, "");
+        Function f = find(ctx, "f");
+        Function main = find(ctx, "main");
+        assertEquals(5, f.localCount);
+
+        for (Function g : ctx.funcTable) {
+            SlotAllocator.allocate(g, ctx);
+        }
+
+        // r 一直活跃，a、b、c、d 每次只有一个活跃
+        assertEquals(2, f.localCount);
+        // z 没有赋值过，读到的 0 要保留，不能和 t 共用
+        assertEquals(3, main.localCount);
+        assertEquals(expected, MiniVmTest.RunC0(ctx, ""));
+        assertEquals("01460", expected);
+    }
+}
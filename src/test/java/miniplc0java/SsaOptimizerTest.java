@@ -0,0 +1,172 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.CompileContext;
+import miniplc0java.analyser.Function;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.SsaOptimizer;
+import miniplc0java.vm.MiniVm;
+
+public class SsaOptimizerTest {
+
+    private static int count(Function f, Operation op) {
+        int n = 0;
+        for (Instruction i : f.instructions) {
+            if (i.getOpt() == op)
+                n++;
+        }
+        return n;
+    }
+
+    private static Function find(CompileContext ctx, String name) {
+        for (Function f : ctx.funcTable) {
+            if (f.getName().equals(name))
+                return f;
+        }
+        throw new Error(name);
+    }
+
+    @Test
+    public void testCommonSubexpression() throws Exception {
+        String source = "fn p(a: int, b: int) -> int {\n"
+                + "    let x: int = a * b + 1;\n"
+                + "    let y: int = a * b + 1;\n"
+                + "    let dead: int = a * a * a;\n"
+                + "    let z: int = x;\n"
+                + "    a = 5;\n"
+                + "    return x + y + z + a * b;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    putint(p(3, 4));\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        Function p = find(ctx, "p");
+        assertEquals(5, count(p, Operation.muli));
+
+        SsaOptimizer.optimize(p, ctx);
+
+        // a * b 只算一次，dead 不算，a 换成常量 5
+        assertEquals(2, count(p, Operation.muli));
+        assertEquals("59", MiniVmTest.RunC0(ctx, ""));
+    }
+
+    @Test
+    public void testSideEffectOrder() throws Exception {
+        String source = "let g: int = 3;\n"
+                + "fn bump() -> int {\n"
+                + "    g = g + 1;\n"
+                + "    return g;\n"
+                + "}\n"
+                + "fn main() -> void {\n"
+                + "    let x: int = g;\n"
+                + "    let y: int = bump() + g;\n"
+                + "    let zero: int = 0;\n"
+                + "    g = 10;\n"
+                + "    putint(x);\n"
+                + "    putint(y);\n"
+                + "    putint(getint() - getint());\n"
+                + "    let unused: int = 1 / zero;\n"
+                + "    putint(g);\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        SsaOptimizer.optimize(ctx, null);
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var vm = new MiniVm(ctx.funcTable, Instruction.globalValues(ctx),
+                new ByteArrayInputStream("7 2".getBytes(utf8)), new PrintStream(ostream, true, utf8));
+        String error = null;
+        try {
+            vm.Run();
+        } catch (Error e) {
+            error = e.getMessage();
+        }
+        // 除以 0 没有被当成死代码删掉
+        assertEquals("385", ostream.toString(utf8));
+        assertEquals("divide by zero", error);
+    }
+
+    @Test
+    public void testCompiledProgram() throws Exception {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        String source = "fn main() -> void {\n"
+                + "    let a: int = 1;\n"
+                + "    let b: int = 1;\n"
+                + "    let i: int = 0;\n"
+                + "    let t: int;\n"
+                + "    while i < 20 {\n"
+                + "        t = a;\n"
+                + "        a = b;\n"
+                + "        b = t + b;\n"
+                + "        if i / 2 * 2 == i {\n"
+                + "            i = i + 1;\n"
+                + "            continue;\n"
+                + "        }\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(a);\n"
+                + "    putchar(32);\n"
+                + "    putint(b);\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        var plain = new MiniVm(ctx.funcTable, Instruction.globalValues(ctx),
+                new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream()));
+        plain.Run();
+        int before = 0;
+        for (Function f : ctx.funcTable) {
+            before += f.instructions.size();
+        }
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        SsaOptimizer.optimize(ctx, new PrintStream(report, true, utf8));
+        int after = 0;
+        for (Function f : ctx.funcTable) {
+            after += f.instructions.size();
+        }
+
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var vm = new MiniVm(ctx.funcTable, Instruction.globalValues(ctx),
+                new ByteArrayInputStream(new byte[0]), new PrintStream(ostream, true, utf8));
+        vm.Run();
+
+        assertEquals("10946 17711", ostream.toString(utf8));
+        assertEquals(true, after < before);
+        assertEquals(true, vm.getSteps() < plain.getSteps());
+        assertEquals(true, report.toString(utf8).contains(" -> " + after + " (locals "));
+        assertEquals(true, report.toString(utf8).startsWith("_start: "));
+    }
+
+    @Test
+    public void testRedundantSubexpressionInLoop() throws Exception {
+        String source = "fn main() -> void {\n"
+                + "    let i: int = 0;\n"
+                + "    let s: int = 0;\n"
+                + "    while i < 20 {\n"
+                + "        let w: int = (i * 3 + 1) * (i + 7) / 5;\n"
+                + "        let v: int = (i * 3 + 1) * (i + 7) / 5;\n"
+                + "        s = s + w - v + i;\n"
+                + "        i = i + 1;\n"
+                + "    }\n"
+                + "    putint(s);\n"
+                + "}\n";
+        CompileContext ctx = MiniVmTest.CompileC0(source);
+        Function main = find(ctx, "main");
+        assertEquals(4, count(main, Operation.muli));
+        assertEquals(2, count(main, Operation.divi));
+
+        SsaOptimizer.optimize(main, ctx);
+
+        // v 和 w 是同一个值，每次循环只算一次
+        assertEquals(2, count(main, Operation.muli));
+        assertEquals(1, count(main, Operation.divi));
+        assertEquals("190", MiniVmTest.RunC0(ctx, ""));
+    }
+}
@@ -3,6 +3,174 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+
+import miniplc0java.tokenizer.IncrementalTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+
 public class TokenizerTest {
 
+    @Test
+    public void testStringIterPositions() {
+        StringIter it = new StringIter(new StringReader("ha\r\n71"));
+        it.readAll();
+        assertEquals('h', it.nextChar());
+        assertEquals('a', it.peekChar());
+        assertEquals("Pos(row: 1, col: 2)", it.currentPos().toString());
+        it.nextChar();
+        // 指针指向第0行的 \n
+        assertEquals("Pos(row: 2, col: 1)", it.nextPos().toString());
+        assertEquals("Pos(row: 1, col: 3)", it.currentPos().toString());
+        assertEquals("Pos(row: 1, col: 2)", it.previousPos().toString());
+        assertEquals('\n', it.nextChar());
+        assertEquals('7', it.nextChar());
+        it.unreadLast();
+        assertEquals("Pos(row: 2, col: 1)", it.currentPos().toString());
+        assertEquals('7', it.nextChar());
+        assertEquals('1', it.nextChar());
+        // 末尾补上的 \n
+        assertEquals('\n', it.nextChar());
+        assertTrue(it.isEOF());
+        assertEquals(0, it.nextChar());
+        assertEquals("Pos(row: 3, col: 1)", it.currentPos().toString());
+    }
+
+    @Test
+    public void testTokenPositions() throws Exception {
+        Tokenizer tokenizer = new Tokenizer(new StringIter(new StringReader("let x: int = 1;\n\n// c\nx = 'a';")));
+        StringBuilder sb = new StringBuilder();
+        Token t;
+        while ((t = tokenizer.nextToken()).getTokenType() != TokenType.EOF) {
+            sb.append(t.getTokenType().name()).append(' ').append(t.getStartPos().row).append(':')
+                    .append(t.getStartPos().col).append(' ');
+        }
+        assertEquals("LET_KW 0:0 IDENT 0:4 COLON 0:5 IDENT 0:7 ASSIGN 0:11 UINT_LITERAL 0:13 SEMICOLON 0:14 "
+                + "IDENT 3:0 ASSIGN 3:2 CHAR_LITERAL 3:4 SEMICOLON 3:7 ", sb.toString());
+        assertEquals(4, t.getStartPos().row);
+    }
+
+    @Test
+    public void testTokenBufferMatchesTokens() throws Exception {
+        String source = "fn f(x: double) -> int {\n"
+                + "    const c: int = '\\n';\n"
+                + "    putstr(\"a\\tb\");\n"
+                + "    return 12 / 3 * (x as int) - 7;// 注释\n"
+                + "}\n";
+        Tokenizer expected = new Tokenizer(new StringIter(new StringReader(source)));
+        TokenBuffer tokens = new Tokenizer(new StringIter(new StringReader(source))).tokenizeAll();
+        for (int i = 0; i < tokens.size(); i++) {
+            Token t = expected.nextToken();
+            Token u = tokens.token(i);
+            assertEquals(t.toString(), u.toString());
+            assertEquals(t.getValue(), u.getValue());
+            assertEquals(t.getEndPos().toString(), u.getEndPos().toString());
+        }
+        assertEquals(TokenType.EOF, tokens.type(tokens.size() - 1));
+        assertEquals(12, tokens.longValue(23));
+        assertEquals("a\tb", tokens.stringValue(19));
+        assertEquals("putstr", tokens.text(17));
+        assertEquals(((long) tokens.start(17) << 32) | tokens.end(17), tokens.span(17));
+    }
+
+    @Test
+    public void testKeywordsAndInterning() throws Exception {
+        String source = "fn let const as while if else return break continue "
+                + "f fnn le lets as_ While iff elses returns brake continues count count";
+        Tokenizer tokenizer = new Tokenizer(new StringIter(new StringReader(source)));
+        StringBuilder sb = new StringBuilder();
+        Token first = null;
+        Token t;
+        while ((t = tokenizer.nextToken()).getTokenType() != TokenType.EOF) {
+            sb.append(t.getTokenType().name()).append(' ');
+            if (t.getValueString().equals("count")) {
+                if (first == null)
+                    first = t;
+                else
+                    assertSame(first.getValue(), t.getValue());
+            }
+        }
+        assertEquals("FN_KW LET_KW CONST_KW AS_KW WHILE_KW IF_KW ELSE_KW RETURN_KW BREAK_KW CONTINUE_KW "
+                + "IDENT IDENT IDENT IDENT IDENT IDENT IDENT IDENT IDENT IDENT IDENT IDENT IDENT ", sb.toString());
+        assertEquals(12, tokenizer.getIdentTable().size());
+    }
+
+    private static String dump(TokenBuffer tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            sb.append(tokens.type(i).name()).append(' ').append(tokens.start(i)).append(' ').append(tokens.end(i))
+                    .append(' ').append(tokens.token(i).getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testIncrementalEdit() throws Exception {
+        IncrementalTokenizer inc = new IncrementalTokenizer("let a: int = 1;\nlet b: int = 2;\nlet c: int = 3;\n");
+        // 把 b 改成 bb，只有这一个 token 变化
+        IncrementalTokenizer.Change change = inc.edit(21, 0, "b");
+        assertEquals("Change(8, 9 -> 9)", change.toString());
+        assertEquals("bb", inc.getTokens().text(8));
+        assertEquals(37, inc.getTokens().start(15));
+        // 在第二行开头插入注释符号，这一行的 7 个 token 都没了
+        change = inc.edit(16, 0, "//");
+        assertEquals("Change(7, 14 -> 7)", change.toString());
+        assertEquals(TokenType.LET_KW, inc.getTokens().type(7));
+        assertEquals(35, inc.getTokens().start(7));
+        assertEquals("c", inc.getTokens().text(8));
+    }
+
+    @Test
+    public void testIncrementalIdentTableBounded() throws Exception {
+        IncrementalTokenizer inc = new IncrementalTokenizer("let x0: int = 1;\n");
+        // 反复改名，旧名字不能一直留在表里
+        for (int i = 1; i <= 1000; i++) {
+            String old = "x" + (i - 1);
+            inc.edit(4, old.length(), "x" + i);
+            assertEquals("x" + i, inc.getTokens().text(1));
+        }
+        assertTrue(inc.getTokens().identId(1) < 100);
+    }
+
+    @Test
+    public void testIncrementalMatchesFull() throws Exception {
+        String source = "fn f(x: double) -> int {\n"
+                + "    let s: int = 12 / 3;// 注释\n"
+                + "    putstr(\"a\\tb\");\n"
+                + "    return s * 'c' - (x as int);\n"
+                + "}\n";
+        String[] pieces = {"/", "//", "\"", "x", " ", "\n", "12", "1.5", "let", "->", "'a'", "fn", "\\"};
+        java.util.Random random = new java.util.Random(42);
+        IncrementalTokenizer inc = new IncrementalTokenizer(source);
+        String text = source;
+        for (int round = 0; round < 2000; round++) {
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(3) == 0 ? random.nextInt(Math.min(4, text.length() - offset) + 1) : 0;
+            String inserted = random.nextInt(4) == 0 ? "" : pieces[random.nextInt(pieces.length)];
+            text = text.substring(0, offset) + inserted + text.substring(offset + removed);
+            String expected;
+            try {
+                expected = dump(new IncrementalTokenizer(text).getTokens());
+            } catch (miniplc0java.error.TokenizeError e) {
+                expected = null;
+            }
+            String actual;
+            try {
+                inc.edit(offset, removed, inserted);
+                actual = dump(inc.getTokens());
+            } catch (miniplc0java.error.TokenizeError e) {
+                actual = null;
+            }
+            assertEquals(text, inc.getText());
+            assertEquals("round " + round, expected, actual);
+            if (expected == null) {
+                // 回到没有错误的文本
+                inc = new IncrementalTokenizer(source);
+                text = source;
+            }
+        }
+    }
 }